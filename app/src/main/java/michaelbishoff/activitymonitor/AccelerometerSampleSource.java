@@ -0,0 +1,79 @@
+package michaelbishoff.activitymonitor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+import michaelbishoff.activitymonitor.core.SampleBatcher;
+import michaelbishoff.activitymonitor.core.SampleSink;
+import michaelbishoff.activitymonitor.core.SampleSource;
+
+/**
+ * Reads the accelerometer with a maximum report latency, so the sensor hub can hold the
+ * samples in its hardware FIFO and deliver them in bursts. The events arrive on the given
+ * Handler's thread and each burst is handed to the sink as one batch.
+ */
+public class AccelerometerSampleSource implements SampleSource, SensorEventListener {
+
+    // The minimum number of samples in a batch when the FIFO is small or unknown
+    private static final int MIN_BATCH_SIZE = 128;
+
+    private final SensorManager sensorManager;
+    private final Sensor accelerometer;
+    private final Handler handler;
+
+    // The sampling period and the maximum report latency, both in microseconds
+    private final int samplingPeriodUs;
+    private final int maxReportLatencyUs;
+
+    private SampleBatcher batcher;
+
+    // Posted when the first event of a burst arrives. The events of a burst are all
+    // dispatched before the Handler gets to it, so it delivers the whole burst at once.
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            if (batcher != null) {
+                batcher.flush();
+            }
+        }
+    };
+
+    public AccelerometerSampleSource(SensorManager sensorManager, Sensor accelerometer,
+                                     int samplingPeriodUs, int maxReportLatencyUs, Handler handler) {
+        this.sensorManager = sensorManager;
+        this.accelerometer = accelerometer;
+        this.samplingPeriodUs = samplingPeriodUs;
+        this.maxReportLatencyUs = maxReportLatencyUs;
+        this.handler = handler;
+    }
+
+    @Override
+    public void start(SampleSink sink) {
+        batcher = new SampleBatcher(Math.max(accelerometer.getFifoMaxEventCount(), MIN_BATCH_SIZE), sink);
+        sensorManager.registerListener(this, accelerometer, samplingPeriodUs, maxReportLatencyUs, handler);
+    }
+
+    @Override
+    public void stop() {
+        sensorManager.unregisterListener(this, accelerometer);
+        handler.removeCallbacks(flushTask);
+
+        // Delivers what is left of the last burst on the sensor thread
+        handler.post(flushTask);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+            if (batcher.add(event.timestamp, event.values[0], event.values[1], event.values[2])) {
+                handler.post(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+}
@@ -0,0 +1,87 @@
+package michaelbishoff.activitymonitor;
+
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import michaelbishoff.activitymonitor.core.ActivityHistory;
+import michaelbishoff.activitymonitor.core.ActivityLog;
+import michaelbishoff.activitymonitor.core.ActivityType;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+/**
+ * Shows the activity history, newest first. Only the rows on screen are bound,
+ * so older activities are read from the log as the user scrolls to them.
+ */
+public class ActivityHistoryAdapter extends RecyclerView.Adapter<ActivityHistoryAdapter.ViewHolder> {
+
+    private final ActivityHistory history;
+
+    // Reused for every row, the adapter is only used on the UI thread
+    private final ActivityLog.Record record = new ActivityLog.Record();
+    private final Calendar calendar = Calendar.getInstance();
+
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView activity;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            activity = (TextView) itemView.findViewById(R.id.activity);
+        }
+    }
+
+    public ActivityHistoryAdapter(ActivityHistory history) {
+        this.history = history;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.activity_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        try {
+            history.get(position, record);
+        } catch (IOException e) {
+            Log.w("FILE-TAG", "Couldn't read activity " + position, e);
+            holder.activity.setText("");
+            return;
+        }
+
+        ActivityType activity = record.getActivity();
+        holder.activity.setText(getDate(record.startMillis) + " - " + getDate(record.endMillis)
+                + "  " + (activity == null ? "Unknown" : activity.getLabel()));
+    }
+
+    @Override
+    public int getItemCount() {
+        return history.size();
+    }
+
+    /**
+     * Gets the date of the time in the format: HH:mm PM
+     */
+    private String getDate(long millis) {
+        calendar.setTimeInMillis(millis);
+
+        String am_pm;
+        if (calendar.get(Calendar.AM_PM) == Calendar.AM) {
+            am_pm = "AM";
+        } else {
+            am_pm = "PM";
+        }
+
+        // Format the date
+        return String.format("%d:%02d %s",
+                calendar.get(Calendar.HOUR),
+                calendar.get(Calendar.MINUTE),
+                am_pm);
+    }
+}
@@ -5,23 +5,54 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
-public class ActivityMonitorService extends Service implements SensorEventListener, LocationListener {
+import michaelbishoff.activitymonitor.core.AccelerometerEngine;
+import michaelbishoff.activitymonitor.core.ActivityRules;
+import michaelbishoff.activitymonitor.core.ActivityStream;
+import michaelbishoff.activitymonitor.core.ActivityType;
+import michaelbishoff.activitymonitor.core.ActivityWindow;
+import michaelbishoff.activitymonitor.core.Classifier;
+import michaelbishoff.activitymonitor.core.DistanceAccumulator;
+import michaelbishoff.activitymonitor.core.FeatureExtractor;
+import michaelbishoff.activitymonitor.core.LocationFix;
+import michaelbishoff.activitymonitor.core.RuleClassifier;
+import michaelbishoff.activitymonitor.core.SampleSink;
+import michaelbishoff.activitymonitor.core.SampleSource;
+import michaelbishoff.activitymonitor.core.SensingScheduler;
+import michaelbishoff.activitymonitor.core.SensorArchiveWriter;
+import michaelbishoff.activitymonitor.core.SensorTraceWriter;
+import michaelbishoff.activitymonitor.core.ServiceMetrics;
+import michaelbishoff.activitymonitor.core.StationarityDetector;
+import michaelbishoff.activitymonitor.core.StepDetector;
+import michaelbishoff.activitymonitor.core.TraceReplayer;
+import michaelbishoff.activitymonitor.core.TreeClassifier;
+import michaelbishoff.activitymonitor.core.WalkingIntervals;
+import michaelbishoff.activitymonitor.core.WindowAccumulator;
+import michaelbishoff.activitymonitor.core.WindowCheckpoint;
+import michaelbishoff.activitymonitor.core.WindowScheduler;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+
+public class ActivityMonitorService extends Service implements LocationListener {
 
     // Binds the MainActivity and the Service
     private ActivityBinder activityBinder = new ActivityBinder();
@@ -30,28 +61,241 @@ public class ActivityMonitorService extends Service implements SensorEventListen
     // Accelerometer objects
     private SensorManager sensorManager;
     private Sensor accelerometer;
-    private final int SENSOR_DELAY = 100; // # of microseconds
+    private SampleSource accelerometerSource;
+
+    // The maximum time the sensor can hold samples in its FIFO before delivering them
+    public static final int DEFAULT_MAX_REPORT_LATENCY_US = 10000000; // # of microseconds
+    private int maxReportLatencyUs = DEFAULT_MAX_REPORT_LATENCY_US;
+
+    // The background thread that receives the sensor batches and location fixes and closes
+    // the windows, so none of them wake the UI thread
+    private HandlerThread sensorThread;
+    private Handler sensorHandler;
+
+    // The angles of the phone since the last interval closed. The sensor thread adds to it
+    // without locking, any thread can take a snapshot of it.
+    private final WindowAccumulator angleAccumulator = new WindowAccumulator(ActivityRules.ANGLE_PIVOT);
+
+    // The angles of the intervals of the current 2 minute window, only used on the sensor thread
+    private WindowAccumulator.Snapshot windowAngles = new WindowAccumulator.Snapshot(ActivityRules.ANGLE_PIVOT);
+
+    // Keeps the samples of the phone and hands their angles to the accumulator.
+    // Only used on the sensor thread.
+    private final AccelerometerEngine accelerometerEngine =
+            new AccelerometerEngine(AccelerometerEngine.DEFAULT_CAPACITY, angleAccumulator);
+
+    // The axis statistics and the step cadence of the window, only used on the sensor thread
+    private final FeatureExtractor featureExtractor = new FeatureExtractor();
+
+    // The timestamp of the last sample of the batch being delivered, on the sensor's clock.
+    // Only used on the sensor thread.
+    private long batchEndNanos;
+
+    // Counts the steps for the walking intervals and sees walking start within seconds.
+    // Only used on the sensor thread.
+    private final StepDetector stepDetector = new StepDetector(new StepDetector.Listener() {
+        @Override
+        public void onWalkingChanged(boolean walking, long timestampNanos, int cadence) {
+            Log.i("STEP-TAG", (walking ? "Walking at " + cadence + " steps/min" : "Stopped walking")
+                    + ", " + stepDetector.getStepCount() + " steps so far");
+
+            // Whether they sit or lie down after stopping is left to the window
+            ActivityWindow lastWindow = activityStream.getLastWindow();
+            if (walking && (lastWindow == null || lastWindow.activity != ActivityType.WALKING)) {
+                long endMillis = System.currentTimeMillis();
+                // The sensor's clock isn't elapsedRealtime on every phone, the step is in the batch just delivered
+                long startMillis = endMillis - (batchEndNanos - timestampNanos) / 1000000;
+                // No features until the window closes, extracting them here would allocate
+                activityStream.publishEarly(new ActivityWindow(startMillis, endMillis, ActivityType.WALKING, 1f,
+                        windowAngles.getMean(), walkingIntervals.getNumIntervalsWalking(), null));
+            }
+        }
+    });
+
+    // Adds each delivered burst to the engine as one batch
+    private final SampleSink accelerometerSink = new SampleSink() {
+        @Override
+        public void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+            long start = System.nanoTime();
+
+            accelerometerEngine.onSamples(timestamps, xs, ys, zs, count);
+            featureExtractor.onSamples(timestamps, xs, ys, zs, count);
+            if (count > 0) {
+                batchEndNanos = timestamps[count - 1];
+            }
+            stepDetector.onSamples(timestamps, xs, ys, zs, count);
+            scheduler.onBatch(SystemClock.elapsedRealtime(), accelerometerEngine.getBatchAngleVariance());
+            // The sensor's clock isn't elapsedRealtime on every phone
+            stationarityDetector.onSamples(SystemClock.elapsedRealtime(), timestamps, xs, ys, zs, count);
+            recordSamples(timestamps, xs, ys, zs, count);
 
-    // The average angle of the phone and the number of angles used in the average
-    double averageAngle = 0;
-    int averageAngleCount = 0;
+            metrics.onBatch(count, System.nanoTime() - start);
+        }
+    };
+
+    // The rates and latencies of every stage, printed by dumpsys
+    private final ServiceMetrics metrics = new ServiceMetrics(SystemClock.elapsedRealtime());
+
+
+    // Decides the accelerometer and location rates, and the rates currently in use.
+    // Created on the sensor thread, dumpsys reads it from a binder thread.
+    private volatile SensingScheduler scheduler;
+    private int samplingPeriodUs = SensingScheduler.Level.ACTIVE.samplingPeriodUs;
+    private long locationIntervalMillis = SensingScheduler.Level.ACTIVE.locationIntervalMillis;
+
+    private final SensingScheduler.Listener schedulerListener = new SensingScheduler.Listener() {
+        @Override
+        public void onLevelChanged(SensingScheduler.Level from, final SensingScheduler.Level to, String reason,
+                                   double wakeupsPerHour, double fixesPerHour) {
+            Log.i("SCHED-TAG", String.format("%s -> %s (%s), %.0f wakeups/h and %.0f fixes/h at %s",
+                    from, to, reason, wakeupsPerHour, fixesPerHour, from));
+
+            // Applies the rates on the sensor thread, where the location listener lives
+            sensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyLevel(to);
+                }
+            });
+        }
+    };
+
+    // Turns the location providers off while the phone is lying still, and back on when it moves.
+    // Created on the sensor thread, dumpsys reads it from a binder thread.
+    private volatile StationarityDetector stationarityDetector;
+
+    // Whether the location updates are off because the phone is still, only used on the sensor thread
+    private boolean locationSuspended = false;
+
+    // Wakes the detector and the scheduler as soon as the phone is picked up, null if the phone
+    // doesn't have one. Whether the one shot trigger is armed, only used on the sensor thread.
+    private Sensor significantMotion;
+    private boolean significantMotionRequested = false;
+
+    private final StationarityDetector.Listener stationarityListener = new StationarityDetector.Listener() {
+        @Override
+        public void onStill(long nowMillis) {
+            Log.i("SCHED-TAG", "Still, location updates off");
+            locationSuspended = true;
+            locationManager.removeUpdates(ActivityMonitorService.this);
+            updateSignificantMotionTrigger();
+        }
 
+        @Override
+        public void onMoving(long nowMillis, String reason) {
+            Log.i("SCHED-TAG", "Moving (" + reason + "), location updates on");
+            locationSuspended = false;
+            updateSignificantMotionTrigger();
+            requestLocationUpdates();
+        }
+    };
+
+    // The trigger is one shot and delivered on the main thread, the detector and the scheduler
+    // are told on the sensor thread
+    private final TriggerEventListener significantMotionListener = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            sensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    significantMotionRequested = false;
+                    long now = SystemClock.elapsedRealtime();
+                    stationarityDetector.onSignificantMotion(now);
+                    scheduler.onSignificantMotion(now);
+                }
+            });
+        }
+    };
 
     // Location objects
     private LocationManager locationManager;
-    private Location previousLocation;
-    private Location previousGpsLocation;
+    private final DistanceAccumulator distanceAccumulator = new DistanceAccumulator();
+
+    // Reused for every location update, they all arrive on the sensor thread
+    private final LocationFix locationFix = new LocationFix();
 
     // The 6, 20 second intervals for determining if the user is walking
-    boolean[] isWalkingInterval = new boolean[6];
-    int isWalkingIntervalIndex = 0;
-    // The number of intervals that the user is walking, out of 6 total
-    int numIntervalsWalking = 0;
+    private final WalkingIntervals walkingIntervals = new WalkingIntervals();
+
+    // Closes the intervals and windows at exact elapsedRealtime boundaries
+    private WindowScheduler windowScheduler;
+
+    // Wakes the sensor thread when the next interval or window closes
+    private final Runnable windowTask = new Runnable() {
+        @Override
+        public void run() {
+            if (windowScheduler.advanceTo(SystemClock.elapsedRealtime()) > 0) {
+                saveCheckpoint();
+            }
+            scheduleWindows();
+        }
+    };
+
+    // The intervals of the window in progress that have closed, only used on the sensor thread
+    private int intervalsDone = 0;
+
+    // Saves the window in progress after every interval, so a restarted process carries on with it
+    private File checkpointFile;
+    private final WindowCheckpoint checkpoint = new WindowCheckpoint();
+
+    // Records whether the user walked during each 20 second interval
+    private final WindowScheduler.WindowListener intervalListener = new WindowScheduler.WindowListener() {
+        @Override
+        public void onWindowClosed(long startMillis, long endMillis) {
+            // How far the user moved during the interval, added up from every
+            // fix as it arrived. NaN until there has been a usable fix.
+            boolean hadFix = distanceAccumulator.getFixesSinceTake() > 0;
+            double distance = distanceAccumulator.takeDistance();
+            int steps = stepDetector.takeSteps();
+
+            metrics.onInterval(hadFix);
+
+            // Without fixes because the phone is lying still, the user didn't go anywhere
+            if (distance != distance && locationSuspended) {
+                distance = 0;
+            }
+            // Indoors there may be steps without any fixes
+            if (distance == distance || steps > 0) {
+                walkingIntervals.record(distance, steps);
+            }
+
+            // Intervals close before the window they end, so the window gets all 6 of them
+            windowAngles = windowAngles.plus(angleAccumulator.snapshotAndReset());
+
+            scheduler.onInterval(endMillis, walkingIntervals.getNumIntervalsWalking(), windowAngles.getVariance());
+            intervalsDone++;
+        }
+    };
+
+    // Classifies each 2 minute window
+    private final WindowScheduler.WindowListener windowListener = new WindowScheduler.WindowListener() {
+        @Override
+        public void onWindowClosed(long startMillis, long endMillis) {
+            closeWindow(startMillis, endMillis);
+        }
+    };
 
-    // Earth circumference in meters
-    public static final double EARTH_CIRCUMFERENCE = 6378137;
-    // The minimum distance the user needs to walk to be registered as "walking"
-    public static final double MIN_WALK_DISTANCE = 0.5;
+    // Decides the activity of each window. The rules, unless a model was loaded.
+    private volatile Classifier classifier = new RuleClassifier();
+
+    // The inputs of the window that's being classified, only used on the sensor thread
+    private final float[] classifierInputs = new float[Classifier.NUM_INPUTS];
+
+    // Pushes the classified windows to every subscriber on its own thread
+    private final ActivityStream activityStream = new ActivityStream();
+
+    // Records what the sensors see when trace recording is on, for replaying them later
+    private SensorTraceWriter traceWriter;
+
+    // Keeps the raw samples and fixes compactly when archiving is on, for tuning the classification
+    private SensorArchiveWriter archiveWriter;
+
+    // The directory in the app's external files where traces are recorded
+    public static final String TRACE_DIRECTORY = "traces";
+
+    // The directory in the app's external files where the sensor archives are kept
+    public static final String ARCHIVE_DIRECTORY = "archive";
+    public static final String ARCHIVE_EXTENSION = ".ama";
 
 
     public ActivityMonitorService() { }
@@ -64,228 +308,478 @@ public class ActivityMonitorService extends Service implements SensorEventListen
      */
     public void createService() {
 
+        // Already started by an earlier connection, e.g. before the activity was recreated
+        if (sensorThread != null) {
+            return;
+        }
+
+        // The sensor batches are delivered on their own thread
+        sensorThread = new HandlerThread("ActivityMonitorSensors", Process.THREAD_PRIORITY_BACKGROUND);
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+
+        // Registering the sensors and the providers takes a while, so it's done on the
+        // sensor thread and onServiceConnected() returns straight away
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startSensing();
+            }
+        });
+    }
+
+    /**
+     * Registers the accelerometer and the location providers, carries on with the window that
+     * was in progress if the process was restarted, and starts closing the windows.
+     * Runs on the sensor thread.
+     */
+    private void startSensing() {
+        // Steps the sampling rates down while the user is still
+        scheduler = new SensingScheduler(SystemClock.elapsedRealtime(), schedulerListener);
+
+        // Turns the location providers off altogether while the phone is still
+        stationarityDetector = new StationarityDetector(SystemClock.elapsedRealtime(), stationarityListener);
+
+        loadClassifier();
+
         // Get access to the Sensor Service
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
 
         // Get access to the Sensor
         accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        significantMotion = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
 
-        // Ask to sample the accelerometer at a normal rate
-        // and specify the maximum report latency (DELAY)
-        sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_NORMAL, SENSOR_DELAY);
+        startAccelerometer();
 
         // Get access to the location manager
         locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
 
-        // Need to check if we have permission to get location information (auto completed from
-        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
-                && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            // TODO: Consider calling
-            //    ActivityCompat#requestPermissions
-            // here to request the missing permissions, and then overriding
-            //   public void onRequestPermissionsResult(int requestCode, String[] permissions,
-            //                                          int[] grantResults)
-            // to handle the case where the user grants the permission. See the documentation
-            // for ActivityCompat#requestPermissions for more details.
-            return;
-        }
+        requestLocationUpdates();
 
-        // Need to request GPS and Network Provider so we can call getLastKnownLocation()
-        // GPS or Network provider (indoors) for triangulation, minTime in miliseconds between
-        // updates 0 is fast as possible, minDistance how far the user has to move before we read
-        // another value 0 because we don't move a lot
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
-        locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this);
+        // Closes the 20 second intervals and the 2 minute windows on the sensor thread.
+        // They share one origin, so every window is made of exactly 6 intervals.
+        // A restored window keeps the intervals it had, and closes after the rest of them.
+        long now = SystemClock.elapsedRealtime();
+        checkpointFile = new File(getFilesDir(), WindowCheckpoint.FILENAME);
+        int restoredIntervals = restoreCheckpoint(now);
 
+        windowScheduler = new WindowScheduler(now - restoredIntervals * WalkingIntervals.INTERVAL_MILLIS);
+        windowScheduler.addTumblingWindow(WalkingIntervals.INTERVAL_MILLIS, intervalListener);
+        windowScheduler.addTumblingWindow(WalkingIntervals.WINDOW_MILLIS, windowListener);
+        windowScheduler.skipTo(now);
+        scheduleWindows();
+    }
 
-        // Gets the user's activity every 2 minutes
-        final Handler handler = new Handler();
-        Timer timer = new Timer();
-        TimerTask asyncTask = new TimerTask() {
-            @Override
-            public void run() {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-
-                        // Need to check if we have permission to get location information (auto completed from
-                        // locationManager_.requestLocationUpdates(LocationManager.GPS_PROVIDER, 10, 0, this); vv
-                        if (ActivityCompat.checkSelfPermission(ActivityMonitorService.this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
-                                && ActivityCompat.checkSelfPermission(ActivityMonitorService.this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-                            // TODO: Consider calling
-                            //    ActivityCompat#requestPermissions
-                            // here to request the missing permissions, and then overriding
-                            //   public void onRequestPermissionsResult(int requestCode, String[] permissions,
-                            //                                          int[] grantResults)
-                            // to handle the case where the user grants the permission. See the documentation
-                            // for ActivityCompat#requestPermissions for more details.
-                            return;
-                        }
-
-                        Location networkLoc = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-                        Location gpsLoc = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-
-
-                        if (gpsLoc == null || networkLoc == null) {
-                            Log.d("LOC-TAG", "GPS or Network is null");
-                        }
-
-//                        Log.d("LOC-TAG", "Last Location GPS = " + gpsLoc);
-//                        Log.d("LOC-TAG", "Last Location Net = " + networkLoc);
-
-//                        Log.d("LOC-TAG", String.format("Loc time GPS: %d", gpsLoc.getTime()));
-//                        Log.d("LOC-TAG", String.format("Loc time Net: %d", networkLoc.getTime()));
-
-
-                        // Set the previous location if it is not already set
-                        if (previousLocation == null) {
-
-                            // Sets the initial previous locaiotn to the freshest location
-                            if (gpsLoc.getTime() > networkLoc.getTime()) {
-                                previousLocation = gpsLoc;
-                            } else {
-                                previousLocation = networkLoc;
-                            }
-
-                            // Record the previous GPS location so we can see we are inside or not
-                            previousGpsLocation = gpsLoc;
-
-                            return;
-                        }
-
-
-                        // The current location
-                        Location loc;
-
-                        // If GPS location is not changing, we are inside. So take the network location
-                        if (previousGpsLocation.getTime() == gpsLoc.getTime()) {
-                            loc = networkLoc;
-                        }
-                        // Use the GPS location otherwise because it's more accurate
-                        else {
-                            loc = gpsLoc;
-                        }
-
-                        double lat = loc.getLatitude();
-                        double lng = loc.getLongitude();
-
-                        double prevLat = previousLocation.getLatitude();
-                        double prevLng = previousLocation.getLongitude();
-
-                        // Calculates the Great Circle Distance for the
-                        // true distance that the user walked
-
-                        double radLat = Math.toRadians(prevLat - lat);
-                        double radLng = Math.toRadians(prevLng - lng);
-
-                        double a = Math.pow(Math.sin(radLat / 2), 2)
-                                + Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(prevLat)) * Math.pow(Math.sin(radLng / 2), 2);
-                        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-
-                        double distance = EARTH_CIRCUMFERENCE * c;
-
-//                        Log.d("LOC-TAG", String.format("Distance: %.10f", distance));
-
-                        if (distance > MIN_WALK_DISTANCE) {
-                            // They weren't walking (at this interval), and are currently walking.
-                            // Increase the number of walking indicies in the 2 minute interval
-                            if (!isWalkingInterval[isWalkingIntervalIndex]) {
-                                isWalkingInterval[isWalkingIntervalIndex] = true;
-                                numIntervalsWalking++;
-                            }
-
-                        } else {
-                            // They were walking (at this index), and are currently NOT walking
-                            // Decrease the number of walking indicies in the 2 minute interval
-                            if (isWalkingInterval[isWalkingIntervalIndex]) {
-                                isWalkingInterval[isWalkingIntervalIndex] = false;
-                                numIntervalsWalking--;
-                            }
-                        }
-
-                        // Increments to the next interval and loops around the array
-                        isWalkingIntervalIndex = (isWalkingIntervalIndex + 1) % 6;
-
-                        // Record the previous locations
-                        previousLocation = loc;
-                        previousGpsLocation = gpsLoc;
-                    }
-                });
+    /**
+     * Uses the decision tree in the app's files if one was pushed there, or else the one
+     * bundled in the assets. Keeps the rules if there's neither or they can't be read.
+     */
+    private void loadClassifier() {
+        File file = new File(getFilesDir(), TreeClassifier.FILENAME);
+        try {
+            TreeClassifier tree;
+            if (file.exists()) {
+                tree = TreeClassifier.read(file);
+            } else {
+                InputStream stream;
+                try {
+                    stream = getAssets().open(TreeClassifier.FILENAME);
+                } catch (IOException e) {
+                    // No bundled model
+                    return;
+                }
+                try {
+                    tree = TreeClassifier.read(stream);
+                } finally {
+                    stream.close();
+                }
             }
-        };
+            classifier = tree;
+            Log.i("CLASSIFY-TAG", "Loaded a tree of " + tree.getNodeCount() + " nodes");
+        } catch (IOException e) {
+            Log.w("CLASSIFY-TAG", "Couldn't load the model, using the rules", e);
+        }
+    }
+
+    /**
+     * Puts back the window that was in progress when the process was last stopped, if it was
+     * recently enough, and returns how many of its intervals were done. The last classified
+     * window is the activity straight away, so getActivity() doesn't wait for a whole window.
+     */
+    private int restoreCheckpoint(long nowElapsed) {
+        WindowCheckpoint saved;
+        try {
+            saved = WindowCheckpoint.read(checkpointFile);
+        } catch (IOException e) {
+            Log.w("CHECKPOINT-TAG", "Couldn't read the checkpoint", e);
+            return 0;
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        if (saved == null || !saved.isFresh(nowMillis)) {
+            return 0;
+        }
+
+        windowAngles = saved.restore(nowMillis, nowElapsed, walkingIntervals, distanceAccumulator);
+        if (saved.lastWindow != null) {
+            activityStream.restoreLastWindow(saved.lastWindow);
+        }
+        intervalsDone = saved.intervalsDone;
+        Log.i("CHECKPOINT-TAG", "Restored " + intervalsDone + " intervals, saved "
+                + (nowMillis - saved.savedMillis) + " ms ago");
+        return intervalsDone;
+    }
+
+    /**
+     * Saves the window in progress. Runs on the sensor thread after intervals close.
+     */
+    private void saveCheckpoint() {
+        checkpoint.capture(System.currentTimeMillis(), SystemClock.elapsedRealtime(), intervalsDone,
+                walkingIntervals, windowAngles, distanceAccumulator, activityStream.getLastWindow());
+        try {
+            checkpoint.write(checkpointFile);
+        } catch (IOException e) {
+            Log.w("CHECKPOINT-TAG", "Couldn't write the checkpoint", e);
+        }
+    }
+
+    /**
+     * Adds a subscriber that is pushed every classified window and every change of activity.
+     * They are delivered on a background thread, see ActivityStream.
+     */
+    public ActivityStream.Subscription subscribe(ActivityStream.Subscriber subscriber) {
+        return activityStream.subscribe(subscriber);
+    }
 
-        // Get the location every 20 seconds
-        timer.schedule(asyncTask, 0, 20000);
+    public void unsubscribe(ActivityStream.Subscriber subscriber) {
+        activityStream.unsubscribe(subscriber);
     }
 
     /**
-     * Returns the user's activity that we tracked
+     * Returns the user's activity in the last window, or null before the first window closes.
+     * Doesn't change anything, so any number of clients can call it.
      */
     public String getActivity() {
+        ActivityWindow window = activityStream.getLastWindow();
+        return window == null ? null : window.activity.getLabel();
+    }
 
-        String activity;
+    /**
+     * Replaces the classifier, from the next window on
+     */
+    public void setClassifier(Classifier classifier) {
+        this.classifier = classifier;
+    }
 
-        // If most of the 20 sec intervals are walking in the 2 minutes, then they're walking
-        if (numIntervalsWalking > 3) {
-            activity = "Walking";
-        } else if (averageAngle > 65.0 && averageAngle < 115.0) {
-            activity = "Sleeping";
-        } else {
-            activity = "Sitting";
+    /**
+     * Returns the counters and latencies of the service
+     */
+    public ServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the fraction of the time since sensing started that the location providers were
+     * on, i.e. that the phone wasn't lying still. 1 before sensing starts.
+     */
+    public double getLocationOnFraction() {
+        StationarityDetector stationarityDetector = this.stationarityDetector;
+        return stationarityDetector == null ? 1 : stationarityDetector.getLocationOnFraction(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Starts recording the accelerometer samples and location fixes to a new trace
+     * in the app's external "traces" directory, and returns the trace file
+     */
+    public synchronized File startTraceRecording() throws IOException {
+        stopTraceRecording();
+
+        File directory = getExternalFilesDir(TRACE_DIRECTORY);
+        if (directory == null) {
+            throw new IOException("External storage is not available");
         }
 
-        // Resets the average angle for the 2 minutes interval
-        averageAngle = 0;
-        averageAngleCount = 0;
+        File file = new File(directory, "trace-" + System.currentTimeMillis() + TraceReplayer.TRACE_EXTENSION);
+        traceWriter = new SensorTraceWriter(file);
+        return file;
+    }
 
-        return activity;
+    /**
+     * Stops recording the current trace, if there is one
+     */
+    public synchronized void stopTraceRecording() {
+        if (traceWriter != null) {
+            try {
+                traceWriter.close();
+            } catch (IOException e) {
+                Log.w("TRACE-TAG", "Couldn't close the trace", e);
+            }
+            traceWriter = null;
+        }
     }
 
+    /**
+     * Starts archiving the accelerometer samples and location fixes to a new file in the
+     * app's external "archive" directory, and returns the file. Unlike a trace, this is
+     * small enough to leave on for weeks.
+     */
+    public synchronized File startArchiving() throws IOException {
+        stopArchiving();
 
-    /* Accelerometer Methods */
+        File directory = getExternalFilesDir(ARCHIVE_DIRECTORY);
+        if (directory == null) {
+            throw new IOException("External storage is not available");
+        }
+
+        File file = new File(directory, "archive-" + System.currentTimeMillis() + ARCHIVE_EXTENSION);
+        archiveWriter = new SensorArchiveWriter(file);
+        return file;
+    }
+
+    /**
+     * Stops archiving, if it's on
+     */
+    public synchronized void stopArchiving() {
+        if (archiveWriter != null) {
+            try {
+                archiveWriter.close();
+            } catch (IOException e) {
+                Log.w("ARCHIVE-TAG", "Couldn't close the archive", e);
+            }
+            archiveWriter = null;
+        }
+    }
+
+    /**
+     * Records a batch of samples or a location fix in the current trace and archive. Stops
+     * recording if they can't be written, e.g. when the storage is full.
+     */
+    private synchronized void recordSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+        if (traceWriter != null) {
+            try {
+                traceWriter.writeSamples(timestamps, xs, ys, zs, count);
+            } catch (IOException e) {
+                Log.w("TRACE-TAG", "Couldn't write the trace", e);
+                stopTraceRecording();
+            }
+        }
+        if (archiveWriter != null) {
+            try {
+                archiveWriter.writeSamples(timestamps, xs, ys, zs, count);
+            } catch (IOException e) {
+                Log.w("ARCHIVE-TAG", "Couldn't write the archive", e);
+                stopArchiving();
+            }
+        }
+    }
+
+    private synchronized void recordLocation(LocationFix fix) {
+        if (traceWriter == null && archiveWriter == null) {
+            return;
+        }
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos();
+
+        if (traceWriter != null) {
+            try {
+                traceWriter.writeLocation(elapsedNanos, fix);
+            } catch (IOException e) {
+                Log.w("TRACE-TAG", "Couldn't write the trace", e);
+                stopTraceRecording();
+            }
+        }
+        if (archiveWriter != null) {
+            try {
+                archiveWriter.writeLocation(elapsedNanos, fix);
+            } catch (IOException e) {
+                Log.w("ARCHIVE-TAG", "Couldn't write the archive", e);
+                stopArchiving();
+            }
+        }
+    }
+
+    /**
+     * Sets how long the sensor may hold accelerometer samples before delivering them
+     * as one batch. 0 delivers every sample as soon as it's measured.
+     */
+    public void setMaxReportLatency(final int maxReportLatencyUs) {
+        if (sensorHandler == null) {
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            return;
+        }
+
+        // Registers the accelerometer again with the new latency, on the thread that registered it
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ActivityMonitorService.this.maxReportLatencyUs = maxReportLatencyUs;
+                if (accelerometerSource != null) {
+                    accelerometerSource.stop();
+                    startAccelerometer();
+                }
+            }
+        });
+    }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
 
-        Sensor sensor = event.sensor;
+    /* Window Methods */
+
+    /**
+     * Wakes the sensor thread up again when the next interval or window closes
+     */
+    private void scheduleWindows() {
+        sensorHandler.removeCallbacks(windowTask);
+        long delay = windowScheduler.nextDeadline() - SystemClock.elapsedRealtime();
+        sensorHandler.postDelayed(windowTask, Math.max(delay, 0));
+    }
+
+    /**
+     * Decides the user's activity for the window that just closed and resets it for the next one.
+     * The times are elapsedRealtime, the window that is sent out has wall clock times.
+     */
+    private void closeWindow(long startElapsed, long endElapsed) {
+        long start = System.nanoTime();
+
+        double averageAngle = windowAngles.getMean();
+        float[] features = new float[FeatureExtractor.NUM_FEATURES];
+        featureExtractor.getFeatures(features);
+
+        // Resets the average angle and the features for the 2 minutes interval
+        windowAngles = new WindowAccumulator.Snapshot(ActivityRules.ANGLE_PIVOT);
+        accelerometerEngine.resetWindow();
+        featureExtractor.resetWindow();
+        intervalsDone = 0;
+
+        int numIntervalsWalking = walkingIntervals.getNumIntervalsWalking();
+        RuleClassifier.putInputs(classifierInputs, features, numIntervalsWalking, averageAngle);
+        ActivityType activity = classifier.classify(classifierInputs);
+
+        long endMillis = System.currentTimeMillis() - (SystemClock.elapsedRealtime() - endElapsed);
+        long startMillis = endMillis - (endElapsed - startElapsed);
+        ActivityWindow window = new ActivityWindow(startMillis, endMillis, activity, 1f,
+                averageAngle, numIntervalsWalking, features);
+
+        // Only queues it, the subscribers get it on the stream's thread
+        activityStream.publish(window);
+
+        metrics.onWindow(System.nanoTime() - start);
+    }
 
-        if (sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
 
-            // Get the accelerometer data from the sensor
-            float acclX = event.values[0];
-            float acclY = event.values[1];
-            float acclZ = event.values[2];
+    /* Accelerometer Methods */
 
-            // Calculates the Y angle of the device in degrees
-            double yAngle = Math.acos(acclY / Math.sqrt(Math.pow(acclX, 2)
-                                                + Math.pow(acclY, 2)
-                                                + Math.pow(acclZ, 2))) * 180 / Math.PI;
+    /**
+     * Asks to sample the accelerometer at the scheduled rate, batched up to the maximum report latency
+     */
+    private void startAccelerometer() {
+        accelerometerSource = new AccelerometerSampleSource(sensorManager, accelerometer,
+                samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+        accelerometerSource.start(accelerometerSink);
+    }
+
+    /**
+     * Switches the accelerometer and the location providers to the rates of the level
+     */
+    private void applyLevel(SensingScheduler.Level level) {
+        if (accelerometerSource == null) {
+            return;
+        }
 
-            // Keeps a running average of the angle
-            averageAngle += (yAngle - averageAngle) / ++averageAngleCount;
+        if (samplingPeriodUs != level.samplingPeriodUs) {
+            samplingPeriodUs = level.samplingPeriodUs;
+            accelerometerSource.stop();
+            startAccelerometer();
+            // The step detector can't see steps below ACTIVE, significant motion brings it back
+            updateSignificantMotionTrigger();
+        }
 
-//            Log.d("MYTAG", String.format("x: %f\ny: %f\nz: %f", acclX, acclY, acclZ));
-//            Log.d("MYTAG", String.format("Y Angle: %f", yAngle));
-//            Log.d("MYTAG", String.format("Average Angle: %f", averageAngle));
+        if (locationIntervalMillis != level.locationIntervalMillis) {
+            locationIntervalMillis = level.locationIntervalMillis;
+            // Picked up with the new interval when the phone moves again
+            if (!locationSuspended) {
+                requestLocationUpdates();
+            }
         }
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+    /**
+     * Arms the significant motion trigger while the location updates are off or the accelerometer
+     * is slowed down, and disarms it once neither is
+     */
+    private void updateSignificantMotionTrigger() {
+        if (significantMotion == null) {
+            return;
+        }
+        boolean wanted = locationSuspended || samplingPeriodUs != SensingScheduler.Level.ACTIVE.samplingPeriodUs;
+        if (wanted && !significantMotionRequested) {
+            significantMotionRequested = sensorManager.requestTriggerSensor(significantMotionListener, significantMotion);
+        } else if (!wanted && significantMotionRequested) {
+            sensorManager.cancelTriggerSensor(significantMotionListener, significantMotion);
+            significantMotionRequested = false;
+        }
+    }
 
 
     /* Location Services Methods */
+
+    /**
+     * Requests GPS and network location updates at the scheduled interval, replacing
+     * any earlier request. Returns false if we don't have permission.
+     */
+    private boolean requestLocationUpdates() {
+        // Need to check if we have permission to get location information (auto completed from
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
+                && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            // TODO: Consider calling
+            //    ActivityCompat#requestPermissions
+            // here to request the missing permissions, and then overriding
+            //   public void onRequestPermissionsResult(int requestCode, String[] permissions,
+            //                                          int[] grantResults)
+            // to handle the case where the user grants the permission. See the documentation
+            // for ActivityCompat#requestPermissions for more details.
+            return false;
+        }
+
+        locationManager.removeUpdates(this);
+
+        // GPS or Network provider (indoors) for triangulation, minTime in miliseconds between
+        // updates comes from the scheduler (0 is fast as possible), minDistance how far the user
+        // has to move before we read another value 0 because we don't move a lot
+        // The fixes are delivered on the sensor thread, next to the windows that use them
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, locationIntervalMillis, 0, this,
+                sensorThread.getLooper());
+        locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, locationIntervalMillis, 0, this,
+                sensorThread.getLooper());
+        return true;
+    }
+
     /*
-       Only "implemented" so that we have a LocationListener. We use getLastKnownLocation which
-       requires there to be a listener listening
+       Every fix from either provider is streamed into the distance accumulator,
+       so the 20 second intervals only read the distance that was added up
      */
     @Override
     public void onLocationChanged(Location location) {
-        // Assigns the previous location initially, then uses the 20 second
-        // interval for all following location data
-        if (previousLocation == null) {
-            previousLocation = location;
+        LocationFix fix = toFix(location, locationFix);
+
+        if (scheduler != null) {
+            scheduler.onFix();
         }
+        metrics.onFix(fix.provider);
+
+        // Adds the distance from the previous fix, if the fix is accurate and fresh enough
+        distanceAccumulator.onFix(fix, SystemClock.elapsedRealtime());
+
+        recordLocation(fix);
+    }
+
+    /**
+     * Copies an Android location into the LocationFix and returns it
+     */
+    private static LocationFix toFix(Location location, LocationFix fix) {
+        int provider = LocationManager.GPS_PROVIDER.equals(location.getProvider())
+                ? LocationFix.PROVIDER_GPS : LocationFix.PROVIDER_NETWORK;
+        fix.set(provider, location.getLatitude(), location.getLongitude(),
+                location.getTime(), location.getAccuracy());
+        return fix;
     }
 
     @Override
@@ -299,6 +793,101 @@ public class ActivityMonitorService extends Service implements SensorEventListen
 
 
     /* Bounded Service Methods */
+    @Override
+    public void onDestroy() {
+        stopTraceRecording();
+        stopArchiving();
+        activityStream.close();
+        if (sensorThread != null) {
+            // Unregisters on the sensor thread, after startSensing() if it hasn't run yet
+            sensorHandler.removeCallbacks(windowTask);
+            sensorHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (accelerometerSource != null) {
+                        accelerometerSource.stop();
+                    }
+                    if (locationManager != null) {
+                        locationManager.removeUpdates(ActivityMonitorService.this);
+                    }
+                    if (significantMotion != null) {
+                        sensorManager.cancelTriggerSensor(significantMotionListener, significantMotion);
+                    }
+                    sensorHandler.removeCallbacks(windowTask);
+                }
+            });
+            sensorThread.quitSafely();
+        }
+
+        super.onDestroy();
+    }
+
+    /**
+     * Prints the metrics for "adb shell dumpsys activity service ActivityMonitorService".
+     * Passing "reset" starts them again from 0 after printing, and "trace start" or
+     * "trace stop" starts or stops recording a trace, e.g. to replay on a desktop.
+     * "archive start" and "archive stop" do the same for the compact archive.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        long now = SystemClock.elapsedRealtime();
+        metrics.dump(writer, now);
+
+        SensingScheduler scheduler = this.scheduler;
+        if (scheduler != null) {
+            scheduler.dump(writer, now);
+        }
+        StationarityDetector stationarityDetector = this.stationarityDetector;
+        if (stationarityDetector != null) {
+            writer.println(String.format("location: %s, on %.1f%% of the time, suspended %d times",
+                    stationarityDetector.isStill() ? "off (still)" : "on",
+                    stationarityDetector.getLocationOnFraction(now) * 100, stationarityDetector.getSuspensions()));
+        }
+        writer.println("steps: " + stepDetector.getStepCount() + ", cadence " + stepDetector.getCadence());
+        writer.println("distance: accepted=" + distanceAccumulator.getAcceptedFixes()
+                + " inaccurate=" + distanceAccumulator.getInaccurateFixes()
+                + " stale=" + distanceAccumulator.getStaleFixes());
+        writer.println("classifier: " + classifier.getClass().getSimpleName());
+        writer.println("last window: " + activityStream.getLastWindow());
+        synchronized (this) {
+            if (archiveWriter != null) {
+                writer.println("archive: " + archiveWriter.getArchivedBytes() + " bytes, "
+                        + archiveWriter.getTraceBytes() + " as a trace");
+            }
+        }
+        for (ActivityStream.Subscription subscription : activityStream.getSubscriptions()) {
+            writer.println("subscriber " + subscription.getSubscriber().getClass().getName()
+                    + ": delivered=" + subscription.getDelivered() + " dropped=" + subscription.getDropped());
+        }
+
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            metrics.reset(now);
+            writer.println("metrics reset");
+        } else if (args != null && args.length > 1 && "trace".equals(args[0])) {
+            if ("start".equals(args[1])) {
+                try {
+                    writer.println("recording trace " + startTraceRecording());
+                } catch (IOException e) {
+                    writer.println("couldn't start the trace: " + e.getMessage());
+                }
+            } else {
+                stopTraceRecording();
+                writer.println("trace stopped");
+            }
+        } else if (args != null && args.length > 1 && "archive".equals(args[0])) {
+            if ("start".equals(args[1])) {
+                try {
+                    writer.println("archiving to " + startArchiving());
+                } catch (IOException e) {
+                    writer.println("couldn't start the archive: " + e.getMessage());
+                }
+            } else {
+                stopArchiving();
+                writer.println("archive stopped");
+            }
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return activityBinder;
@@ -313,5 +902,9 @@ public class ActivityMonitorService extends Service implements SensorEventListen
         public ActivityMonitorService getService() {
             return ActivityMonitorService.this;
         }
+
+        public ServiceMetrics getMetrics() {
+            return metrics;
+        }
     }
 }
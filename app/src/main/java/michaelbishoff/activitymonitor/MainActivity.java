@@ -4,98 +4,230 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
 
+import michaelbishoff.activitymonitor.core.ActivityExporter;
+import michaelbishoff.activitymonitor.core.ActivityHistory;
+import michaelbishoff.activitymonitor.core.ActivityLog;
+import michaelbishoff.activitymonitor.core.ActivityLogImporter;
+import michaelbishoff.activitymonitor.core.ActivityRollups;
+import michaelbishoff.activitymonitor.core.ActivityStream;
+import michaelbishoff.activitymonitor.core.ActivityType;
+import michaelbishoff.activitymonitor.core.ActivityWindow;
+
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TimeZone;
 
 public class MainActivity extends AppCompatActivity {
 
-    // The Lists used for the ListView
-    private ArrayList<String> activityList;
-    private ArrayAdapter<String> activityListAdapter;
+    // The activities shown in the list, the newest in memory and the rest paged from the log
+    private ActivityHistory activityHistory;
+    private ActivityHistoryAdapter activityListAdapter;
+    private RecyclerView activityListView;
+    private LinearLayoutManager activityListLayout;
+
+    // Shows how long the user spent in each activity today
+    private Toolbar toolbar;
 
     // The Bounded Service objects
     private ActivityMonitorService.ActivityBinder binder;
     private ActivityMonitorService activityMonitorService;
     private boolean connected = false;
 
-    // The previous date for the
-    private String previousDate;
+    // Whether bindService() was called, so onDestroy() knows to unbind
+    private boolean bound = false;
+
+    // The binary log of activities, null if external storage isn't writable
+    private ActivityLog activityLog;
+
+    // The time spent in each activity per hour, kept next to the log. Null without the log.
+    private ActivityRollups activityRollups;
+
+    // The log and the rollups opened on the background thread, until the UI thread takes them.
+    // onDestroy() closes them if the activity is gone before then.
+    private final Object openLock = new Object();
+    private ActivityLog openedLog;
+    private ActivityRollups openedRollups;
+    private boolean destroyed = false;
+
+    public static final String OUTPUT_FILENAME = "activities.bin";
+
+    // The text file that older versions wrote, imported into the binary log
+    public static final String LEGACY_OUTPUT_FILENAME = "activities.txt";
 
-    public static final String OUTPUT_FILENAME = "activities.txt";
+    public static final String ROLLUP_FILENAME = "activities.rollup";
+
+    // The exports are written next to the log, with the extension of their format
+    public static final String EXPORT_FILENAME = "activities-export";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        activityList = new ArrayList<>();
-        activityListAdapter = new ArrayAdapter<String>(this, R.layout.activity_item, R.id.activity, activityList);
-
-        // Binds the service. Calls the onServiceConnected() method below
-        Intent serviceIntent = new Intent(this, ActivityMonitorService.class);
-        bindService(serviceIntent, serviceConnection, BIND_AUTO_CREATE);
+        activityListLayout = new LinearLayoutManager(this);
+        activityListView = (RecyclerView) findViewById(R.id.activityList);
+        activityListView.setLayoutManager(activityListLayout);
 
-        // Gets the user's activity every 2 minutes
-        final Handler handler = new Handler();
-        Timer timer = new Timer();
-        TimerTask asyncTask = new TimerTask() {
+        // The import and the rollup catch up can take seconds, the list is filled in once they're done
+        new Thread("ActivityLogOpen") {
             @Override
             public void run() {
-                handler.post(new Runnable() {
+                if (!openActivityLogAndRollups()) {
+                    return;
+                }
+                uiHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (connected) {
+                        onActivityLogOpened();
+                    }
+                });
+            }
+        }.start();
+    }
 
-                            // Get the activity from the service
-                            String activity = activityMonitorService.getActivity();
+    /**
+     * Opens the log and the rollups, and catches the rollups up with the log. Runs on a
+     * background thread, and hands them over to the UI thread in openedLog and openedRollups.
+     * Returns false if the activity was destroyed first, they're closed again then.
+     */
+    private boolean openActivityLogAndRollups() {
+        ActivityLog log = null;
+        if (isExternalStorageWritable()) {
+            try {
+                log = openActivityLog();
+            } catch (IOException e) {
+                Log.w("FILE-TAG", "Couldn't open the activity log", e);
+            }
+        } else {
+            Log.d("FILE-TAG", "External Storage is NOT Writable!");
+        }
 
-                            String date = getDate();
+        ActivityRollups rollups = null;
+        if (log != null) {
+            try {
+                rollups = new ActivityRollups(
+                        new File(log.getFile().getParentFile(), ROLLUP_FILENAME), TimeZone.getDefault());
+
+                // Catches up with anything logged since the rollups were last written, e.g. the import
+                rollups.update(log);
+            } catch (IOException e) {
+                Log.w("FILE-TAG", "Couldn't open the activity rollups", e);
+                if (rollups != null) {
+                    closeQuietly(rollups);
+                }
+                rollups = null;
+            }
+        }
 
-                            String formattedActivity = previousDate + " - " + date + "  " + activity;
+        synchronized (openLock) {
+            if (destroyed) {
+                if (rollups != null) {
+                    closeQuietly(rollups);
+                }
+                if (log != null) {
+                    closeQuietly(log);
+                }
+                return false;
+            }
+            openedLog = log;
+            openedRollups = rollups;
+        }
+        return true;
+    }
 
-                            // Adds the time and activity to list
-                            activityList.add(0, formattedActivity);
-                            updateUI();
+    /**
+     * Sets up the list with the opened log and binds the service, on the UI thread
+     */
+    private void onActivityLogOpened() {
+        synchronized (openLock) {
+            // Posted just before onDestroy() removed the callbacks, it closes the log
+            if (destroyed) {
+                return;
+            }
+            activityLog = openedLog;
+            activityRollups = openedRollups;
+            openedLog = null;
+            openedRollups = null;
+        }
+        updateSummary();
 
-                            // Stores the new start date
-                            previousDate = date;
+        // The list is set up once, new activities are inserted at the top
+        activityHistory = new ActivityHistory(activityLog);
+        activityListAdapter = new ActivityHistoryAdapter(activityHistory);
+        activityListView.setAdapter(activityListAdapter);
 
-                            if (isExternalStorageWritable()) {
-                                writeActivity(formattedActivity + "\n");
-                            } else {
-                                Log.d("FILE-TAG", "External Storage is NOT Writable!");
-                            }
-                        }
-                    }
-                });
+        // Binds the service once there's a list for its windows. Calls the onServiceConnected() method below
+        Intent serviceIntent = new Intent(this, ActivityMonitorService.class);
+        bound = bindService(serviceIntent, serviceConnection, BIND_AUTO_CREATE);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (connected) {
+            activityMonitorService.unsubscribe(windowSubscriber);
+        }
+        if (bound) {
+            unbindService(serviceConnection);
+            bound = false;
+        }
+        // Windows that were posted but not shown yet would be written to a closed log
+        uiHandler.removeCallbacksAndMessages(null);
+
+        // A log opened in the background that the UI thread never took is closed below
+        synchronized (openLock) {
+            destroyed = true;
+            if (openedLog != null) {
+                activityLog = openedLog;
+                activityRollups = openedRollups;
+                openedLog = null;
+                openedRollups = null;
             }
-        };
+        }
 
-        // Get the user's activity every 2 minutes
-        timer.schedule(asyncTask, 0, 120000);
+        if (activityRollups != null) {
+            try {
+                activityRollups.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            activityRollups = null;
+        }
+
+        if (activityLog != null) {
+            try {
+                activityLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            activityLog = null;
+        }
 
-        // Format the current date
-        previousDate = getDate();
+        super.onDestroy();
     }
 
     @Override
@@ -116,6 +248,14 @@ public class MainActivity extends AppCompatActivity {
         if (id == R.id.action_settings) {
             return true;
         }
+        if (id == R.id.action_export_csv) {
+            exportActivities(ActivityExporter.Format.CSV);
+            return true;
+        }
+        if (id == R.id.action_export_jsonl) {
+            exportActivities(ActivityExporter.Format.JSON_LINES);
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
@@ -139,6 +279,9 @@ public class MainActivity extends AppCompatActivity {
             // Now the Activity is bound to the Service and we can call the
             // public methods defined in the activityMonitorService class
 
+            // Gets the user's activity every 2 minutes, when the service closes a window
+            activityMonitorService.subscribe(windowSubscriber);
+
             // Resumes the service
             activityMonitorService.createService();
         }
@@ -149,33 +292,37 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
-    /**
-     * Updates the list view with the new activities
-     */
-    public void updateUI() {
-        ListView listView = (ListView) findViewById(R.id.activityList);
-        listView.setAdapter(activityListAdapter);
-    }
+    // Runs the windows pushed by the service on the UI thread
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
 
     /**
-     * Gets the date in the format: HH:mm PM
+     * Adds every window the service classifies to the list and the activity log
      */
-    public String getDate() {
-        String am_pm;
-        if (Calendar.getInstance().get(Calendar.AM_PM) == Calendar.AM) {
-            am_pm = "AM";
-        } else {
-            am_pm = "PM";
-        }
+    private ActivityStream.Subscriber windowSubscriber = new ActivityStream.Subscriber() {
+        @Override
+        public void onActivityWindows(ActivityWindow[] windows, int count, int dropped) {
+            if (dropped > 0) {
+                Log.w("STREAM-TAG", "Fell behind, " + dropped + " windows weren't shown");
+            }
 
-        // Format the current date
-        String date = String.format("%d:%02d %s",
-                Calendar.getInstance().get(Calendar.HOUR),
-                Calendar.getInstance().get(Calendar.MINUTE),
-                am_pm);
+            // The array is reused by the stream once this returns
+            final ActivityWindow[] copy = new ActivityWindow[count];
+            System.arraycopy(windows, 0, copy, 0, count);
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ActivityWindow window : copy) {
+                        writeActivity(window);
+                    }
+                }
+            });
+        }
 
-        return date;
-    }
+        @Override
+        public void onActivityTransition(ActivityType from, ActivityType to, ActivityWindow window) {
+            Log.d("STREAM-TAG", (from == null ? "Started" : from.getLabel()) + " -> " + to.getLabel());
+        }
+    };
 
     /* Checks if external storage is available for read and write */
     public boolean isExternalStorageWritable() {
@@ -187,34 +334,123 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Writes the user's activity to an output file
+     * Opens the activity log in the user's public Documents directory. The first time,
+     * the activities.txt written by older versions is imported into it.
      */
-    public void writeActivity(String activity) {
+    private ActivityLog openActivityLog() throws IOException {
+        File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
 
-        // Initializes a file in the user's public Documents directory
-        File file = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DOCUMENTS), OUTPUT_FILENAME);
+        ActivityLog log = new ActivityLog(new File(directory, OUTPUT_FILENAME));
 
-        try {
-            // Creates the output file if it doesn't exist already
-            if (!file.exists()) {
-                if (file.createNewFile()) {
-//                    Log.d("FILE-TAG", "Created file: " + file.getPath());
-                } else {
-//                    Log.d("FILE-TAG", "COULDN'T CREATE NEW FILE!");
+        File legacyFile = new File(directory, LEGACY_OUTPUT_FILENAME);
+        if (log.size() == 0 && legacyFile.exists()) {
+            int imported = ActivityLogImporter.importText(legacyFile, log);
+            Log.d("FILE-TAG", "Imported " + imported + " activities from " + legacyFile.getPath());
+        }
+        return log;
+    }
+
+    /**
+     * Writes the activity log to a file in the format on a background thread, then lets the
+     * user pick an app to share it with. The log keeps being appended to while it's exported,
+     * the export has the activities logged when it started.
+     */
+    private void exportActivities(final ActivityExporter.Format format) {
+        final ActivityLog log = activityLog;
+        if (log == null) {
+            Log.d("FILE-TAG", "No activity log to export");
+            return;
+        }
+
+        final File file = new File(log.getFile().getParentFile(), EXPORT_FILENAME + format.extension);
+        new Thread("ActivityExport") {
+            @Override
+            public void run() {
+                final int count;
+                try {
+                    long start = System.nanoTime();
+                    count = new ActivityExporter(TimeZone.getDefault()).export(log, format, file);
+                    Log.d("FILE-TAG", "Exported " + count + " activities to " + file.getPath() + " in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+                } catch (IOException e) {
+                    Log.w("FILE-TAG", "Couldn't export the activity log", e);
+                    return;
                 }
-            } else {
-//                Log.d("FILE-TAG", file.getName() + " already exists!");
-            }
 
-            // Writes the activity to the file. true means to append to the file
-            FileOutputStream fos = new FileOutputStream(file, true);
-            fos.write(activity.getBytes());
-            fos.close();
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Intent share = new Intent(Intent.ACTION_SEND);
+                        share.setType(format.mimeType);
+                        share.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+                        share.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                        startActivity(Intent.createChooser(share, getString(R.string.share_export)));
+                    }
+                });
+            }
+        }.start();
+    }
 
+    /**
+     * Adds the user's activity to the top of the list and writes it to the activity log
+     */
+    public void writeActivity(ActivityWindow window) {
+        long start = System.nanoTime();
+        int oldSize = activityHistory.size();
+        boolean grew;
+        try {
+            grew = activityHistory.add(window.startMillis, window.endMillis, window.activity, window.confidence);
         } catch (IOException e) {
             e.printStackTrace();
+            grew = activityHistory.size() > oldSize;
+        }
+
+        if (activityRollups != null) {
+            try {
+                activityRollups.update(activityLog);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // The time to write the log and the rollups
+        if (connected) {
+            binder.getMetrics().onWrite(System.nanoTime() - start);
+        }
+
+        updateSummary();
+
+        // Only the new row is laid out. Stays at the top if the user was looking at it.
+        boolean atTop = activityListLayout.findFirstVisibleItemPosition() <= 0;
+        activityListAdapter.notifyItemInserted(0);
+        if (!grew) {
+            // Without the log the oldest activity dropped off the end to make room
+            activityListAdapter.notifyItemRemoved(oldSize);
+        }
+        if (atTop) {
+            activityListView.scrollToPosition(0);
+        }
+    }
+
+    /**
+     * Shows the time spent in each activity today under the title, e.g. "Today: Sitting 3h 05m"
+     */
+    private void updateSummary() {
+        if (activityRollups == null) {
+            return;
+        }
+
+        long today = activityRollups.dayOf(System.currentTimeMillis());
+        StringBuilder summary = new StringBuilder("Today:");
+        for (ActivityType activity : ActivityType.values()) {
+            long minutes = activityRollups.getSecondsInDays(activity, today, today + 1) / 60;
+            summary.append(' ').append(activity.getLabel())
+                    .append(String.format(" %dh %02dm", minutes / 60, minutes % 60));
         }
+        toolbar.setSubtitle(summary);
     }
 
 }
@@ -0,0 +1,111 @@
+package michaelbishoff.activitymonitor.benchmark;
+
+import michaelbishoff.activitymonitor.core.AccelerometerEngine;
+import michaelbishoff.activitymonitor.core.AngleKernel;
+import michaelbishoff.activitymonitor.core.WindowAccumulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-sample Y angle that the service computes for every accelerometer event,
+ * one sample at a time and as a whole FIFO batch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AngleBenchmark {
+
+    private final Samples samples = new Samples(Samples.BATCH_SIZE);
+    private AccelerometerEngine engine;
+    private AccelerometerEngine publishingEngine;
+    private WindowAccumulator accumulator;
+    private int next;
+
+    private final AngleKernel kernel = new AngleKernel(Samples.BATCH_SIZE);
+    private final float[] batchAngles = new float[Samples.BATCH_SIZE];
+
+    @Setup
+    public void setUp() {
+        engine = new AccelerometerEngine();
+        accumulator = new WindowAccumulator(90);
+        publishingEngine = new AccelerometerEngine(AccelerometerEngine.DEFAULT_CAPACITY, accumulator);
+    }
+
+    /**
+     * The original formula from onSensorChanged, kept as the baseline
+     */
+    @Benchmark
+    public double originalYAngle() {
+        int i = next++ & Samples.MASK;
+        float acclX = samples.xs[i];
+        float acclY = samples.ys[i];
+        float acclZ = samples.zs[i];
+        return Math.acos(acclY / Math.sqrt(Math.pow(acclX, 2)
+                + Math.pow(acclY, 2)
+                + Math.pow(acclZ, 2))) * 180 / Math.PI;
+    }
+
+    @Benchmark
+    public double yAngle() {
+        int i = next++ & Samples.MASK;
+        return AccelerometerEngine.yAngle(samples.xs[i], samples.ys[i], samples.zs[i]);
+    }
+
+    /**
+     * yAngle() over a whole batch, the baseline for the kernel
+     */
+    @Benchmark
+    @OperationsPerInvocation(Samples.BATCH_SIZE)
+    public float[] yAngleBatch() {
+        for (int i = 0; i < Samples.BATCH_SIZE; i++) {
+            batchAngles[i] = (float) AccelerometerEngine.yAngle(samples.xs[i], samples.ys[i], samples.zs[i]);
+        }
+        return batchAngles;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Samples.BATCH_SIZE)
+    public float[] kernelBatch() {
+        kernel.angles(samples.xs, samples.ys, samples.zs, 0, batchAngles, 0, Samples.BATCH_SIZE);
+        return batchAngles;
+    }
+
+    @Benchmark
+    public double engineOnSample() {
+        int i = next++ & Samples.MASK;
+        engine.onSample(samples.xs[i], samples.ys[i], samples.zs[i]);
+        return engine.getAverageAngle();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Samples.BATCH_SIZE)
+    public double engineOnSamples() {
+        engine.onSamples(samples.timestamps, samples.xs, samples.ys, samples.zs, Samples.BATCH_SIZE);
+        return engine.getAverageAngle();
+    }
+
+    /**
+     * The service's path, where the angles also go to the lock free window accumulator
+     */
+    @Benchmark
+    @OperationsPerInvocation(Samples.BATCH_SIZE)
+    public long engineOnSamplesWithAccumulator() {
+        publishingEngine.onSamples(samples.timestamps, samples.xs, samples.ys, samples.zs, Samples.BATCH_SIZE);
+        return accumulator.snapshotAndReset().count;
+    }
+}
@@ -0,0 +1,102 @@
+package michaelbishoff.activitymonitor.benchmark;
+
+import michaelbishoff.activitymonitor.core.ActivityRules;
+import michaelbishoff.activitymonitor.core.ActivityType;
+import michaelbishoff.activitymonitor.core.Classifier;
+import michaelbishoff.activitymonitor.core.FeatureExtractor;
+import michaelbishoff.activitymonitor.core.RuleClassifier;
+import michaelbishoff.activitymonitor.core.TreeClassifier;
+import michaelbishoff.activitymonitor.core.WalkingIntervals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The getActivity() decision, with and without recording the walking intervals that feed it,
+ * and through the Classifier interface as the rules and as the same rules in a decision tree
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifyBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int MASK = BATCH_SIZE - 1;
+
+    // Random window inputs, so the branches can't be predicted
+    private final int[] intervalsWalking = new int[BATCH_SIZE];
+    private final double[] averageAngles = new double[BATCH_SIZE];
+    private final double[] distances = new double[BATCH_SIZE];
+
+    // The same windows as Classifier inputs, one row each
+    private final float[][] inputs = new float[BATCH_SIZE][Classifier.NUM_INPUTS];
+
+    private final Classifier ruleClassifier = new RuleClassifier();
+    private TreeClassifier treeClassifier;
+
+    private WalkingIntervals walkingIntervals;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            intervalsWalking[i] = random.nextInt(WalkingIntervals.NUM_INTERVALS + 1);
+            averageAngles[i] = random.nextDouble() * 180;
+            distances[i] = random.nextDouble() * 2 * WalkingIntervals.MIN_WALK_DISTANCE;
+            RuleClassifier.putInputs(inputs[i], new float[FeatureExtractor.NUM_FEATURES],
+                    intervalsWalking[i], averageAngles[i]);
+        }
+        walkingIntervals = new WalkingIntervals();
+
+        // The rules: walking above 3 intervals, else sleeping between 65 and 115 degrees
+        treeClassifier = TreeClassifier.fromRules();
+    }
+
+    @Benchmark
+    public ActivityType classify() {
+        int i = next++ & MASK;
+        return ActivityRules.classify(intervalsWalking[i], averageAngles[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void classifyBatch(Blackhole blackhole) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            blackhole.consume(ActivityRules.classify(intervalsWalking[i], averageAngles[i]));
+        }
+    }
+
+    @Benchmark
+    public ActivityType ruleClassifier() {
+        return ruleClassifier.classify(inputs[next++ & MASK]);
+    }
+
+    @Benchmark
+    public ActivityType treeClassifier() {
+        return treeClassifier.classify(inputs[next++ & MASK]);
+    }
+
+    @Benchmark
+    public ActivityType recordAndClassify() {
+        int i = next++ & MASK;
+        walkingIntervals.record(distances[i]);
+        return ActivityRules.classify(walkingIntervals.getNumIntervalsWalking(), averageAngles[i]);
+    }
+}
@@ -0,0 +1,92 @@
+package michaelbishoff.activitymonitor.benchmark;
+
+import michaelbishoff.activitymonitor.core.DistanceAccumulator;
+import michaelbishoff.activitymonitor.core.Geo;
+import michaelbishoff.activitymonitor.core.LocationFix;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The haversine distance of the 20 second location interval, and the streaming
+ * accumulator that replaced it, per fix and as a batch of fixes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int MASK = BATCH_SIZE - 1;
+
+    // A walk of small steps around campus
+    private final double[] latitudes = new double[BATCH_SIZE];
+    private final double[] longitudes = new double[BATCH_SIZE];
+    private final LocationFix[] gpsFixes = new LocationFix[BATCH_SIZE];
+
+    private DistanceAccumulator distanceAccumulator;
+    private long elapsedMillis;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        double lat = 39.2555;
+        double lng = -76.7113;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            lat += random.nextGaussian() * 1e-5;
+            lng += random.nextGaussian() * 1e-5;
+            latitudes[i] = lat;
+            longitudes[i] = lng;
+            gpsFixes[i] = new LocationFix(LocationFix.PROVIDER_GPS, lat, lng, i * 1000L, 5f);
+        }
+        distanceAccumulator = new DistanceAccumulator();
+    }
+
+    @Benchmark
+    public double haversine() {
+        int i = next++ & MASK;
+        int j = (i + 1) & MASK;
+        return Geo.haversine(latitudes[i], longitudes[i], latitudes[j], longitudes[j]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public double haversineBatch() {
+        double total = 0;
+        for (int i = 1; i < BATCH_SIZE; i++) {
+            total += Geo.haversine(latitudes[i - 1], longitudes[i - 1], latitudes[i], longitudes[i]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public boolean accumulatorOnFix() {
+        int i = next++ & MASK;
+        return distanceAccumulator.onFix(gpsFixes[i], elapsedMillis += 1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public double accumulatorBatch() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            distanceAccumulator.onFix(gpsFixes[i], elapsedMillis += 1000);
+        }
+        return distanceAccumulator.takeDistance();
+    }
+}
@@ -0,0 +1,53 @@
+package michaelbishoff.activitymonitor.benchmark;
+
+import michaelbishoff.activitymonitor.core.FeatureExtractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost per sample of the window features, including the cadence search of every block
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmark {
+
+    private final Samples samples = new Samples(Samples.BATCH_SIZE);
+    private FeatureExtractor extractor;
+    private final float[] features = new float[FeatureExtractor.NUM_FEATURES];
+    private long offsetNanos;
+
+    @Setup
+    public void setUp() {
+        extractor = new FeatureExtractor();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Samples.BATCH_SIZE)
+    public float extractorOnSamples() {
+        // Keeps the timestamps moving forward so the blocks aren't dropped as gaps
+        long[] timestamps = samples.timestamps;
+        for (int i = 0; i < Samples.BATCH_SIZE; i++) {
+            extractor.onSample(offsetNanos + timestamps[i], samples.xs[i], samples.ys[i], samples.zs[i]);
+        }
+        offsetNanos += Samples.BATCH_SIZE * 20000000L;
+
+        extractor.getFeatures(features);
+        return features[FeatureExtractor.CADENCE];
+    }
+}
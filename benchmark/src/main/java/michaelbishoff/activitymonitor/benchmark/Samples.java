@@ -0,0 +1,36 @@
+package michaelbishoff.activitymonitor.benchmark;
+
+import java.util.Random;
+
+/**
+ * A fixed set of realistic accelerometer samples, so every benchmark sees the same input
+ */
+class Samples {
+
+    // The size of a batch, roughly what a sensor FIFO delivers at once
+    static final int BATCH_SIZE = 1024;
+    static final int MASK = BATCH_SIZE - 1;
+
+    final long[] timestamps;
+    final float[] xs;
+    final float[] ys;
+    final float[] zs;
+
+    Samples(int count) {
+        timestamps = new long[count];
+        xs = new float[count];
+        ys = new float[count];
+        zs = new float[count];
+
+        // Gravity in a random direction plus some hand shake, at 50 Hz
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            double theta = random.nextDouble() * Math.PI;
+            double phi = random.nextDouble() * 2 * Math.PI;
+            timestamps[i] = i * 20000000L;
+            xs[i] = (float) (9.81 * Math.sin(theta) * Math.cos(phi) + random.nextGaussian() * 0.3);
+            ys[i] = (float) (9.81 * Math.cos(theta) + random.nextGaussian() * 0.3);
+            zs[i] = (float) (9.81 * Math.sin(theta) * Math.sin(phi) + random.nextGaussian() * 0.3);
+        }
+    }
+}
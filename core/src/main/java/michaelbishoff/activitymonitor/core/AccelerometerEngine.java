@@ -0,0 +1,254 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Keeps the accelerometer samples and the running angle statistics for the current window.
+ * Everything is preallocated, so adding a sample never allocates and can run at the fastest
+ * sensor rate without creating garbage. Not thread safe, samples should come from one thread.
+ */
+public class AccelerometerEngine implements SampleSink {
+
+    // The default number of samples kept in the ring buffers (must be a power of 2)
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // The most recent raw samples and their Y angles, indexed by (sampleCount & mask)
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+    private final float[] angles;
+    private final int mask;
+
+    // The total number of samples ever added, also the next write position in the ring
+    private long sampleCount = 0;
+
+    // The average angle of the phone and the number of angles used in the average
+    private double averageAngle = 0;
+    private int averageAngleCount = 0;
+
+    // The sum of squared differences from the average angle (Welford), for the variance
+    private double angleM2 = 0;
+
+    // The variance of the angles in the last batch, to notice motion as soon as it's delivered
+    private double batchAngleVariance = 0;
+
+    // Computes the angles of whole batches straight into the ring
+    private final AngleKernel angleKernel;
+
+    // Also gets every angle, for readers on other threads. May be null.
+    private final WindowAccumulator angleAccumulator;
+
+    // The number of samples whose angles have been given to the accumulator
+    private long publishedCount = 0;
+
+    public AccelerometerEngine() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AccelerometerEngine(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Creates an engine that also adds every angle to the accumulator
+     */
+    public AccelerometerEngine(int capacity, WindowAccumulator angleAccumulator) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+
+        xs = new float[capacity];
+        ys = new float[capacity];
+        zs = new float[capacity];
+        angles = new float[capacity];
+        mask = capacity - 1;
+        angleKernel = new AngleKernel(capacity);
+        this.angleAccumulator = angleAccumulator;
+    }
+
+    /**
+     * Calculates the Y angle of the device in degrees. Returns NaN when the
+     * vector has no length (e.g. free fall) since there is no angle then.
+     */
+    public static double yAngle(float x, float y, float z) {
+        double norm = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+        if (norm == 0) {
+            return Double.NaN;
+        }
+        return Math.acos(y / norm) * 180 / Math.PI;
+    }
+
+    /**
+     * Adds one accelerometer sample to the ring buffers and the running average
+     */
+    public void onSample(float x, float y, float z) {
+        addSample(x, y, z);
+        if (angleAccumulator != null) {
+            publishAngles();
+        }
+    }
+
+    private void addSample(float x, float y, float z) {
+        double yAngle = yAngle(x, y, z);
+
+        int i = (int) (sampleCount++ & mask);
+        xs[i] = x;
+        ys[i] = y;
+        zs[i] = z;
+        angles[i] = (float) yAngle;
+
+        // Skip the undefined angles so they don't poison the whole window
+        if (yAngle == yAngle) {
+            // Keeps a running average and variance of the angle
+            double delta = yAngle - averageAngle;
+            averageAngle += delta / ++averageAngleCount;
+            angleM2 += delta * (yAngle - averageAngle);
+        }
+    }
+
+    /**
+     * Adds a whole batch of samples, e.g. a burst drained from the sensor's hardware FIFO.
+     * The angles come from the AngleKernel, within AngleKernel.MAX_ERROR_DEGREES of yAngle().
+     */
+    @Override
+    public void onSamples(long[] timestamps, float[] batchXs, float[] batchYs, float[] batchZs, int count) {
+        double batchMean = 0;
+        double batchM2 = 0;
+        int batchCount = 0;
+
+        // One pass per contiguous stretch of the ring, 2 if the batch wraps around its end
+        int done = 0;
+        while (done < count) {
+            int position = (int) (sampleCount & mask);
+            int length = Math.min(count - done, mask + 1 - position);
+
+            System.arraycopy(batchXs, done, xs, position, length);
+            System.arraycopy(batchYs, done, ys, position, length);
+            System.arraycopy(batchZs, done, zs, position, length);
+            angleKernel.angles(batchXs, batchYs, batchZs, done, angles, position, length);
+
+            for (int i = position; i < position + length; i++) {
+                float angle = angles[i];
+                // Skip the undefined angles so they don't poison the whole window
+                if (angle == angle) {
+                    double delta = angle - averageAngle;
+                    averageAngle += delta / ++averageAngleCount;
+                    angleM2 += delta * (angle - averageAngle);
+
+                    delta = angle - batchMean;
+                    batchMean += delta / ++batchCount;
+                    batchM2 += delta * (angle - batchMean);
+                }
+            }
+
+            sampleCount += length;
+            done += length;
+
+            // Hands the angles to the accumulator a ring's worth at a time, in one step each
+            if (angleAccumulator != null) {
+                publishAngles();
+            }
+        }
+
+        batchAngleVariance = batchCount > 1 ? batchM2 / (batchCount - 1) : 0;
+    }
+
+    /**
+     * Gives the angles added since the last call to the accumulator. They are contiguous in the
+     * ring unless they wrap around its end.
+     */
+    private void publishAngles() {
+        int from = (int) (publishedCount & mask);
+        int length = (int) (sampleCount - publishedCount);
+        int first = Math.min(length, mask + 1 - from);
+        angleAccumulator.add(angles, from, first);
+        if (first < length) {
+            angleAccumulator.add(angles, 0, length - first);
+        }
+        publishedCount = sampleCount;
+    }
+
+    /**
+     * Returns the average Y angle of the current window, 0 if there were no samples
+     */
+    public double getAverageAngle() {
+        return averageAngle;
+    }
+
+    /**
+     * Returns the number of angles used in the average of the current window
+     */
+    public int getAverageAngleCount() {
+        return averageAngleCount;
+    }
+
+    /**
+     * Returns the sample variance of the Y angles of the current window, 0 with fewer than 2 angles
+     */
+    public double getAngleVariance() {
+        return averageAngleCount > 1 ? angleM2 / (averageAngleCount - 1) : 0;
+    }
+
+    /**
+     * Returns the sample variance of the Y angles of the last batch given to onSamples()
+     */
+    public double getBatchAngleVariance() {
+        return batchAngleVariance;
+    }
+
+    /**
+     * Resets the running statistics for the next window. The ring buffers keep their samples.
+     */
+    public void resetWindow() {
+        averageAngle = 0;
+        averageAngleCount = 0;
+        angleM2 = 0;
+    }
+
+    /**
+     * Returns the number of samples ever added
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of samples currently held in the ring buffers
+     */
+    public int size() {
+        return (int) Math.min(sampleCount, mask + 1);
+    }
+
+    /**
+     * Returns the X value of a buffered sample, where age 0 is the newest sample
+     */
+    public float getX(int age) {
+        return xs[index(age)];
+    }
+
+    /**
+     * Returns the Y value of a buffered sample, where age 0 is the newest sample
+     */
+    public float getY(int age) {
+        return ys[index(age)];
+    }
+
+    /**
+     * Returns the Z value of a buffered sample, where age 0 is the newest sample
+     */
+    public float getZ(int age) {
+        return zs[index(age)];
+    }
+
+    /**
+     * Returns the Y angle of a buffered sample, where age 0 is the newest sample
+     */
+    public float getAngle(int age) {
+        return angles[index(age)];
+    }
+
+    private int index(int age) {
+        if (age < 0 || age >= size()) {
+            throw new IndexOutOfBoundsException("age " + age + ", size " + size());
+        }
+        return (int) ((sampleCount - 1 - age) & mask);
+    }
+}
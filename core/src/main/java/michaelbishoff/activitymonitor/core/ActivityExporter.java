@@ -0,0 +1,267 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.TimeZone;
+
+/**
+ * Writes the activity log as CSV or JSON Lines with ISO 8601 local times, e.g.
+ *   start,end,activity,confidence
+ *   2015-10-17T14:02:00.000-04:00,2015-10-17T14:04:00.000-04:00,Walking,1.00
+ * or
+ *   {"start":"2015-10-17T14:02:00.000-04:00","end":"...","activity":"Walking","confidence":1.00}
+ *
+ * The records are read from the log in bulk into one direct buffer and the text is formatted
+ * byte by byte into another, which is written to the channel whenever it fills up. No strings
+ * are built per record, and the memory used is the same for a day or a year of windows.
+ * Not thread safe, but one exporter can be reused for many exports.
+ */
+public class ActivityExporter {
+
+    public enum Format {
+        CSV("text/csv", ".csv"),
+        JSON_LINES("application/x-ndjson", ".jsonl");
+
+        public final String mimeType;
+        public final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+    }
+
+    // The records read from the log at a time
+    private static final int RECORDS_PER_READ = 2048;
+
+    // The longest line a record can make, with room to spare
+    private static final int MAX_LINE = 160;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    // Time zone offsets only change on whole quarter hours, so the offset is looked up once per
+    // quarter hour instead of for every timestamp
+    private static final long OFFSET_BLOCK_MILLIS = 15 * 60 * 1000;
+
+    private static final byte[] CSV_HEADER = ascii("start,end,activity,confidence\n");
+    private static final byte[] JSON_START = ascii("{\"start\":\"");
+    private static final byte[] JSON_END = ascii("\",\"end\":\"");
+    private static final byte[] JSON_ACTIVITY = ascii("\",\"activity\":\"");
+    private static final byte[] JSON_CONFIDENCE = ascii("\",\"confidence\":");
+    private static final byte[] UNKNOWN = ascii("Unknown");
+
+    // The label of each activity code
+    private static final byte[][] LABELS = new byte[ActivityType.values().length][];
+
+    static {
+        for (ActivityType activity : ActivityType.values()) {
+            LABELS[activity.getCode()] = ascii(activity.getLabel());
+        }
+    }
+
+    private final TimeZone timeZone;
+
+    private final ByteBuffer records = ByteBuffer.allocateDirect(RECORDS_PER_READ * ActivityLog.RECORD_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+
+    // The offset of the last quarter hour looked up
+    private long offsetBlock = Long.MIN_VALUE;
+    private int offsetMillis;
+
+    public ActivityExporter(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the records of the log to the file, replacing it, and returns how many were written
+     */
+    public int export(ActivityLog log, Format format, File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            return export(log, format, channel);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes the records that were in the log when the export started to the channel,
+     * and returns how many were written
+     */
+    public int export(ActivityLog log, Format format, WritableByteChannel channel) throws IOException {
+        out.clear();
+        if (format == Format.CSV) {
+            out.put(CSV_HEADER);
+        }
+
+        int count = log.size();
+        int next = 0;
+        while (next < count) {
+            records.clear();
+            int read = Math.min(log.read(next, records), count - next);
+
+            for (int i = 0; i < read; i++) {
+                int base = i * ActivityLog.RECORD_SIZE;
+                long startMillis = records.getLong(base);
+                long endMillis = records.getLong(base + 8);
+                int activityCode = records.getInt(base + 16);
+                float confidence = records.getFloat(base + 20);
+
+                if (out.remaining() < MAX_LINE) {
+                    drain(channel);
+                }
+                if (format == Format.CSV) {
+                    putTimestamp(startMillis);
+                    out.put((byte) ',');
+                    putTimestamp(endMillis);
+                    out.put((byte) ',');
+                    putLabel(activityCode);
+                    out.put((byte) ',');
+                    putConfidence(confidence);
+                } else {
+                    out.put(JSON_START);
+                    putTimestamp(startMillis);
+                    out.put(JSON_END);
+                    putTimestamp(endMillis);
+                    out.put(JSON_ACTIVITY);
+                    putLabel(activityCode);
+                    out.put(JSON_CONFIDENCE);
+                    putConfidence(confidence);
+                    out.put((byte) '}');
+                }
+                out.put((byte) '\n');
+            }
+            next += read;
+        }
+
+        drain(channel);
+        return count;
+    }
+
+    private void drain(WritableByteChannel channel) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private void putLabel(int activityCode) {
+        if (activityCode >= 0 && activityCode < LABELS.length) {
+            out.put(LABELS[activityCode]);
+        } else {
+            out.put(UNKNOWN);
+        }
+    }
+
+    /**
+     * Puts the confidence with 2 decimals, e.g. 0.85
+     */
+    private void putConfidence(float confidence) {
+        int hundredths = confidence > 0 ? Math.min(Math.round(confidence * 100), 100) : 0;
+        putDigits(hundredths / 100, 1);
+        out.put((byte) '.');
+        putDigits(hundredths % 100, 2);
+    }
+
+    /**
+     * Puts the time as yyyy-MM-ddTHH:mm:ss.SSS and the zone offset, +hh:mm or Z
+     */
+    void putTimestamp(long millis) {
+        long block = floorDiv(millis, OFFSET_BLOCK_MILLIS);
+        if (block != offsetBlock) {
+            offsetBlock = block;
+            offsetMillis = timeZone.getOffset(block * OFFSET_BLOCK_MILLIS);
+        }
+
+        long local = millis + offsetMillis;
+        long days = floorDiv(local, MILLIS_PER_DAY);
+        int millisOfDay = (int) (local - days * MILLIS_PER_DAY);
+
+        // The civil date of the day, with Howard Hinnant's civil_from_days
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putDigits((int) year, 4);
+        out.put((byte) '-');
+        putDigits(month, 2);
+        out.put((byte) '-');
+        putDigits(day, 2);
+        out.put((byte) 'T');
+        putDigits(millisOfDay / 3600000, 2);
+        out.put((byte) ':');
+        putDigits(millisOfDay / 60000 % 60, 2);
+        out.put((byte) ':');
+        putDigits(millisOfDay / 1000 % 60, 2);
+        out.put((byte) '.');
+        putDigits(millisOfDay % 1000, 3);
+
+        if (offsetMillis == 0) {
+            out.put((byte) 'Z');
+        } else {
+            int offsetMinutes = Math.abs(offsetMillis) / 60000;
+            out.put((byte) (offsetMillis < 0 ? '-' : '+'));
+            putDigits(offsetMinutes / 60, 2);
+            out.put((byte) ':');
+            putDigits(offsetMinutes % 60, 2);
+        }
+    }
+
+    /**
+     * Puts a non-negative number with at least the given number of digits, padded with zeros
+     */
+    private void putDigits(int value, int width) {
+        int digits = 1;
+        for (int v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            out.put((byte) '0');
+        }
+
+        int position = out.position() + digits;
+        for (int i = 1; i <= digits; i++) {
+            out.put(position - i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(position);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+    /**
+     * Returns the text export() writes for the time, for the tests
+     */
+    String formatTimestamp(long millis) {
+        out.clear();
+        putTimestamp(millis);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        out.clear();
+        return new String(bytes);
+    }
+}
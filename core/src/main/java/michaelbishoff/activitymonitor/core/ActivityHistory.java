@@ -0,0 +1,205 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The list of activities shown to the user, newest first. Position 0 is the newest activity.
+ *
+ * The newest activities are kept in a ring of fixed size. Anything older is read from the
+ * activity log in pages, only when a position on that page is asked for, and a few recently
+ * used pages are cached. So memory stays the same no matter how long the app has run.
+ *
+ * Not thread safe, the list should only be used from the UI thread.
+ */
+public class ActivityHistory {
+
+    public static final int DEFAULT_RECENT_CAPACITY = 256;
+    public static final int DEFAULT_PAGE_SIZE = 64;
+    public static final int DEFAULT_MAX_PAGES = 8;
+
+    // The log that holds every activity, may be null when storage isn't available
+    private final ActivityLog log;
+
+    // The newest activities, indexed by (recentCount & recentMask)
+    private final long[] recentStarts;
+    private final long[] recentEnds;
+    private final int[] recentCodes;
+    private final float[] recentConfidences;
+    // Where each recent activity is in the log, -1 if it couldn't be written
+    private final int[] recentLogIndexes;
+    private final int recentMask;
+    private long recentCount = 0;
+
+    // The log records before this index are older than everything in the ring
+    private int olderLimit;
+
+    // The pages of older activities that were read, least recently used first
+    private final int pageSize;
+    private final int maxPages;
+    private final LinkedHashMap<Integer, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private int pageLoads = 0;
+
+    /**
+     * Consecutive records of the log, starting at a multiple of the page size
+     */
+    private static class Page {
+        final long[] starts;
+        final long[] ends;
+        final int[] codes;
+        final float[] confidences;
+
+        Page(int size) {
+            starts = new long[size];
+            ends = new long[size];
+            codes = new int[size];
+            confidences = new float[size];
+        }
+    }
+
+    public ActivityHistory(ActivityLog log) {
+        this(log, DEFAULT_RECENT_CAPACITY, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+    }
+
+    public ActivityHistory(ActivityLog log, int recentCapacity, int pageSize, int maxPages) {
+        if (recentCapacity <= 0 || Integer.bitCount(recentCapacity) != 1) {
+            throw new IllegalArgumentException("recent capacity must be a power of 2: " + recentCapacity);
+        }
+        if (pageSize <= 0 || maxPages <= 0) {
+            throw new IllegalArgumentException("page size and max pages must be positive");
+        }
+
+        this.log = log;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+
+        recentStarts = new long[recentCapacity];
+        recentEnds = new long[recentCapacity];
+        recentCodes = new int[recentCapacity];
+        recentConfidences = new float[recentCapacity];
+        recentLogIndexes = new int[recentCapacity];
+        recentMask = recentCapacity - 1;
+
+        olderLimit = log == null ? 0 : log.size();
+    }
+
+    /**
+     * Adds the newest activity at position 0 and appends it to the log. The activity
+     * is shown even if it couldn't be written, in which case the exception is thrown after.
+     *
+     * Returns true if the list grew by one. It doesn't once the ring is full and the oldest
+     * activity in it isn't in the log, e.g. without a log, then that activity drops off the end.
+     */
+    public boolean add(long startMillis, long endMillis, ActivityType activity, float confidence) throws IOException {
+        int oldSize = size();
+
+        // The oldest recent activity moves to the older part, which it's read back from
+        if (recentCount > recentMask) {
+            int oldest = recentLogIndexes[(int) ((recentCount - recentMask - 1) & recentMask)];
+            if (oldest >= 0) {
+                // The last cached page may have been read before it was full
+                if (olderLimit > 0) {
+                    pages.remove((olderLimit - 1) / pageSize);
+                }
+                olderLimit = oldest + 1;
+            }
+        }
+
+        int i = (int) (recentCount++ & recentMask);
+        recentStarts[i] = startMillis;
+        recentEnds[i] = endMillis;
+        recentCodes[i] = activity.getCode();
+        recentConfidences[i] = confidence;
+        recentLogIndexes[i] = -1;
+        boolean grew = size() > oldSize;
+
+        if (log != null) {
+            int logIndex = log.size();
+            log.append(startMillis, endMillis, activity, confidence);
+            recentLogIndexes[i] = logIndex;
+        }
+        return grew;
+    }
+
+    /**
+     * Returns the number of activities in the list
+     */
+    public int size() {
+        return recentSize() + olderLimit;
+    }
+
+    private int recentSize() {
+        return (int) Math.min(recentCount, recentMask + 1);
+    }
+
+    /**
+     * Copies the activity at the position into the record, reading its page from the log
+     * if it isn't in memory
+     */
+    public void get(int position, ActivityLog.Record out) throws IOException {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+        }
+
+        int recentSize = recentSize();
+        if (position < recentSize) {
+            int i = (int) ((recentCount - 1 - position) & recentMask);
+            out.startMillis = recentStarts[i];
+            out.endMillis = recentEnds[i];
+            out.activityCode = recentCodes[i];
+            out.confidence = recentConfidences[i];
+            return;
+        }
+
+        // Older activities are at the end of the list, newest first
+        int logIndex = olderLimit - 1 - (position - recentSize);
+        Page page = getPage(logIndex / pageSize);
+        int i = logIndex % pageSize;
+        out.startMillis = page.starts[i];
+        out.endMillis = page.ends[i];
+        out.activityCode = page.codes[i];
+        out.confidence = page.confidences[i];
+    }
+
+    /**
+     * Returns the page from the cache, or reads it from the log into the least recently used page
+     */
+    private Page getPage(int number) throws IOException {
+        Page page = pages.get(number);
+        if (page != null) {
+            return page;
+        }
+
+        if (pages.size() >= maxPages) {
+            Iterator<Page> eldest = pages.values().iterator();
+            page = eldest.next();
+            eldest.remove();
+        } else {
+            page = new Page(pageSize);
+        }
+
+        ActivityLog.Record record = new ActivityLog.Record();
+        int first = number * pageSize;
+        int last = Math.min(first + pageSize, olderLimit);
+        for (int index = first; index < last; index++) {
+            log.read(index, record);
+            int i = index - first;
+            page.starts[i] = record.startMillis;
+            page.ends[i] = record.endMillis;
+            page.codes[i] = record.activityCode;
+            page.confidences[i] = record.confidence;
+        }
+
+        pages.put(number, page);
+        pageLoads++;
+        return page;
+    }
+
+    /**
+     * Returns the number of pages that were read from the log
+     */
+    public int getPageLoads() {
+        return pageLoads;
+    }
+}
@@ -0,0 +1,304 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A binary log of the user's activities with one fixed width record per window.
+ *
+ * The file starts with a 16 byte header (magic, version, record count) followed by the records:
+ *   long startMillis, long endMillis, int activity code, float confidence
+ * Records are appended through a memory mapped region of the file, so appending is only a
+ * few stores. Records have to be appended in order of their start time, which lets the
+ * sparse index find the records of a time range with a binary search.
+ */
+public class ActivityLog implements Closeable {
+
+    // "AMLG", the first 4 bytes of every log file
+    public static final int MAGIC = 0x414d4c47;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 24;
+
+    // The offset of the record count in the header
+    private static final int COUNT_OFFSET = 8;
+
+    // The number of records mapped at a time. The file grows by this many records.
+    private static final int CHUNK_RECORDS = 4096;
+
+    // Every INDEX_INTERVAL-th record's start time is kept in the sparse index
+    private static final int INDEX_INTERVAL = 64;
+
+    /**
+     * One record of the log. Reused by the caller so reading doesn't allocate.
+     */
+    public static class Record {
+        public long startMillis;
+        public long endMillis;
+        public int activityCode;
+        public float confidence;
+
+        /**
+         * Returns the activity of this record, or null if the code is unknown
+         */
+        public ActivityType getActivity() {
+            return ActivityType.fromCode(activityCode);
+        }
+    }
+
+    /**
+     * Receives the records of a range query one at a time
+     */
+    public interface RecordVisitor {
+        void onRecord(int index, long startMillis, long endMillis, int activityCode, float confidence);
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    // The header, mapped for the whole lifetime of the log
+    private final MappedByteBuffer header;
+
+    // The mapped chunk that new records are appended to, and the index of its first record
+    private MappedByteBuffer appendChunk;
+    private int appendChunkStart = -1;
+
+    // The number of records in the log
+    private int count;
+
+    // The start time of every INDEX_INTERVAL-th record
+    private long[] index = new long[64];
+    private int indexSize = 0;
+
+    // The start time of the last record, so we can check the order of the appends
+    private long lastStartMillis = Long.MIN_VALUE;
+
+    // Reused for reading single records
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(RECORD_SIZE);
+
+    /**
+     * Opens the log file, creating it if it doesn't exist
+     */
+    public ActivityLog(File file) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+
+        try {
+            boolean created = channel.size() == 0;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+            if (created) {
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putLong(COUNT_OFFSET, 0);
+            } else if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not an activity log: " + file);
+            } else if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported activity log version " + header.getInt(4) + ": " + file);
+            }
+
+            count = (int) header.getLong(COUNT_OFFSET);
+            if (HEADER_SIZE + (long) count * RECORD_SIZE > channel.size()) {
+                throw new IOException("Activity log is truncated: " + file);
+            }
+
+            buildIndex();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the start time of every INDEX_INTERVAL-th record into the sparse index
+     */
+    private void buildIndex() throws IOException {
+        Record record = new Record();
+        for (int i = 0; i < count; i += INDEX_INTERVAL) {
+            read(i, record);
+            addToIndex(record.startMillis);
+        }
+        if (count > 0) {
+            read(count - 1, record);
+            lastStartMillis = record.startMillis;
+        }
+    }
+
+    private void addToIndex(long startMillis) {
+        if (indexSize == index.length) {
+            long[] grown = new long[index.length * 2];
+            System.arraycopy(index, 0, grown, 0, indexSize);
+            index = grown;
+        }
+        index[indexSize++] = startMillis;
+    }
+
+    /**
+     * Returns the file of the log
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of records in the log
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Appends a record. The start time can't be earlier than the start of the last record.
+     */
+    public synchronized void append(long startMillis, long endMillis, ActivityType activity, float confidence)
+            throws IOException {
+        if (startMillis < lastStartMillis) {
+            throw new IllegalArgumentException("Records must be appended in order: "
+                    + startMillis + " < " + lastStartMillis);
+        }
+
+        // Maps the next chunk of the file once the current one is full
+        if (appendChunk == null || count - appendChunkStart >= CHUNK_RECORDS) {
+            int chunkStart = count - count % CHUNK_RECORDS;
+            appendChunk = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) chunkStart * RECORD_SIZE, (long) CHUNK_RECORDS * RECORD_SIZE);
+            appendChunkStart = chunkStart;
+        }
+
+        int offset = (count - appendChunkStart) * RECORD_SIZE;
+        appendChunk.putLong(offset, startMillis);
+        appendChunk.putLong(offset + 8, endMillis);
+        appendChunk.putInt(offset + 16, activity.getCode());
+        appendChunk.putFloat(offset + 20, confidence);
+
+        if (count % INDEX_INTERVAL == 0) {
+            addToIndex(startMillis);
+        }
+        lastStartMillis = startMillis;
+
+        // Publishes the record by updating the count last
+        header.putLong(COUNT_OFFSET, ++count);
+    }
+
+    /**
+     * Reads the record at the index into the given record
+     */
+    public synchronized void read(int i, Record out) throws IOException {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + count);
+        }
+
+        readBuffer.clear();
+        long position = HEADER_SIZE + (long) i * RECORD_SIZE;
+        while (readBuffer.hasRemaining()) {
+            if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of activity log: " + file);
+            }
+        }
+
+        out.startMillis = readBuffer.getLong(0);
+        out.endMillis = readBuffer.getLong(8);
+        out.activityCode = readBuffer.getInt(16);
+        out.confidence = readBuffer.getFloat(20);
+    }
+
+    /**
+     * Reads as many whole records from the index on as fit in the buffer's remaining space, in
+     * the file's format, and returns how many were read. The records are left between the
+     * buffer's position and its limit, ready to be read. Used to copy many records without a
+     * read per record.
+     */
+    public synchronized int read(int from, ByteBuffer buffer) throws IOException {
+        if (from < 0 || from > count) {
+            throw new IndexOutOfBoundsException("index " + from + ", size " + count);
+        }
+
+        int records = Math.min(count - from, buffer.remaining() / RECORD_SIZE);
+        int start = buffer.position();
+        buffer.limit(start + records * RECORD_SIZE);
+        long position = HEADER_SIZE + (long) from * RECORD_SIZE - start;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of activity log: " + file);
+            }
+        }
+        buffer.position(start);
+        return records;
+    }
+
+    /**
+     * Returns the index of the first record that starts at or after the given time,
+     * or size() if there isn't one. Uses the sparse index, so it only reads a few records.
+     */
+    public synchronized int indexOf(long millis) throws IOException {
+        // Finds the last indexed record that starts before the time
+        int low = 0;
+        int high = indexSize - 1;
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index[mid] < millis) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (block < 0) {
+            return 0;
+        }
+
+        // Then scans the records of its block
+        Record record = new Record();
+        int end = Math.min(count, (block + 1) * INDEX_INTERVAL);
+        for (int i = block * INDEX_INTERVAL + 1; i < end; i++) {
+            read(i, record);
+            if (record.startMillis >= millis) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Visits the records that start in [fromMillis, toMillis) in order, and returns how many there were
+     */
+    public synchronized int query(long fromMillis, long toMillis, RecordVisitor visitor) throws IOException {
+        Record record = new Record();
+        int visited = 0;
+        for (int i = indexOf(fromMillis); i < count; i++) {
+            read(i, record);
+            if (record.startMillis >= toMillis) {
+                break;
+            }
+            visitor.onRecord(i, record.startMillis, record.endMillis, record.activityCode, record.confidence);
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Writes the mapped records to the storage device
+     */
+    public synchronized void force() {
+        if (appendChunk != null) {
+            appendChunk.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,153 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Imports the old activities.txt files into an ActivityLog.
+ *
+ * The text files have one line per window like "1:04 PM - 1:06 PM  Walking" with no date.
+ * The dates are recovered by assuming the last window ended on the day the file was last
+ * modified, then walking backwards and going back a day every time the clock wraps.
+ */
+public class ActivityLogImporter {
+
+    // e.g. "11:58 PM - 0:00 AM  Sitting"
+    private static final Pattern LINE = Pattern.compile(
+            "\\s*(\\d{1,2}):(\\d{2}) (AM|PM) - (\\d{1,2}):(\\d{2}) (AM|PM)\\s+(\\w+)\\s*");
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    // The confidence of the imported records, the old rules were always certain
+    public static final float IMPORTED_CONFIDENCE = 1f;
+
+    private ActivityLogImporter() { }
+
+    /**
+     * Imports the text file into the log, and returns the number of records imported.
+     * Lines that can't be parsed are skipped.
+     */
+    public static int importText(File textFile, ActivityLog log) throws IOException {
+
+        // The minute of the day that each window starts and ends, and its activity
+        int[] startMinutes = new int[256];
+        int[] endMinutes = new int[256];
+        ActivityType[] activities = new ActivityType[256];
+        int count = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher m = LINE.matcher(line);
+                if (!m.matches()) {
+                    continue;
+                }
+
+                ActivityType activity = ActivityType.fromLabel(m.group(7));
+                if (activity == null) {
+                    continue;
+                }
+
+                if (count == startMinutes.length) {
+                    startMinutes = grow(startMinutes);
+                    endMinutes = grow(endMinutes);
+                    ActivityType[] grown = new ActivityType[count * 2];
+                    System.arraycopy(activities, 0, grown, 0, count);
+                    activities = grown;
+                }
+
+                startMinutes[count] = minuteOfDay(m.group(1), m.group(2), m.group(3));
+                endMinutes[count] = minuteOfDay(m.group(4), m.group(5), m.group(6));
+                activities[count] = activity;
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        // The last window ended on the day the file was last written, unless that
+        // would put it in the future, then it was the day before
+        Calendar modified = Calendar.getInstance();
+        modified.setTimeInMillis(textFile.lastModified());
+        int modifiedMinute = modified.get(Calendar.HOUR_OF_DAY) * 60 + modified.get(Calendar.MINUTE);
+
+        Calendar day = startOfDay(textFile.lastModified());
+        if (endMinutes[count - 1] > modifiedMinute) {
+            day.add(Calendar.DAY_OF_MONTH, -1);
+        }
+
+        // Walks backwards to give every window its date
+        long[] startMillis = new long[count];
+        long[] endMillis = new long[count];
+        long cursor = Long.MAX_VALUE;
+        for (int i = count - 1; i >= 0; i--) {
+            long end = atMinute(day, endMinutes[i]);
+
+            // This window has to end before the next one started, so it was an earlier day
+            if (end > cursor) {
+                day.add(Calendar.DAY_OF_MONTH, -1);
+                end = atMinute(day, endMinutes[i]);
+            }
+
+            // The window started before midnight
+            if (startMinutes[i] > endMinutes[i]) {
+                day.add(Calendar.DAY_OF_MONTH, -1);
+            }
+
+            startMillis[i] = atMinute(day, startMinutes[i]);
+            endMillis[i] = end;
+            cursor = startMillis[i];
+        }
+
+        for (int i = 0; i < count; i++) {
+            log.append(startMillis[i], endMillis[i], activities[i], IMPORTED_CONFIDENCE);
+        }
+
+        return count;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Converts the "h:mm AM" parts to the minute of the day. The hour is 0 - 11, or 12 for noon.
+     */
+    private static int minuteOfDay(String hour, String minute, String amPm) {
+        int h = Integer.parseInt(hour) % 12;
+        if (amPm.equals("PM")) {
+            h += 12;
+        }
+        return (h * 60 + Integer.parseInt(minute)) % MINUTES_PER_DAY;
+    }
+
+    private static Calendar startOfDay(long millis) {
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(millis);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        return day;
+    }
+
+    private static long atMinute(Calendar day, int minuteOfDay) {
+        Calendar time = (Calendar) day.clone();
+        time.set(Calendar.HOUR_OF_DAY, minuteOfDay / 60);
+        time.set(Calendar.MINUTE, minuteOfDay % 60);
+        return time.getTimeInMillis();
+    }
+}
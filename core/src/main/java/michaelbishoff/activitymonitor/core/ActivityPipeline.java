@@ -0,0 +1,146 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * The service's classification of one stream of accelerometer samples and location fixes,
+ * driven by the timestamps of the records instead of the clock. The 20 second intervals and
+ * the 2 minute windows start with the first record, and a window closes when a record past
+ * its end arrives. Used to replay traces and by the ingestion server, one per device.
+ * Not thread safe, a stream should be fed from one thread.
+ */
+public class ActivityPipeline {
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /**
+     * Told about every window as it closes. The times of the window are in milliseconds
+     * on the clock of the records.
+     */
+    public interface Listener {
+        void onActivityWindow(ActivityWindow window);
+    }
+
+    private final Listener listener;
+    private final Classifier classifier;
+
+    // The inputs of the window that's being classified, reused for every window
+    private final float[] inputs = new float[Classifier.NUM_INPUTS];
+
+    private final WindowAccumulator angleAccumulator = new WindowAccumulator(ActivityRules.ANGLE_PIVOT);
+    private final AccelerometerEngine engine;
+    private final FeatureExtractor featureExtractor = new FeatureExtractor();
+    private final DistanceAccumulator distanceAccumulator = new DistanceAccumulator();
+    private final WalkingIntervals walkingIntervals = new WalkingIntervals();
+    private final StepDetector stepDetector = new StepDetector(null);
+
+    // The angles of the intervals of the current window
+    private WindowAccumulator.Snapshot windowAngles = new WindowAccumulator.Snapshot(ActivityRules.ANGLE_PIVOT);
+
+    // Created with the first record
+    private WindowScheduler windowScheduler;
+
+    private long samples = 0;
+    private long fixes = 0;
+    private long windows = 0;
+
+    // Records whether the user walked in each 20 second interval
+    private final WindowScheduler.WindowListener intervalListener = new WindowScheduler.WindowListener() {
+        @Override
+        public void onWindowClosed(long startMillis, long endMillis) {
+            double distance = distanceAccumulator.takeDistance();
+            int steps = stepDetector.takeSteps();
+            if (distance == distance || steps > 0) {
+                walkingIntervals.record(distance, steps);
+            }
+            windowAngles = windowAngles.plus(angleAccumulator.snapshotAndReset());
+        }
+    };
+
+    // Classifies each 2 minute window
+    private final WindowScheduler.WindowListener windowListener = new WindowScheduler.WindowListener() {
+        @Override
+        public void onWindowClosed(long startMillis, long endMillis) {
+            double averageAngle = windowAngles.getMean();
+            int numIntervalsWalking = walkingIntervals.getNumIntervalsWalking();
+            float[] features = featureExtractor.getFeatures();
+            RuleClassifier.putInputs(inputs, features, numIntervalsWalking, averageAngle);
+            ActivityWindow window = new ActivityWindow(startMillis, endMillis, classifier.classify(inputs), 1f,
+                    averageAngle, numIntervalsWalking, features);
+
+            windowAngles = new WindowAccumulator.Snapshot(ActivityRules.ANGLE_PIVOT);
+            engine.resetWindow();
+            featureExtractor.resetWindow();
+            windows++;
+
+            listener.onActivityWindow(window);
+        }
+    };
+
+    public ActivityPipeline(Listener listener) {
+        this(AccelerometerEngine.DEFAULT_CAPACITY, listener);
+    }
+
+    /**
+     * Creates a pipeline whose engine keeps engineCapacity samples (a power of 2). Only the angle
+     * statistics are needed to classify, so a small ring saves memory when there are many streams.
+     */
+    public ActivityPipeline(int engineCapacity, Listener listener) {
+        this(engineCapacity, new RuleClassifier(), listener);
+    }
+
+    /**
+     * Creates a pipeline that decides the windows' activities with the classifier
+     */
+    public ActivityPipeline(int engineCapacity, Classifier classifier, Listener listener) {
+        this.listener = listener;
+        this.classifier = classifier;
+        engine = new AccelerometerEngine(engineCapacity, angleAccumulator);
+    }
+
+    /**
+     * Closes the intervals and windows that ended before the time
+     */
+    private void advanceTo(long millis) {
+        if (windowScheduler == null) {
+            windowScheduler = new WindowScheduler(millis);
+            windowScheduler.addTumblingWindow(WalkingIntervals.INTERVAL_MILLIS, intervalListener);
+            windowScheduler.addTumblingWindow(WalkingIntervals.WINDOW_MILLIS, windowListener);
+        }
+        windowScheduler.advanceTo(millis);
+    }
+
+    public void onSample(long timestampNanos, float x, float y, float z) {
+        advanceTo(timestampNanos / NANOS_PER_MILLI);
+        engine.onSample(x, y, z);
+        featureExtractor.onSample(timestampNanos, x, y, z);
+        stepDetector.onSample(timestampNanos, x, y, z);
+        samples++;
+    }
+
+    /**
+     * Adds the samples from offset to offset + count of the arrays, in time order
+     */
+    public void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            onSample(timestamps[i], xs[i], ys[i], zs[i]);
+        }
+    }
+
+    public void onFix(long elapsedNanos, LocationFix fix) {
+        long millis = elapsedNanos / NANOS_PER_MILLI;
+        advanceTo(millis);
+        distanceAccumulator.onFix(fix, millis);
+        fixes++;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    public long getFixCount() {
+        return fixes;
+    }
+
+    public long getWindowCount() {
+        return windows;
+    }
+}
@@ -0,0 +1,279 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * The number of seconds spent in each activity per hour, kept up to date from the activity log
+ * as windows are appended, so "how long did I sit today" doesn't have to read the log.
+ *
+ * The hours are local hours numbered from the epoch, and the days are groups of 24 of them.
+ * In memory there are prefix sums over the hours next to the counts, so the total of any
+ * range of hours or days is two lookups.
+ *
+ * The file next to the log has a 32 byte header (magic, version, number of activities, unused,
+ * first hour, number of log records rolled up) followed by one int of seconds per activity per
+ * hour. A window only rewrites the few slots it touches.
+ */
+public class ActivityRollups implements Closeable {
+
+    // "AMRU", the first 4 bytes of every rollup file
+    public static final int MAGIC = 0x414d5255;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 32;
+
+    private static final int FIRST_HOUR_OFFSET = 16;
+    private static final int LOG_COUNT_OFFSET = 24;
+
+    public static final long MILLIS_PER_HOUR = 3600000;
+    public static final int HOURS_PER_DAY = 24;
+
+    // The number of activities, every hour has a slot for each
+    private static final int TYPES = ActivityType.values().length;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final TimeZone timeZone;
+
+    // The hour of the first slot, -1 until the first window is added
+    private long firstHour = -1;
+    private int hours = 0;
+
+    // The seconds of each activity in each hour, indexed by (hour - firstHour) * TYPES + code
+    private int[] seconds = new int[HOURS_PER_DAY * TYPES];
+
+    // The seconds before each hour, indexed by (hour - firstHour) * TYPES + code
+    private long[] prefix = new long[(HOURS_PER_DAY + 1) * TYPES];
+
+    // The number of log records that have been added
+    private long logCount = 0;
+
+    /**
+     * Opens the rollup file, creating it if it doesn't exist. Hours are in the time zone.
+     */
+    public ActivityRollups(File file, TimeZone timeZone) throws IOException {
+        this.file = file;
+        this.timeZone = timeZone;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            if (randomAccessFile.length() == 0) {
+                writeHeader();
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(TYPES).putInt(0).putLong(firstHour).putLong(logCount);
+        randomAccessFile.seek(0);
+        randomAccessFile.write(header.array());
+    }
+
+    /**
+     * Reads the whole file and computes the prefix sums
+     */
+    private void load() throws IOException {
+        if (randomAccessFile.length() < HEADER_SIZE) {
+            throw new IOException("Rollup file is truncated: " + file);
+        }
+
+        byte[] bytes = new byte[(int) randomAccessFile.length()];
+        randomAccessFile.seek(0);
+        randomAccessFile.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a rollup file: " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported rollup version " + version + ": " + file);
+        }
+        if (buffer.getInt() != TYPES) {
+            throw new IOException("Rollup file has a different number of activities: " + file);
+        }
+        buffer.getInt();
+        firstHour = buffer.getLong();
+        logCount = buffer.getLong();
+
+        // A partly written last hour is ignored, its slots are rewritten by the next window
+        int stored = (bytes.length - HEADER_SIZE) / (TYPES * 4);
+        if (stored > 0) {
+            grow(stored);
+            for (int i = 0; i < stored * TYPES; i++) {
+                seconds[i] = buffer.getInt();
+            }
+            hours = stored;
+            for (int i = 0; i < stored * TYPES; i++) {
+                prefix[i + TYPES] = prefix[i] + seconds[i];
+            }
+        }
+    }
+
+    /**
+     * Adds the log records that haven't been rolled up yet and returns how many there were
+     */
+    public synchronized int update(ActivityLog log) throws IOException {
+        int size = log.size();
+        if (logCount > size) {
+            throw new IOException("Rollup file is ahead of the log: " + logCount + " > " + size);
+        }
+
+        ActivityLog.Record record = new ActivityLog.Record();
+        int added = 0;
+        for (int i = (int) logCount; i < size; i++) {
+            log.read(i, record);
+            if (record.activityCode >= 0 && record.activityCode < TYPES) {
+                add(record.startMillis, record.endMillis, record.activityCode);
+            }
+            added++;
+        }
+
+        // The count is written after the slots, so a crash in between counts the last window twice
+        // rather than losing it
+        logCount = size;
+        randomAccessFile.seek(LOG_COUNT_OFFSET);
+        randomAccessFile.writeLong(logCount);
+        return added;
+    }
+
+    /**
+     * Splits the window at the hour boundaries and adds each part to its hour
+     */
+    private void add(long startMillis, long endMillis, int code) throws IOException {
+        long millis = startMillis;
+        while (millis < endMillis) {
+            long localMillis = millis + timeZone.getOffset(millis);
+            long hourEnd = millis + MILLIS_PER_HOUR - mod(localMillis, MILLIS_PER_HOUR);
+            long partEnd = Math.min(endMillis, hourEnd);
+
+            addSeconds(hourOf(millis), code, (int) ((partEnd - millis) / 1000));
+            millis = partEnd;
+        }
+    }
+
+    private void addSeconds(long hour, int code, int added) throws IOException {
+        if (firstHour < 0) {
+            firstHour = hour;
+            randomAccessFile.seek(FIRST_HOUR_OFFSET);
+            randomAccessFile.writeLong(firstHour);
+        }
+
+        // Windows come in order, so this only happens if the clock was set back
+        if (hour < firstHour) {
+            return;
+        }
+
+        int slot = (int) (hour - firstHour);
+        if (slot >= hours) {
+            grow(slot + 1);
+            // The new hours start with the totals of the last one
+            for (int i = hours * TYPES; i < (slot + 1) * TYPES; i++) {
+                prefix[i + TYPES] = prefix[i];
+            }
+            hours = slot + 1;
+            randomAccessFile.setLength(HEADER_SIZE + (long) hours * TYPES * 4);
+        }
+
+        int i = slot * TYPES + code;
+        seconds[i] += added;
+        for (int j = i + TYPES; j < (hours + 1) * TYPES; j += TYPES) {
+            prefix[j] += added;
+        }
+
+        randomAccessFile.seek(HEADER_SIZE + (long) i * 4);
+        randomAccessFile.writeInt(seconds[i]);
+    }
+
+    private void grow(int neededHours) {
+        if (neededHours * TYPES > seconds.length) {
+            int capacity = Math.max(neededHours, seconds.length / TYPES * 2);
+            seconds = Arrays.copyOf(seconds, capacity * TYPES);
+            prefix = Arrays.copyOf(prefix, (capacity + 1) * TYPES);
+        }
+    }
+
+    private static long mod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    /**
+     * Returns the local hour of the time, counted from the epoch
+     */
+    public long hourOf(long millis) {
+        long localMillis = millis + timeZone.getOffset(millis);
+        return (localMillis - mod(localMillis, MILLIS_PER_HOUR)) / MILLIS_PER_HOUR;
+    }
+
+    /**
+     * Returns the local day of the time, counted from the epoch
+     */
+    public long dayOf(long millis) {
+        long hour = hourOf(millis);
+        return (hour - mod(hour, HOURS_PER_DAY)) / HOURS_PER_DAY;
+    }
+
+    /**
+     * Returns the seconds spent in the activity in the hour
+     */
+    public synchronized int getHourSeconds(ActivityType activity, long hour) {
+        if (firstHour < 0 || hour < firstHour || hour >= firstHour + hours) {
+            return 0;
+        }
+        return seconds[(int) (hour - firstHour) * TYPES + activity.getCode()];
+    }
+
+    /**
+     * Returns the seconds spent in the activity from the start of fromHour to the start of toHour
+     */
+    public synchronized long getSecondsInHours(ActivityType activity, long fromHour, long toHour) {
+        if (firstHour < 0) {
+            return 0;
+        }
+
+        int from = (int) Math.max(0, Math.min(fromHour - firstHour, hours));
+        int to = (int) Math.max(0, Math.min(toHour - firstHour, hours));
+        if (to <= from) {
+            return 0;
+        }
+
+        int code = activity.getCode();
+        return prefix[to * TYPES + code] - prefix[from * TYPES + code];
+    }
+
+    /**
+     * Returns the seconds spent in the activity from the start of fromDay to the start of toDay
+     */
+    public long getSecondsInDays(ActivityType activity, long fromDay, long toDay) {
+        return getSecondsInHours(activity, fromDay * HOURS_PER_DAY, toDay * HOURS_PER_DAY);
+    }
+
+    /**
+     * Returns the number of log records that have been rolled up
+     */
+    public synchronized long getLogCount() {
+        return logCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,33 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * The rules that decide the user's activity for a 2 minute window
+ */
+public class ActivityRules {
+
+    // More than this many walking intervals out of 6 means the user is walking
+    public static final int MIN_INTERVALS_WALKING = 3;
+
+    // The range of average Y angles where the phone is lying flat, so the user is sleeping
+    public static final double MIN_SLEEPING_ANGLE = 65.0;
+    public static final double MAX_SLEEPING_ANGLE = 115.0;
+
+    // The middle of the Y angles (0 to 180), the angles are accumulated relative to it
+    public static final double ANGLE_PIVOT = 90.0;
+
+    private ActivityRules() { }
+
+    /**
+     * Returns the user's activity from the walking intervals and the average angle of the phone
+     */
+    public static ActivityType classify(int numIntervalsWalking, double averageAngle) {
+        // If most of the 20 sec intervals are walking in the 2 minutes, then they're walking
+        if (numIntervalsWalking > MIN_INTERVALS_WALKING) {
+            return ActivityType.WALKING;
+        } else if (averageAngle > MIN_SLEEPING_ANGLE && averageAngle < MAX_SLEEPING_ANGLE) {
+            return ActivityType.SLEEPING;
+        } else {
+            return ActivityType.SITTING;
+        }
+    }
+}
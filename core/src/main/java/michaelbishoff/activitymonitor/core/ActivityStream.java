@@ -0,0 +1,314 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pushes the classified windows, and the changes of activity between them, to any number of
+ * subscribers.
+ *
+ * publish() only puts the window in each subscriber's queue and never blocks, so a slow
+ * subscriber can't hold up the sensor thread. Each queue holds a fixed number of windows. When
+ * it is full the oldest window is dropped and counted. A background thread drains the queues
+ * and delivers everything that piled up in one call per subscriber.
+ *
+ * An activity can also be announced before its window closes with publishEarly(), e.g. when
+ * steps show the user started walking. Subscribers only get the transition for it.
+ */
+public class ActivityStream implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+    /**
+     * Receives the windows on the delivery thread. Subscribers that need another thread,
+     * e.g. the UI thread, have to copy the windows out of the array and post them there.
+     */
+    public interface Subscriber {
+        /**
+         * The windows since the last call, oldest first. The array is reused after the call
+         * returns. dropped is the number of windows lost before these because the queue was full.
+         */
+        void onActivityWindows(ActivityWindow[] windows, int count, int dropped);
+
+        /**
+         * Called after onActivityWindows() for each window whose activity differs from the one
+         * before it. from is null for the first window the subscriber sees, if it subscribed
+         * before any window was published. Also called for an early window, which is never
+         * passed to onActivityWindows().
+         */
+        void onActivityTransition(ActivityType from, ActivityType to, ActivityWindow window);
+    }
+
+    /**
+     * One subscriber and its queue
+     */
+    public class Subscription {
+        private final Subscriber subscriber;
+
+        // The queued windows, indexed by (head + i) % queue.length
+        private final ActivityWindow[] queue;
+        private int head = 0;
+        private int size = 0;
+        private int droppedSinceDelivery = 0;
+
+        // The early window since the last delivery, if no window was published after it
+        private ActivityWindow early;
+
+        // Only used by the delivery thread
+        private final ActivityWindow[] batch;
+        private ActivityType lastActivity;
+
+        private volatile long delivered = 0;
+        private volatile long dropped = 0;
+
+        Subscription(Subscriber subscriber, int capacity, ActivityType lastActivity) {
+            this.subscriber = subscriber;
+            this.lastActivity = lastActivity;
+            queue = new ActivityWindow[capacity];
+            batch = new ActivityWindow[capacity];
+        }
+
+        synchronized void offer(ActivityWindow window) {
+            if (size == queue.length) {
+                queue[head] = null;
+                head = (head + 1) % queue.length;
+                size--;
+                droppedSinceDelivery++;
+                dropped++;
+            }
+            queue[(head + size) % queue.length] = window;
+            size++;
+            // The window that closed has the final say
+            early = null;
+        }
+
+        synchronized void offerEarly(ActivityWindow window) {
+            early = window;
+        }
+
+        private synchronized ActivityWindow takeEarly() {
+            ActivityWindow window = early;
+            early = null;
+            return window;
+        }
+
+        /**
+         * Moves the queued windows into the batch and returns how many there were
+         */
+        private synchronized int drain() {
+            int count = size;
+            for (int i = 0; i < count; i++) {
+                batch[i] = queue[head];
+                queue[head] = null;
+                head = (head + 1) % queue.length;
+            }
+            size = 0;
+            return count;
+        }
+
+        private synchronized int takeDropped() {
+            int count = droppedSinceDelivery;
+            droppedSinceDelivery = 0;
+            return count;
+        }
+
+        private void deliver() {
+            int count = drain();
+            ActivityWindow earlyWindow = takeEarly();
+
+            if (count > 0) {
+                subscriber.onActivityWindows(batch, count, takeDropped());
+                delivered += count;
+
+                for (int i = 0; i < count; i++) {
+                    ActivityWindow window = batch[i];
+                    if (window.activity != lastActivity) {
+                        subscriber.onActivityTransition(lastActivity, window.activity, window);
+                        lastActivity = window.activity;
+                    }
+                    batch[i] = null;
+                }
+            }
+
+            // Was offered after the windows, or they would have cleared it
+            if (earlyWindow != null && earlyWindow.activity != lastActivity) {
+                subscriber.onActivityTransition(lastActivity, earlyWindow.activity, earlyWindow);
+                lastActivity = earlyWindow.activity;
+            }
+        }
+
+        /**
+         * Stops the deliveries to this subscriber
+         */
+        public void cancel() {
+            subscriptions.remove(this);
+        }
+
+        public Subscriber getSubscriber() {
+            return subscriber;
+        }
+
+        /**
+         * Returns the number of windows delivered to the subscriber
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * Returns the number of windows that were dropped because the subscriber fell behind
+         */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    private final int queueCapacity;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    // The last published window, for subscribers that just connected
+    private volatile ActivityWindow lastWindow;
+
+    // Set by publish() and cleared by the delivery thread, guarded by itself
+    private final Object signal = new Object();
+    private boolean pending = false;
+    private boolean closed = false;
+
+    private final Thread deliveryThread;
+
+    public ActivityStream() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ActivityStream(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queue capacity must be positive: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+
+        deliveryThread = new Thread("ActivityStream") {
+            @Override
+            public void run() {
+                deliverUntilClosed();
+            }
+        };
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * Adds a subscriber. It gets every window published from now on.
+     */
+    public Subscription subscribe(Subscriber subscriber) {
+        ActivityWindow last = lastWindow;
+        Subscription subscription = new Subscription(subscriber, queueCapacity,
+                last == null ? null : last.activity);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Removes every subscription of the subscriber
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.subscriber == subscriber) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Queues the window for every subscriber and wakes the delivery thread. Never blocks
+     * on a subscriber.
+     */
+    public void publish(ActivityWindow window) {
+        lastWindow = window;
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(window);
+        }
+
+        synchronized (signal) {
+            pending = true;
+            signal.notify();
+        }
+    }
+
+    /**
+     * Announces the activity of the window in progress before it closes. Subscribers get a
+     * transition if it differs from the last activity they saw, but not the window itself.
+     * A window published before the early one is delivered is the one that counts.
+     */
+    public void publishEarly(ActivityWindow window) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offerEarly(window);
+        }
+
+        synchronized (signal) {
+            pending = true;
+            signal.notify();
+        }
+    }
+
+    private void deliverUntilClosed() {
+        while (true) {
+            synchronized (signal) {
+                while (!pending && !closed) {
+                    try {
+                        signal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                pending = false;
+            }
+
+            for (Subscription subscription : subscriptions) {
+                try {
+                    subscription.deliver();
+                } catch (RuntimeException e) {
+                    // One broken subscriber doesn't stop the others
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the last window without delivering it, e.g. one restored from a checkpoint, so
+     * getLastWindow() and new subscribers have it before the first window is published
+     */
+    public void restoreLastWindow(ActivityWindow window) {
+        if (lastWindow == null) {
+            lastWindow = window;
+        }
+    }
+
+    /**
+     * Returns the last published window, or null before the first one
+     */
+    public ActivityWindow getLastWindow() {
+        return lastWindow;
+    }
+
+    /**
+     * Returns the current subscriptions, for their delivery and drop counts
+     */
+    public Iterable<Subscription> getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Stops the delivery thread. Windows that weren't delivered yet are discarded.
+     */
+    @Override
+    public void close() {
+        synchronized (signal) {
+            closed = true;
+            signal.notify();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * The activities the user can be doing. The codes are stored on disk, so they must never change.
+ */
+public enum ActivityType {
+    SITTING(0, "Sitting"),
+    SLEEPING(1, "Sleeping"),
+    WALKING(2, "Walking");
+
+    // The activities indexed by their code
+    private static final ActivityType[] BY_CODE = new ActivityType[values().length];
+
+    static {
+        for (ActivityType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+    private final String label;
+
+    ActivityType(int code, String label) {
+        this.code = code;
+        this.label = label;
+    }
+
+    /**
+     * Returns the code that is stored for this activity
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the name shown to the user, e.g. "Walking"
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Returns the activity with the given code, or null if there isn't one
+     */
+    public static ActivityType fromCode(int code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            return null;
+        }
+        return BY_CODE[code];
+    }
+
+    /**
+     * Returns the activity with the given name, or null if there isn't one
+     */
+    public static ActivityType fromLabel(String label) {
+        for (ActivityType type : BY_CODE) {
+            if (type.label.equals(label)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * The user's activity over one classified window
+ */
+public class ActivityWindow {
+
+    // The wall clock start and end of the window in milliseconds
+    public final long startMillis;
+    public final long endMillis;
+
+    public final ActivityType activity;
+    public final float confidence;
+
+    // What the activity was decided from
+    public final double averageAngle;
+    public final int numIntervalsWalking;
+
+    // The accelerometer features of the window, indexed by the FeatureExtractor constants.
+    // null for windows published early, before the features are known.
+    public final float[] features;
+
+    public ActivityWindow(long startMillis, long endMillis, ActivityType activity, float confidence,
+                          double averageAngle, int numIntervalsWalking, float[] features) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.activity = activity;
+        this.confidence = confidence;
+        this.averageAngle = averageAngle;
+        this.numIntervalsWalking = numIntervalsWalking;
+        this.features = features;
+    }
+
+    @Override
+    public String toString() {
+        return activity.getLabel() + " [" + startMillis + ", " + endMillis + ")";
+    }
+}
@@ -0,0 +1,101 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Computes the Y angles of a batch of accelerometer samples in single precision, without
+ * Math.sqrt or Math.acos. It's the batch counterpart of AccelerometerEngine.yAngle().
+ *
+ * 1 / |v| comes from the inverse square root bit trick refined with 2 Newton steps. The angle
+ * uses acos(c) = sqrt(1 - c) * f(c), where f(c) = acos(c) / sqrt(1 - c) is smooth on [0, 1]
+ * and read from a linearly interpolated table. 1 - c is computed as (x^2 + z^2) / |v|^2 / (1 + c)
+ * instead of subtracting, so the angle stays accurate near 0 and 180 degrees, where acos is
+ * steepest. The result is within MAX_ERROR_DEGREES of yAngle(), see AngleKernelTest.
+ *
+ * The work is split into 2 counted loops: the first is only float arithmetic on arrays, which
+ * the JIT can vectorize, and the second does the table lookups. Not thread safe, it keeps
+ * scratch arrays for the first loop.
+ */
+public class AngleKernel {
+
+    // The most the angles differ from yAngle(), in degrees
+    public static final float MAX_ERROR_DEGREES = 0.001f;
+
+    // The number of intervals in the table of f over [0, 1]
+    static final int TABLE_SIZE = 512;
+
+    // f(c) at c = i / TABLE_SIZE, and one more entry so the last interval can be interpolated
+    private static final float[] TABLE = new float[TABLE_SIZE + 2];
+
+    static {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double c = (double) i / TABLE_SIZE;
+            TABLE[i] = (float) (Math.acos(c) / Math.sqrt(1 - c));
+        }
+        // The limit at c = 1
+        TABLE[TABLE_SIZE] = (float) Math.sqrt(2);
+        TABLE[TABLE_SIZE + 1] = TABLE[TABLE_SIZE];
+    }
+
+    private static final float DEGREES = (float) (180 / Math.PI);
+
+    // |cos| and sqrt(1 - |cos|) of each sample, from the first loop
+    private float[] cosines;
+    private float[] roots;
+
+    public AngleKernel(int capacity) {
+        cosines = new float[capacity];
+        roots = new float[capacity];
+    }
+
+    /**
+     * Returns 1 / sqrt(value) within a relative error of about 5e-6, or a huge number for 0
+     */
+    static float inverseSqrt(float value) {
+        float half = 0.5f * value;
+        float r = Float.intBitsToFloat(0x5f375a86 - (Float.floatToRawIntBits(value) >> 1));
+        r = r * (1.5f - half * r * r);
+        r = r * (1.5f - half * r * r);
+        return r;
+    }
+
+    /**
+     * Writes the Y angles in degrees of count samples, starting at from in the inputs and at
+     * offset in the output. A zero vector gets NaN, like yAngle().
+     */
+    public void angles(float[] xs, float[] ys, float[] zs, int from, float[] out, int offset, int count) {
+        if (count > cosines.length) {
+            cosines = new float[count];
+            roots = new float[count];
+        }
+        float[] cosines = this.cosines;
+        float[] roots = this.roots;
+
+        // Only arithmetic, so it can be vectorized
+        for (int i = 0; i < count; i++) {
+            float x = xs[from + i];
+            float y = ys[from + i];
+            float z = zs[from + i];
+            float horizontal = x * x + z * z;
+            float r = inverseSqrt(horizontal + y * y);
+            float c = Math.min(Math.abs(y) * r, 1f);
+            // 1 - c without the cancellation
+            float d = horizontal * r * r / (1f + c);
+            cosines[i] = c;
+            roots[i] = d * inverseSqrt(d);
+        }
+
+        for (int i = 0; i < count; i++) {
+            float scaled = cosines[i] * TABLE_SIZE;
+            int j = (int) scaled;
+            float f = TABLE[j] + (scaled - j) * (TABLE[j + 1] - TABLE[j]);
+            float angle = roots[i] * f * DEGREES;
+            float y = ys[from + i];
+            if (y < 0) {
+                angle = 180f - angle;
+            }
+            if (y == 0 && xs[from + i] == 0 && zs[from + i] == 0) {
+                angle = Float.NaN;
+            }
+            out[offset + i] = angle;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Decides the activity of a 2 minute window from its inputs, so the rules can be swapped for
+ * a trained model. The inputs are one flat array of NUM_INPUTS values: the FeatureExtractor
+ * features at their own indexes, then the walking intervals and the average Y angle.
+ *
+ * The same array is reused for every window, so implementations mustn't keep it, and they
+ * shouldn't allocate either since classify() runs on the sensor thread.
+ */
+public interface Classifier {
+
+    // The walking intervals out of 6 and the average Y angle in degrees, after the features
+    int INTERVALS_WALKING = FeatureExtractor.NUM_FEATURES;
+    int AVERAGE_ANGLE = FeatureExtractor.NUM_FEATURES + 1;
+
+    int NUM_INPUTS = FeatureExtractor.NUM_FEATURES + 2;
+
+    ActivityType classify(float[] inputs);
+}
@@ -0,0 +1,185 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Adds up the distance the user moves from every location fix as it arrives, so the end of
+ * an interval only has to read one number instead of polling and comparing the last known
+ * locations.
+ *
+ * Fixes that are too inaccurate are dropped. GPS is preferred because it's more accurate, so
+ * network fixes are only used while there hasn't been a GPS fix for a while (we are inside).
+ * Switching providers moves the anchor without adding the jump between them.
+ *
+ * A phone lying still still gets fixes that wander by a few meters, which would add up to a
+ * walk. So the anchor only moves, and the hop is only added, once a fix is further from it
+ * than the sum of the two fixes' accuracies, at most MAX_JITTER. Slow movement is added in
+ * larger, later hops. The cap keeps a walk showing up in every 20 second interval even with
+ * 20 m GPS or network fixes, whose jitter then adds some distance while standing still.
+ *
+ * Short hops use an equirectangular approximation with a cached cos(latitude), which is within
+ * 0.01% of the haversine distance for hops under about 1 km. Long hops fall back to haversine.
+ */
+public class DistanceAccumulator {
+
+    // Fixes less accurate than this (in meters) are dropped
+    public static final float MAX_ACCURACY = 50f;
+
+    // Hops up to the fixes' combined accuracy, but never more than this (in meters), are jitter.
+    // Walking at 1.4 m/s covers it in about 11 seconds, so every interval still has a hop.
+    public static final float MAX_JITTER = 15f;
+
+    // Network fixes are ignored while the last GPS fix is newer than this
+    public static final long GPS_FRESH_MILLIS = 30000;
+
+    // Hops with both coordinates closer than this (in degrees, about 1 km) use the approximation
+    public static final double SHORT_HOP_DEGREES = 0.01;
+
+    // The cached cosine is recomputed when the latitude moves further than this (in degrees)
+    private static final double COS_CACHE_DEGREES = 0.005;
+
+    // The last fix that was used, the distance is measured from here. WindowCheckpoint saves it.
+    boolean hasAnchor = false;
+    int anchorProvider;
+    double anchorLatitude;
+    double anchorLongitude;
+    long anchorElapsedMillis;
+    float anchorAccuracy;
+
+    // When the last GPS fix was used
+    private long lastGpsElapsedMillis = Long.MIN_VALUE;
+
+    // cos(latitude) and the latitude it was computed for
+    private double cachedCosLatitude;
+    private double cachedLatitude = Double.NaN;
+
+    // The distance since the last takeDistance(), in meters, and the fixes it was added up from
+    private double distance = 0;
+    private int fixesSinceTake = 0;
+
+    // What happened to the fixes, for the metrics
+    private long acceptedFixes = 0;
+    private long inaccurateFixes = 0;
+    private long staleFixes = 0;
+
+    /**
+     * Adds a fix that was received at the given elapsed time. Returns true if it was used.
+     */
+    public boolean onFix(LocationFix fix, long elapsedMillis) {
+        // An accuracy of 0 means the provider didn't report one
+        if (fix.accuracy > MAX_ACCURACY) {
+            inaccurateFixes++;
+            return false;
+        }
+
+        if (fix.provider == LocationFix.PROVIDER_GPS) {
+            lastGpsElapsedMillis = elapsedMillis;
+        } else if (lastGpsElapsedMillis != Long.MIN_VALUE
+                && elapsedMillis - lastGpsElapsedMillis < GPS_FRESH_MILLIS) {
+            staleFixes++;
+            return false;
+        }
+
+        if (hasAnchor && elapsedMillis < anchorElapsedMillis) {
+            staleFixes++;
+            return false;
+        }
+
+        acceptedFixes++;
+        fixesSinceTake++;
+
+        if (hasAnchor && fix.provider == anchorProvider) {
+            double hop = distance(anchorLatitude, anchorLongitude, fix.latitude, fix.longitude);
+            // Within the fixes' combined error, it's jitter around the anchor
+            if (hop <= Math.min(anchorAccuracy + fix.accuracy, MAX_JITTER)) {
+                return true;
+            }
+            distance += hop;
+        }
+
+        hasAnchor = true;
+        anchorProvider = fix.provider;
+        anchorLatitude = fix.latitude;
+        anchorLongitude = fix.longitude;
+        anchorElapsedMillis = elapsedMillis;
+        anchorAccuracy = fix.accuracy;
+        return true;
+    }
+
+    /**
+     * Returns the distance in meters between two points in degrees
+     */
+    double distance(double prevLat, double prevLng, double lat, double lng) {
+        double dLat = lat - prevLat;
+        double dLng = lng - prevLng;
+
+        if (Math.abs(dLat) >= SHORT_HOP_DEGREES || Math.abs(dLng) >= SHORT_HOP_DEGREES) {
+            return Geo.haversine(prevLat, prevLng, lat, lng);
+        }
+
+        if (!(Math.abs(prevLat - cachedLatitude) < COS_CACHE_DEGREES)) {
+            cachedLatitude = prevLat;
+            cachedCosLatitude = Math.cos(Math.toRadians(prevLat));
+        }
+
+        double x = Math.toRadians(dLng) * cachedCosLatitude;
+        double y = Math.toRadians(dLat);
+        return Geo.EARTH_RADIUS * Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * Returns the distance in meters moved since the last call and starts again from 0,
+     * or NaN if there hasn't been a usable fix yet
+     */
+    public double takeDistance() {
+        if (!hasAnchor) {
+            return Double.NaN;
+        }
+
+        double taken = distance;
+        distance = 0;
+        fixesSinceTake = 0;
+        return taken;
+    }
+
+    /**
+     * Returns the fixes accepted since the last takeDistance(). A distance of 0 can mean
+     * the user didn't move or that no fix came in, this tells them apart.
+     */
+    public int getFixesSinceTake() {
+        return fixesSinceTake;
+    }
+
+    /**
+     * Forgets the anchor, so the next fix starts a new track without adding the jump to it
+     */
+    public void resetAnchor() {
+        hasAnchor = false;
+    }
+
+    /**
+     * Puts back an anchor saved in a checkpoint, so the first fix after a restart adds the
+     * distance from it instead of starting a new track
+     */
+    void restoreAnchor(int provider, double latitude, double longitude, long elapsedMillis, float accuracy) {
+        hasAnchor = true;
+        anchorProvider = provider;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        anchorElapsedMillis = elapsedMillis;
+        anchorAccuracy = accuracy;
+        if (provider == LocationFix.PROVIDER_GPS) {
+            lastGpsElapsedMillis = elapsedMillis;
+        }
+    }
+
+    public long getAcceptedFixes() {
+        return acceptedFixes;
+    }
+
+    public long getInaccurateFixes() {
+        return inaccurateFixes;
+    }
+
+    public long getStaleFixes() {
+        return staleFixes;
+    }
+}
@@ -0,0 +1,242 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Turns the accelerometer stream into a small feature vector per window: the mean and
+ * variance of each axis and of the magnitude, and the step cadence.
+ *
+ * The means and variances are kept with Welford's method, so each sample costs a few
+ * additions. The cadence comes from the autocorrelation of the magnitude over blocks of a few
+ * seconds, kept in a fixed float array. Each full block is searched once for the first strong
+ * peak between 0.25 and 1.5 seconds (40 to 240 steps per minute), which adds a few dozen
+ * multiplications per sample. Nothing is allocated after the constructor.
+ *
+ * Not thread safe, samples should come from one thread.
+ */
+public class FeatureExtractor implements SampleSink {
+
+    // The positions in the feature vector
+    public static final int MEAN_X = 0;
+    public static final int MEAN_Y = 1;
+    public static final int MEAN_Z = 2;
+    public static final int VARIANCE_X = 3;
+    public static final int VARIANCE_Y = 4;
+    public static final int VARIANCE_Z = 5;
+    public static final int MEAN_MAGNITUDE = 6;
+    public static final int VARIANCE_MAGNITUDE = 7;
+    // Steps per minute over the periodic blocks, 0 if none were periodic
+    public static final int CADENCE = 8;
+    // The fraction of the blocks that were periodic, 0 to 1
+    public static final int PERIODIC_FRACTION = 9;
+    // The sampling rate the window was measured at, in Hz
+    public static final int SAMPLE_RATE = 10;
+    public static final int NUM_FEATURES = 11;
+
+    // The most samples in one autocorrelation block
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    // A block is closed after this long even if it isn't full, 5 seconds
+    public static final long BLOCK_NANOS = 5000000000L;
+
+    // A block is dropped when the samples stop for longer than this, e.g. the sensor was re-registered
+    public static final long MAX_GAP_NANOS = 1000000000L;
+
+    // The shortest and longest step periods searched, in nanoseconds
+    public static final long MIN_STEP_NANOS = 250000000L;
+    public static final long MAX_STEP_NANOS = 1500000000L;
+
+    // The normalized autocorrelation a peak needs for the block to count as periodic
+    public static final float MIN_PERIODICITY = 0.5f;
+
+    // Blocks with a smaller magnitude variance (m/s^2 squared) are stillness, not steps
+    public static final float MIN_BLOCK_VARIANCE = 0.05f;
+
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    // The Welford state of the window, in the order x, y, z, magnitude
+    private final double[] means = new double[4];
+    private final double[] m2s = new double[4];
+    private long count = 0;
+
+    // The first and last timestamps of the window, for the sampling rate
+    private long windowFirstNanos;
+    private long windowLastNanos;
+
+    // The magnitudes of the current block and the autocorrelation of each lag
+    private final float[] block;
+    private final float[] correlations;
+    private int blockCount = 0;
+    private long blockFirstNanos;
+    private long lastNanos;
+
+    // The blocks searched in this window, and the step periods of the periodic ones
+    private int blocks = 0;
+    private int periodicBlocks = 0;
+    private double stepNanosSum = 0;
+
+    public FeatureExtractor() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public FeatureExtractor(int blockSize) {
+        if (blockSize < 16) {
+            throw new IllegalArgumentException("block size is too small: " + blockSize);
+        }
+        block = new float[blockSize];
+        // Up to the largest lag, blockSize / 2, and one lag of context after it
+        correlations = new float[blockSize / 2 + 2];
+    }
+
+    /**
+     * Adds one sample measured at the given time in nanoseconds
+     */
+    public void onSample(long timestampNanos, float x, float y, float z) {
+        float magnitude = (float) Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+
+        if (count == 0) {
+            windowFirstNanos = timestampNanos;
+        }
+        windowLastNanos = timestampNanos;
+
+        count++;
+        update(0, x);
+        update(1, y);
+        update(2, z);
+        update(3, magnitude);
+
+        // A gap or a clock going backwards breaks the spacing the lags rely on
+        if (blockCount > 0 && (timestampNanos - lastNanos > MAX_GAP_NANOS || timestampNanos < lastNanos)) {
+            blockCount = 0;
+        }
+        if (blockCount == 0) {
+            blockFirstNanos = timestampNanos;
+        }
+        lastNanos = timestampNanos;
+
+        block[blockCount++] = magnitude;
+        if (blockCount == block.length || timestampNanos - blockFirstNanos >= BLOCK_NANOS) {
+            searchBlock();
+            blockCount = 0;
+        }
+    }
+
+    @Override
+    public void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+        for (int i = 0; i < count; i++) {
+            onSample(timestamps[i], xs[i], ys[i], zs[i]);
+        }
+    }
+
+    private void update(int i, double value) {
+        double delta = value - means[i];
+        means[i] += delta / count;
+        m2s[i] += delta * (value - means[i]);
+    }
+
+    /**
+     * Looks for the step period in the magnitudes of the current block
+     */
+    private void searchBlock() {
+        int n = blockCount;
+        if (n < 2) {
+            return;
+        }
+
+        double sampleNanos = (double) (lastNanos - blockFirstNanos) / (n - 1);
+        int minLag = (int) Math.ceil(MIN_STEP_NANOS / sampleNanos);
+        int maxLag = Math.min((int) (MAX_STEP_NANOS / sampleNanos), n / 2);
+
+        // Too slow a rate to see steps, or too short a block
+        if (minLag < 2 || maxLag <= minLag) {
+            return;
+        }
+        blocks++;
+
+        double mean = 0;
+        for (int i = 0; i < n; i++) {
+            mean += block[i];
+        }
+        mean /= n;
+
+        double energy = 0;
+        for (int i = 0; i < n; i++) {
+            float d = (float) (block[i] - mean);
+            block[i] = d;
+            energy += d * d;
+        }
+        if (energy / n < MIN_BLOCK_VARIANCE) {
+            return;
+        }
+
+        // The normalized autocorrelation of each lag, with one lag of context on either side
+        for (int lag = minLag - 1; lag <= maxLag + 1 && lag < n; lag++) {
+            double sum = 0;
+            for (int i = 0; i + lag < n; i++) {
+                sum += block[i] * block[i + lag];
+            }
+            correlations[lag] = (float) ((sum / (n - lag)) / (energy / n));
+        }
+
+        // The first peak that is strong enough, later peaks are usually strides (2 steps)
+        for (int lag = minLag; lag <= maxLag && lag + 1 < n; lag++) {
+            float r = correlations[lag];
+            if (r >= MIN_PERIODICITY && r > correlations[lag - 1] && r >= correlations[lag + 1]) {
+                periodicBlocks++;
+                stepNanosSum += lag * sampleNanos;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the features of the current window into the array, which must hold NUM_FEATURES values
+     */
+    public void getFeatures(float[] features) {
+        for (int i = 0; i < 3; i++) {
+            features[MEAN_X + i] = (float) means[i];
+            features[VARIANCE_X + i] = (float) variance(i);
+        }
+        features[MEAN_MAGNITUDE] = (float) means[3];
+        features[VARIANCE_MAGNITUDE] = (float) variance(3);
+
+        features[CADENCE] = periodicBlocks == 0 ? 0f
+                : (float) (NANOS_PER_MINUTE / (stepNanosSum / periodicBlocks));
+        features[PERIODIC_FRACTION] = blocks == 0 ? 0f : (float) periodicBlocks / blocks;
+        features[SAMPLE_RATE] = count < 2 || windowLastNanos == windowFirstNanos ? 0f
+                : (float) ((count - 1) * 1e9 / (windowLastNanos - windowFirstNanos));
+    }
+
+    /**
+     * Returns a new array with the features of the current window
+     */
+    public float[] getFeatures() {
+        float[] features = new float[NUM_FEATURES];
+        getFeatures(features);
+        return features;
+    }
+
+    private double variance(int i) {
+        return count > 1 ? m2s[i] / (count - 1) : 0;
+    }
+
+    /**
+     * Returns the number of samples in the current window
+     */
+    public long getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Resets the statistics for the next window. The block in progress carries on,
+     * so the cadence isn't lost at every window boundary.
+     */
+    public void resetWindow() {
+        for (int i = 0; i < 4; i++) {
+            means[i] = 0;
+            m2s[i] = 0;
+        }
+        count = 0;
+        blocks = 0;
+        periodicBlocks = 0;
+        stepNanosSum = 0;
+    }
+}
@@ -0,0 +1,30 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Distance calculations between latitude / longitude points
+ */
+public class Geo {
+
+    // Earth radius at the equator in meters
+    public static final double EARTH_RADIUS = 6378137;
+
+    private Geo() { }
+
+    /**
+     * Calculates the Great Circle Distance in meters between two points in degrees,
+     * which is the true distance that the user walked
+     */
+    public static double haversine(double prevLat, double prevLng, double lat, double lng) {
+        double radLat = Math.toRadians(prevLat - lat);
+        double radLng = Math.toRadians(prevLng - lng);
+
+        double sinLat = Math.sin(radLat / 2);
+        double sinLng = Math.sin(radLng / 2);
+
+        double a = sinLat * sinLat
+                + Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(prevLat)) * sinLng * sinLng;
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+
+        return EARTH_RADIUS * c;
+    }
+}
@@ -0,0 +1,108 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with one bucket per power of 2, so recording is a
+ * couple of atomic additions and never allocates. Bucket i holds durations from 2^(i-1) up to
+ * 2^i - 1 nanoseconds, which is precise enough to tell 50 us from 5 ms.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records one duration
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Records the same duration several times, e.g. the average time of each sample in a batch
+     */
+    public void record(long nanos, long times) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        buckets.addAndGet(bucketOf(nanos), times);
+        count.addAndGet(times);
+        totalNanos.addAndGet(nanos * times);
+
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Another thread raised the max, check again
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns the mean duration, 0 if nothing was recorded
+     */
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    /**
+     * Returns an upper bound of the duration below which the fraction of the recordings are,
+     * the end of the bucket that the quantile falls in. 0 if nothing was recorded.
+     */
+    public long getQuantileNanos(double quantile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Appends a one line summary in microseconds, e.g. "n=120 mean=41.2us p50<=63us p99<=255us max=180us"
+     */
+    public void appendTo(StringBuilder builder) {
+        builder.append("n=").append(getCount())
+                .append(String.format(" mean=%.1fus", getMeanNanos() / 1000))
+                .append(" p50<=").append(getQuantileNanos(0.5) / 1000).append("us")
+                .append(" p99<=").append(getQuantileNanos(0.99) / 1000).append("us")
+                .append(" max=").append(getMaxNanos() / 1000).append("us");
+    }
+
+    /**
+     * Forgets everything that was recorded
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
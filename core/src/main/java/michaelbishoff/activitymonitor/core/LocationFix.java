@@ -0,0 +1,39 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * A location fix as plain values, so it can be used without android.location.Location.
+ * Mutable so that it can be reused.
+ */
+public class LocationFix {
+
+    public static final int PROVIDER_GPS = 0;
+    public static final int PROVIDER_NETWORK = 1;
+
+    public int provider;
+    public double latitude;
+    public double longitude;
+
+    // The UTC time of the fix in milliseconds
+    public long time;
+
+    // The estimated accuracy in meters
+    public float accuracy;
+
+    public LocationFix() { }
+
+    public LocationFix(int provider, double latitude, double longitude, long time, float accuracy) {
+        set(provider, latitude, longitude, time, accuracy);
+    }
+
+    public void set(int provider, double latitude, double longitude, long time, float accuracy) {
+        this.provider = provider;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.time = time;
+        this.accuracy = accuracy;
+    }
+
+    public void set(LocationFix other) {
+        set(other.provider, other.latitude, other.longitude, other.time, other.accuracy);
+    }
+}
@@ -0,0 +1,21 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * The hand written ActivityRules as a Classifier, the default when there is no model
+ */
+public class RuleClassifier implements Classifier {
+
+    @Override
+    public ActivityType classify(float[] inputs) {
+        return ActivityRules.classify((int) inputs[INTERVALS_WALKING], inputs[AVERAGE_ANGLE]);
+    }
+
+    /**
+     * Puts the inputs of a window in the array, which must hold NUM_INPUTS values
+     */
+    public static void putInputs(float[] inputs, float[] features, int numIntervalsWalking, double averageAngle) {
+        System.arraycopy(features, 0, inputs, 0, FeatureExtractor.NUM_FEATURES);
+        inputs[INTERVALS_WALKING] = numIntervalsWalking;
+        inputs[AVERAGE_ANGLE] = (float) averageAngle;
+    }
+}
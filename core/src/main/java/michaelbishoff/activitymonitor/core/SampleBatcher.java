@@ -0,0 +1,77 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Collects samples that arrive one at a time into preallocated arrays and hands them
+ * to a SampleSink in one call. The owner calls flush() once a burst is over, and the
+ * batch is also flushed whenever the arrays fill up. Not thread safe.
+ */
+public class SampleBatcher {
+
+    private final SampleSink sink;
+
+    // The samples of the current batch
+    private final long[] timestamps;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+    private int count = 0;
+
+    public SampleBatcher(int capacity, SampleSink sink) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        this.sink = sink;
+        timestamps = new long[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        zs = new float[capacity];
+    }
+
+    /**
+     * Adds a sample to the batch. Returns true if it started a new batch,
+     * which is when the owner should schedule a flush().
+     */
+    public boolean add(long timestamp, float x, float y, float z) {
+        timestamps[count] = timestamp;
+        xs[count] = x;
+        ys[count] = y;
+        zs[count] = z;
+
+        boolean first = ++count == 1;
+
+        // The batch is full, so deliver it now instead of waiting for the flush
+        if (count == timestamps.length) {
+            flush();
+        }
+
+        return first;
+    }
+
+    /**
+     * Delivers the batched samples to the sink, if there are any
+     */
+    public void flush() {
+        if (count == 0) {
+            return;
+        }
+
+        int n = count;
+        count = 0;
+        sink.onSamples(timestamps, xs, ys, zs, n);
+    }
+
+    /**
+     * Returns the number of samples waiting in the batch
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the maximum number of samples in a batch
+     */
+    public int capacity() {
+        return timestamps.length;
+    }
+}
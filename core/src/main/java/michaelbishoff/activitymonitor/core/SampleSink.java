@@ -0,0 +1,14 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Receives accelerometer samples a whole batch at a time. The arrays are owned by the
+ * caller and reused for the next batch, so they must not be kept after the call returns.
+ */
+public interface SampleSink {
+
+    /**
+     * Called with the first count samples of the arrays, oldest first.
+     * Timestamps are in nanoseconds, like SensorEvent.timestamp.
+     */
+    void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count);
+}
@@ -0,0 +1,18 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Something that produces accelerometer samples in batches, e.g. the hardware sensor
+ * on a phone or a fake source in the tests.
+ */
+public interface SampleSource {
+
+    /**
+     * Starts delivering batches of samples to the sink
+     */
+    void start(SampleSink sink);
+
+    /**
+     * Stops delivering samples. Samples that are already batched are delivered first.
+     */
+    void stop();
+}
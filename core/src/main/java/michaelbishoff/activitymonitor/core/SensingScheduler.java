@@ -0,0 +1,210 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides how often the accelerometer and the location providers are sampled. While the user
+ * isn't walking and the phone's angle stays flat, the rates step down a level every 2 minutes.
+ * As soon as motion shows up in a sensor batch or an interval, or the significant motion sensor
+ * triggers, they go straight back to ACTIVE.
+ *
+ * The scheduler counts the sensor wakeups and location fixes at each level, and passes their
+ * hourly rates to the listener on every change. It also keeps the totals and the time spent
+ * at each level, so the savings can be measured over any stretch, e.g. by dumpsys.
+ */
+public class SensingScheduler {
+
+    /**
+     * The sampling rates of each level
+     */
+    public enum Level {
+        // The accelerometer at 50 Hz (SENSOR_DELAY_GAME), fast enough to see the step
+        // cadence, and locations as fast as possible
+        ACTIVE(20000, 0),
+        IDLE(500000, 60000),
+        DEEP_IDLE(1000000, 300000);
+
+        // The accelerometer sampling period in microseconds
+        public final int samplingPeriodUs;
+
+        // The minimum time between location updates in milliseconds
+        public final long locationIntervalMillis;
+
+        Level(int samplingPeriodUs, long locationIntervalMillis) {
+            this.samplingPeriodUs = samplingPeriodUs;
+            this.locationIntervalMillis = locationIntervalMillis;
+        }
+    }
+
+    /**
+     * Told about every level change, with the hourly rates measured at the old level
+     */
+    public interface Listener {
+        void onLevelChanged(Level from, Level to, String reason, double wakeupsPerHour, double fixesPerHour);
+    }
+
+    // Below this angle variance (degrees squared) the phone counts as flat
+    public static final double FLAT_ANGLE_VARIANCE = 4.0;
+
+    // Above this angle variance in a single sensor batch the phone is moving
+    public static final double MOTION_ANGLE_VARIANCE = 25.0;
+
+    // The number of quiet 20 second intervals before stepping down a level
+    public static final int QUIET_INTERVALS_PER_STEP = 6;
+
+    private static final double MILLIS_PER_HOUR = 3600000.0;
+
+    private final Listener listener;
+
+    private Level level = Level.ACTIVE;
+    private int quietIntervals = 0;
+
+    // When the current level started, and the wakeups and fixes since then
+    private long levelStartMillis;
+    private long levelWakeups = 0;
+    private long levelFixes = 0;
+
+    // The time, wakeups and fixes at each level before the current stretch, indexed by ordinal
+    private final long[] millisAtLevel = new long[Level.values().length];
+    private final long[] wakeupsAtLevel = new long[Level.values().length];
+    private final long[] fixesAtLevel = new long[Level.values().length];
+    private int levelChanges = 0;
+
+    public SensingScheduler(long nowMillis, Listener listener) {
+        this.listener = listener;
+        levelStartMillis = nowMillis;
+    }
+
+    /**
+     * Called at the end of every 20 second interval with the walking intervals
+     * and the angle variance of the current window
+     */
+    public synchronized void onInterval(long nowMillis, int numIntervalsWalking, double angleVariance) {
+        if (numIntervalsWalking > 0 || angleVariance >= FLAT_ANGLE_VARIANCE) {
+            quietIntervals = 0;
+            if (level != Level.ACTIVE) {
+                changeLevel(nowMillis, Level.ACTIVE, "motion in interval");
+            }
+            return;
+        }
+
+        // Steps down a level after each 2 minutes of being quiet
+        if (++quietIntervals >= QUIET_INTERVALS_PER_STEP && level != Level.DEEP_IDLE) {
+            quietIntervals = 0;
+            changeLevel(nowMillis, Level.values()[level.ordinal() + 1], "quiet");
+        }
+    }
+
+    /**
+     * Called when a sensor batch is delivered, with the variance of its angles
+     */
+    public synchronized void onBatch(long nowMillis, double batchAngleVariance) {
+        levelWakeups++;
+
+        if (batchAngleVariance >= MOTION_ANGLE_VARIANCE) {
+            quietIntervals = 0;
+            if (level != Level.ACTIVE) {
+                changeLevel(nowMillis, Level.ACTIVE, "motion in sensor batch");
+            }
+        }
+    }
+
+    /**
+     * Called when the significant motion sensor triggers. The slow levels sample too rarely
+     * for the StepDetector, so this is what gets walking seen quickly after a quiet stretch.
+     */
+    public synchronized void onSignificantMotion(long nowMillis) {
+        quietIntervals = 0;
+        if (level != Level.ACTIVE) {
+            changeLevel(nowMillis, Level.ACTIVE, "significant motion");
+        }
+    }
+
+    /**
+     * Called for every location fix that is received
+     */
+    public synchronized void onFix() {
+        levelFixes++;
+    }
+
+    private void changeLevel(long nowMillis, Level newLevel, String reason) {
+        Level oldLevel = level;
+        long elapsed = Math.max(nowMillis - levelStartMillis, 1);
+
+        double wakeupsPerHour = levelWakeups * MILLIS_PER_HOUR / elapsed;
+        double fixesPerHour = levelFixes * MILLIS_PER_HOUR / elapsed;
+
+        millisAtLevel[oldLevel.ordinal()] += nowMillis - levelStartMillis;
+        wakeupsAtLevel[oldLevel.ordinal()] += levelWakeups;
+        fixesAtLevel[oldLevel.ordinal()] += levelFixes;
+        levelStartMillis = nowMillis;
+        levelWakeups = 0;
+        levelFixes = 0;
+        levelChanges++;
+        level = newLevel;
+
+        listener.onLevelChanged(oldLevel, newLevel, reason, wakeupsPerHour, fixesPerHour);
+    }
+
+    /**
+     * Returns the current level
+     */
+    public synchronized Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the total time spent at the level, including the current stretch
+     */
+    public synchronized long getMillisAtLevel(Level atLevel, long nowMillis) {
+        long millis = millisAtLevel[atLevel.ordinal()];
+        if (atLevel == level) {
+            millis += nowMillis - levelStartMillis;
+        }
+        return millis;
+    }
+
+    /**
+     * Returns the total sensor wakeups at the level, including the current stretch
+     */
+    public synchronized long getWakeupsAtLevel(Level atLevel) {
+        long wakeups = wakeupsAtLevel[atLevel.ordinal()];
+        if (atLevel == level) {
+            wakeups += levelWakeups;
+        }
+        return wakeups;
+    }
+
+    /**
+     * Returns the total location fixes at the level, including the current stretch
+     */
+    public synchronized long getFixesAtLevel(Level atLevel) {
+        long fixes = fixesAtLevel[atLevel.ordinal()];
+        if (atLevel == level) {
+            fixes += levelFixes;
+        }
+        return fixes;
+    }
+
+    /**
+     * Prints the time, wakeups and fixes at each level with their hourly rates
+     */
+    public synchronized void dump(PrintWriter writer, long nowMillis) {
+        writer.println("level: " + level + ", " + levelChanges + " changes");
+        for (Level atLevel : Level.values()) {
+            long millis = getMillisAtLevel(atLevel, nowMillis);
+            long wakeups = getWakeupsAtLevel(atLevel);
+            long fixes = getFixesAtLevel(atLevel);
+            double hours = Math.max(millis, 1) / MILLIS_PER_HOUR;
+            writer.println(String.format("  %s: %d s, %d wakeups (%.0f/h), %d fixes (%.0f/h)",
+                    atLevel, millis / 1000, wakeups, wakeups / hours, fixes, fixes / hours));
+        }
+    }
+
+    /**
+     * Returns the number of level changes so far
+     */
+    public synchronized int getLevelChanges() {
+        return levelChanges;
+    }
+}
@@ -0,0 +1,222 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an archive written by SensorArchiveWriter one record at a time, holding only one block
+ * in memory. After next() returns a record type, the fields of that type hold the record.
+ *
+ * The records come out block by block, so samples and fixes are each in time order
+ * but the two aren't merged.
+ */
+public class SensorArchiveReader implements Closeable {
+
+    private final DataInputStream in;
+    private final CRC32 crc = new CRC32();
+
+    // The quantization steps from the header
+    private final long timeStepNanos;
+    private final float accelerationStep;
+    private final double degreeStep;
+    private final float accuracyStep;
+
+    // The current block, its length, and the position of the next record in it
+    private byte[] payload = new byte[SensorArchiveWriter.BLOCK_SAMPLES * SensorArchiveWriter.MAX_SAMPLE_BYTES];
+    private int blockType;
+    private int blockLength;
+    private int remaining = 0;
+    private int position;
+
+    // The values the next record is decoded against
+    private long previousTime;
+    private long previousTimeDelta;
+    private int previousX;
+    private int previousY;
+    private int previousZ;
+    private long previousFixTime;
+    private long previousLatitude;
+    private long previousLongitude;
+
+    // The elapsed time of the current record, for both record types
+    public long elapsedNanos;
+
+    // The current accelerometer sample
+    public float x;
+    public float y;
+    public float z;
+
+    // The current location fix
+    public final LocationFix fix = new LocationFix();
+
+    public SensorArchiveReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+        try {
+            if (in.readInt() != SensorArchiveWriter.MAGIC) {
+                throw new IOException("Not a sensor archive: " + file);
+            }
+            int version = in.readInt();
+            if (version != SensorArchiveWriter.VERSION) {
+                throw new IOException("Unsupported sensor archive version " + version + ": " + file);
+            }
+            timeStepNanos = in.readLong();
+            accelerationStep = in.readFloat();
+            degreeStep = in.readDouble();
+            accuracyStep = in.readFloat();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next record, and returns its type (SensorArchiveWriter.ACCELEROMETER or LOCATION),
+     * or -1 at the end of the archive. A block cut off at the end, e.g. by the app being killed,
+     * counts as the end of the archive.
+     */
+    public int next() throws IOException {
+        if (remaining == 0 && !readBlock()) {
+            return -1;
+        }
+        remaining--;
+
+        if (blockType == SensorArchiveWriter.ACCELEROMETER) {
+            long timeDelta = previousTimeDelta + unzigzag(readVarLong());
+            previousTime += timeDelta;
+            previousTimeDelta = timeDelta;
+            previousX += unzigzag(readVarInt());
+            previousY += unzigzag(readVarInt());
+            previousZ += unzigzag(readVarInt());
+
+            elapsedNanos = previousTime * timeStepNanos;
+            x = previousX * accelerationStep;
+            y = previousY * accelerationStep;
+            z = previousZ * accelerationStep;
+        } else {
+            previousTime += unzigzag(readVarLong());
+            int provider = readByte();
+            previousFixTime += unzigzag(readVarLong());
+            previousLatitude += unzigzag(readVarLong());
+            previousLongitude += unzigzag(readVarLong());
+            float accuracy = readVarInt() * accuracyStep;
+
+            elapsedNanos = previousTime * timeStepNanos;
+            fix.set(provider, previousLatitude * degreeStep, previousLongitude * degreeStep,
+                    previousFixTime, accuracy);
+        }
+
+        return blockType;
+    }
+
+    /**
+     * Reads the next block into the payload. Returns false at the end of the archive.
+     */
+    private boolean readBlock() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+
+        int count;
+        int length;
+        int checksum;
+        try {
+            count = in.readInt();
+            length = in.readInt();
+            checksum = in.readInt();
+
+            // The header isn't in the checksum, so nothing in it is trusted before it's checked
+            int capacity;
+            int maxRecordBytes;
+            if (type == SensorArchiveWriter.ACCELEROMETER) {
+                capacity = SensorArchiveWriter.BLOCK_SAMPLES;
+                maxRecordBytes = SensorArchiveWriter.MAX_SAMPLE_BYTES;
+            } else if (type == SensorArchiveWriter.LOCATION) {
+                capacity = SensorArchiveWriter.BLOCK_FIXES;
+                maxRecordBytes = SensorArchiveWriter.MAX_FIX_BYTES;
+            } else {
+                throw new IOException("Unknown block type " + type);
+            }
+            if (count <= 0 || count > capacity || length < 0 || length > count * maxRecordBytes) {
+                throw new IOException("Corrupt block header: " + count + " records in " + length + " bytes");
+            }
+            if (length > payload.length) {
+                payload = new byte[length];
+            }
+            in.readFully(payload, 0, length);
+        } catch (EOFException e) {
+            return false;
+        }
+
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupt block, the checksum doesn't match");
+        }
+
+        blockType = type;
+        blockLength = length;
+        remaining = count;
+        position = 0;
+        previousTime = 0;
+        previousTimeDelta = 0;
+        previousX = 0;
+        previousY = 0;
+        previousZ = 0;
+        previousFixTime = 0;
+        previousLatitude = 0;
+        previousLongitude = 0;
+        return true;
+    }
+
+    private byte readByte() throws IOException {
+        if (position >= blockLength) {
+            throw new IOException("Corrupt block, more records than bytes");
+        }
+        return payload[position++];
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
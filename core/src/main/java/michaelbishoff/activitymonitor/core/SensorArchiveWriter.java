@@ -0,0 +1,250 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Archives the raw accelerometer samples and location fixes in a compact form, for keeping
+ * weeks of data to tune the classification. A sample takes about 5 bytes instead of the 21 of
+ * a SensorTraceWriter record.
+ *
+ * The values are quantized to fixed steps that are finer than the sensors' noise, and each one
+ * is stored as the difference from the one before, zigzag and varint encoded. For the sample
+ * times, which are nearly evenly spaced, the difference of the differences is stored instead.
+ *
+ * The file starts with a header:
+ *   int magic, int version, long time step (ns), float acceleration step (m/s^2),
+ *   double degree step, float accuracy step (m)
+ * followed by blocks of samples or fixes, each with its own header:
+ *   byte type, int record count, int payload length, int CRC32 of the payload
+ * Every block starts from zero, so it can be decoded on its own, and a damaged block doesn't
+ * affect the others. Samples and fixes are in separate blocks, in time order within each block.
+ * The methods are synchronized because samples and fixes are recorded on different threads.
+ */
+public class SensorArchiveWriter implements Closeable {
+
+    // "AMAR", the first 4 bytes of every archive
+    public static final int MAGIC = 0x414d4152;
+    public static final int VERSION = 1;
+
+    public static final byte ACCELEROMETER = SensorTraceWriter.ACCELEROMETER;
+    public static final byte LOCATION = SensorTraceWriter.LOCATION;
+
+    // The quantization steps, about 4x finer than the noise of a phone's sensors
+    public static final long TIME_STEP_NANOS = 1000;
+    public static final float ACCELERATION_STEP = 0.005f;
+    public static final double DEGREE_STEP = 1e-7;
+    public static final float ACCURACY_STEP = 0.1f;
+
+    // The most records in one block
+    public static final int BLOCK_SAMPLES = 1024;
+    public static final int BLOCK_FIXES = 64;
+
+    public static final int BLOCK_HEADER_SIZE = 13;
+
+    // The most bytes a record can take, a 64 bit varint is up to 10 bytes and a 32 bit one 5
+    static final int MAX_SAMPLE_BYTES = 10 + 3 * 5;
+    static final int MAX_FIX_BYTES = 10 + 1 + 10 + 10 + 10 + 5;
+
+    // The size of the same records in a SensorTraceWriter trace, for the compression ratio
+    private static final int TRACE_SAMPLE_BYTES = 21;
+    private static final int TRACE_FIX_BYTES = 38;
+
+    private final DataOutputStream out;
+    private final CRC32 crc = new CRC32();
+
+    // The block of samples being filled, and the values the next sample is encoded against
+    private final byte[] samplePayload = new byte[BLOCK_SAMPLES * MAX_SAMPLE_BYTES];
+    private int samplePosition = 0;
+    private int sampleCount = 0;
+    private long previousTime;
+    private long previousTimeDelta;
+    private int previousX;
+    private int previousY;
+    private int previousZ;
+
+    // The block of fixes being filled, and the values the next fix is encoded against
+    private final byte[] fixPayload = new byte[BLOCK_FIXES * MAX_FIX_BYTES];
+    private int fixPosition = 0;
+    private int fixCount = 0;
+    private long previousFixElapsed;
+    private long previousFixTime;
+    private long previousLatitude;
+    private long previousLongitude;
+
+    // The bytes written, and what a trace of the same records would have taken
+    private long archivedBytes;
+    private long traceBytes = 0;
+
+    public SensorArchiveWriter(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(TIME_STEP_NANOS);
+        out.writeFloat(ACCELERATION_STEP);
+        out.writeDouble(DEGREE_STEP);
+        out.writeFloat(ACCURACY_STEP);
+        archivedBytes = out.size();
+    }
+
+    /**
+     * Archives a batch of accelerometer samples
+     */
+    public synchronized void writeSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            long time = timestamps[i] / TIME_STEP_NANOS;
+            int x = Math.round(xs[i] / ACCELERATION_STEP);
+            int y = Math.round(ys[i] / ACCELERATION_STEP);
+            int z = Math.round(zs[i] / ACCELERATION_STEP);
+
+            long timeDelta = time - previousTime;
+            int p = samplePosition;
+            p = putVarLong(samplePayload, p, zigzag(timeDelta - previousTimeDelta));
+            p = putVarInt(samplePayload, p, zigzag(x - previousX));
+            p = putVarInt(samplePayload, p, zigzag(y - previousY));
+            p = putVarInt(samplePayload, p, zigzag(z - previousZ));
+            samplePosition = p;
+
+            previousTime = time;
+            previousTimeDelta = timeDelta;
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+            traceBytes += TRACE_SAMPLE_BYTES;
+
+            if (++sampleCount == BLOCK_SAMPLES) {
+                writeSampleBlock();
+            }
+        }
+    }
+
+    /**
+     * Archives a location fix that was received at the given elapsed time
+     */
+    public synchronized void writeLocation(long elapsedNanos, LocationFix fix) throws IOException {
+        long elapsed = elapsedNanos / TIME_STEP_NANOS;
+        long latitude = Math.round(fix.latitude / DEGREE_STEP);
+        long longitude = Math.round(fix.longitude / DEGREE_STEP);
+
+        int p = fixPosition;
+        p = putVarLong(fixPayload, p, zigzag(elapsed - previousFixElapsed));
+        fixPayload[p++] = (byte) fix.provider;
+        p = putVarLong(fixPayload, p, zigzag(fix.time - previousFixTime));
+        p = putVarLong(fixPayload, p, zigzag(latitude - previousLatitude));
+        p = putVarLong(fixPayload, p, zigzag(longitude - previousLongitude));
+        p = putVarInt(fixPayload, p, Math.max(0, Math.round(fix.accuracy / ACCURACY_STEP)));
+        fixPosition = p;
+
+        previousFixElapsed = elapsed;
+        previousFixTime = fix.time;
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+        traceBytes += TRACE_FIX_BYTES;
+
+        if (++fixCount == BLOCK_FIXES) {
+            writeFixBlock();
+        }
+    }
+
+    private void writeSampleBlock() throws IOException {
+        if (sampleCount > 0) {
+            writeBlock(ACCELEROMETER, sampleCount, samplePayload, samplePosition);
+        }
+        samplePosition = 0;
+        sampleCount = 0;
+        previousTime = 0;
+        previousTimeDelta = 0;
+        previousX = 0;
+        previousY = 0;
+        previousZ = 0;
+    }
+
+    private void writeFixBlock() throws IOException {
+        if (fixCount > 0) {
+            writeBlock(LOCATION, fixCount, fixPayload, fixPosition);
+        }
+        fixPosition = 0;
+        fixCount = 0;
+        previousFixElapsed = 0;
+        previousFixTime = 0;
+        previousLatitude = 0;
+        previousLongitude = 0;
+    }
+
+    private void writeBlock(byte type, int count, byte[] payload, int length) throws IOException {
+        crc.reset();
+        crc.update(payload, 0, length);
+
+        out.writeByte(type);
+        out.writeInt(count);
+        out.writeInt(length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload, 0, length);
+        archivedBytes += BLOCK_HEADER_SIZE + length;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int putVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    static int putVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Returns the bytes written so far, including the partial blocks once they are flushed
+     */
+    public synchronized long getArchivedBytes() {
+        return archivedBytes;
+    }
+
+    /**
+     * Returns the bytes a SensorTraceWriter would have written for the same records
+     */
+    public synchronized long getTraceBytes() {
+        return traceBytes;
+    }
+
+    /**
+     * Writes the partial blocks and flushes the file. Frequent flushes make smaller blocks,
+     * which compress a little worse.
+     */
+    public synchronized void flush() throws IOException {
+        writeSampleBlock();
+        writeFixBlock();
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a trace written by SensorTraceWriter one record at a time. After next() returns
+ * true, the fields of the record type it returned hold the record.
+ */
+public class SensorTraceReader implements Closeable {
+
+    private final DataInputStream in;
+
+    // The elapsed time of the current record, for both record types
+    public long elapsedNanos;
+
+    // The current accelerometer sample
+    public float x;
+    public float y;
+    public float z;
+
+    // The current location fix
+    public final LocationFix fix = new LocationFix();
+
+    public SensorTraceReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+        try {
+            if (in.readInt() != SensorTraceWriter.MAGIC) {
+                throw new IOException("Not a sensor trace: " + file);
+            }
+            int version = in.readInt();
+            if (version != SensorTraceWriter.VERSION) {
+                throw new IOException("Unsupported sensor trace version " + version + ": " + file);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next record, and returns its type (SensorTraceWriter.ACCELEROMETER or LOCATION),
+     * or -1 at the end of the trace. A record cut off at the end, e.g. by the app being killed,
+     * counts as the end of the trace.
+     */
+    public int next() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return -1;
+        }
+
+        try {
+            elapsedNanos = in.readLong();
+
+            if (type == SensorTraceWriter.ACCELEROMETER) {
+                x = in.readFloat();
+                y = in.readFloat();
+                z = in.readFloat();
+            } else if (type == SensorTraceWriter.LOCATION) {
+                int provider = in.readByte();
+                long time = in.readLong();
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                float accuracy = in.readFloat();
+                fix.set(provider, latitude, longitude, time, accuracy);
+            } else {
+                throw new IOException("Unknown record type " + type);
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+
+        return type;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
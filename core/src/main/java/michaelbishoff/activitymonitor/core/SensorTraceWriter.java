@@ -0,0 +1,73 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the accelerometer samples and location fixes the service sees, so they
+ * can be replayed later by the TraceReplayer.
+ *
+ * A trace starts with the magic and version ints, followed by tagged records:
+ *   ACCELEROMETER: long elapsedNanos, float x, float y, float z
+ *   LOCATION:      long elapsedNanos, byte provider, long time, double latitude,
+ *                  double longitude, float accuracy
+ * All records share the elapsedNanos clock (the sensor event clock), so they can be merged in order.
+ * The methods are synchronized because samples and fixes are recorded on different threads.
+ */
+public class SensorTraceWriter implements Closeable {
+
+    // "AMTR", the first 4 bytes of every trace
+    public static final int MAGIC = 0x414d5452;
+    public static final int VERSION = 1;
+
+    public static final byte ACCELEROMETER = 'A';
+    public static final byte LOCATION = 'L';
+
+    private final DataOutputStream out;
+
+    public SensorTraceWriter(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Records a batch of accelerometer samples
+     */
+    public synchronized void writeSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeByte(ACCELEROMETER);
+            out.writeLong(timestamps[i]);
+            out.writeFloat(xs[i]);
+            out.writeFloat(ys[i]);
+            out.writeFloat(zs[i]);
+        }
+    }
+
+    /**
+     * Records a location fix that was received at the given elapsed time
+     */
+    public synchronized void writeLocation(long elapsedNanos, LocationFix fix) throws IOException {
+        out.writeByte(LOCATION);
+        out.writeLong(elapsedNanos);
+        out.writeByte(fix.provider);
+        out.writeLong(fix.time);
+        out.writeDouble(fix.latitude);
+        out.writeDouble(fix.longitude);
+        out.writeFloat(fix.accuracy);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,157 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of each stage of the service, from the sensor batches to
+ * writing the activity log. Recording is a few atomic additions and doesn't allocate, so it
+ * can stay on in the field. dump() prints everything as text, for dumpsys.
+ */
+public class ServiceMetrics {
+
+    // The time to process a batch, and that time spread over each sample of the batch
+    public final LatencyHistogram batchNanos = new LatencyHistogram();
+    public final LatencyHistogram sampleNanos = new LatencyHistogram();
+
+    // The time to classify a window and hand it to the UI
+    public final LatencyHistogram windowNanos = new LatencyHistogram();
+
+    // The time to write an activity to the log
+    public final LatencyHistogram writeNanos = new LatencyHistogram();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+
+    // The fixes received from each provider, indexed by LocationFix.PROVIDER_*
+    private final AtomicLongArray fixes = new AtomicLongArray(2);
+
+    // The intervals that closed without any usable fix, so walking couldn't be decided
+    private final AtomicLong intervals = new AtomicLong();
+    private final AtomicLong intervalsWithoutFix = new AtomicLong();
+
+    private final AtomicLong windows = new AtomicLong();
+
+    // When the metrics started, in elapsed milliseconds, for the rates
+    private volatile long startMillis;
+
+    public ServiceMetrics(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * Records a sensor batch of count samples that took the given time to process
+     */
+    public void onBatch(int count, long nanos) {
+        batches.incrementAndGet();
+        samples.addAndGet(count);
+        batchNanos.record(nanos);
+        if (count > 0) {
+            sampleNanos.record(nanos / count, count);
+        }
+    }
+
+    public void onFix(int provider) {
+        fixes.incrementAndGet(provider);
+    }
+
+    /**
+     * Records a closed interval, and whether it had a usable fix
+     */
+    public void onInterval(boolean hadFix) {
+        intervals.incrementAndGet();
+        if (!hadFix) {
+            intervalsWithoutFix.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a classified window that took the given time
+     */
+    public void onWindow(long nanos) {
+        windows.incrementAndGet();
+        windowNanos.record(nanos);
+    }
+
+    public void onWrite(long nanos) {
+        writeNanos.record(nanos);
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getFixes(int provider) {
+        return fixes.get(provider);
+    }
+
+    public long getIntervalsWithoutFix() {
+        return intervalsWithoutFix.get();
+    }
+
+    public long getWindows() {
+        return windows.get();
+    }
+
+    /**
+     * Returns the samples per second since the metrics started
+     */
+    public double getSampleRate(long nowMillis) {
+        long elapsed = nowMillis - startMillis;
+        return elapsed <= 0 ? 0 : samples.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Prints all the metrics, one per line
+     */
+    public void dump(PrintWriter writer, long nowMillis) {
+        long elapsed = nowMillis - startMillis;
+        long batchCount = batches.get();
+
+        writer.println(String.format("uptime: %ds", elapsed / 1000));
+        writer.println(String.format("sensor: %d samples in %d batches, %.1f samples/s, %.1f per batch",
+                samples.get(), batchCount, getSampleRate(nowMillis),
+                batchCount == 0 ? 0.0 : (double) samples.get() / batchCount));
+        writer.println("fixes: gps=" + fixes.get(LocationFix.PROVIDER_GPS)
+                + " network=" + fixes.get(LocationFix.PROVIDER_NETWORK));
+        writer.println("intervals: " + intervals.get() + ", without a fix " + intervalsWithoutFix.get());
+        writer.println("windows: " + windows.get());
+
+        StringBuilder line = new StringBuilder();
+        dumpHistogram(writer, line, "batch", batchNanos);
+        dumpHistogram(writer, line, "sample", sampleNanos);
+        dumpHistogram(writer, line, "window", windowNanos);
+        dumpHistogram(writer, line, "write", writeNanos);
+    }
+
+    private static void dumpHistogram(PrintWriter writer, StringBuilder line, String name, LatencyHistogram histogram) {
+        line.setLength(0);
+        line.append(name).append(" latency: ");
+        histogram.appendTo(line);
+        writer.println(line);
+    }
+
+    /**
+     * Starts all the metrics again from 0
+     */
+    public void reset(long nowMillis) {
+        startMillis = nowMillis;
+        batchNanos.reset();
+        sampleNanos.reset();
+        windowNanos.reset();
+        writeNanos.reset();
+        batches.set(0);
+        samples.set(0);
+        for (int i = 0; i < fixes.length(); i++) {
+            fixes.set(i, 0);
+        }
+        intervals.set(0);
+        intervalsWithoutFix.set(0);
+        windows.set(0);
+    }
+}
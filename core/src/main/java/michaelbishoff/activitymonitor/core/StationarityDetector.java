@@ -0,0 +1,163 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Tells when the phone is lying still, so the location providers can be turned off
+ * completely instead of reporting GPS jitter as distance.
+ *
+ * The phone is still once every accelerometer sample for STILL_MILLIS stays within
+ * MOTION_THRESHOLD of the sample the quiet stretch started with. It's moving again as soon
+ * as one sample moves further than that, or when the significant motion sensor triggers.
+ * Samples arrive in batches, so the phone is seen moving at most one batch (the maximum
+ * report latency) after it starts, or straight away with the significant motion sensor.
+ *
+ * The detector keeps the time spent still and moving, so the time the location providers
+ * were on can be compared with how long they'd have been on without it. The times are
+ * elapsedRealtime milliseconds. The sample timestamps aren't on that clock on every phone,
+ * some use uptime, which stops in deep sleep. So each sample's time is taken back from when
+ * its batch was delivered, by how much earlier than the batch's last sample it is.
+ */
+public class StationarityDetector implements SampleSink {
+
+    /**
+     * Told when the phone becomes still or starts moving
+     */
+    public interface Listener {
+        void onStill(long nowMillis);
+
+        void onMoving(long nowMillis, String reason);
+    }
+
+    // How far a sample may be from the reference, as the sum of the axis differences in m/s^2.
+    // The noise of a phone on a table is well under 0.1 on each axis, picking it up isn't.
+    public static final float MOTION_THRESHOLD = 0.6f;
+
+    // How long the samples have to stay quiet before the phone is still
+    public static final long STILL_MILLIS = 60000;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final Listener listener;
+
+    private boolean still = false;
+
+    // The sample the quiet stretch started with, and when
+    private boolean hasReference = false;
+    private float referenceX;
+    private float referenceY;
+    private float referenceZ;
+    private long quietSinceMillis;
+
+    // When the current state started, and the time spent still before it
+    private long stateStartMillis;
+    private final long startMillis;
+    private long stillMillis = 0;
+    private int suspensions = 0;
+
+    public StationarityDetector(long nowMillis, Listener listener) {
+        this.listener = listener;
+        startMillis = nowMillis;
+        stateStartMillis = nowMillis;
+        quietSinceMillis = nowMillis;
+    }
+
+    /**
+     * Checks a batch of samples whose timestamps, in nanoseconds, are on the elapsedRealtime clock
+     */
+    @Override
+    public void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+        if (count > 0) {
+            onSamples(timestamps[count - 1] / NANOS_PER_MILLI, timestamps, xs, ys, zs, count);
+        }
+    }
+
+    /**
+     * Checks a batch of samples delivered at nowMillis. The timestamps are in nanoseconds
+     * on the sensor's clock, whatever it is, only their differences are used.
+     */
+    public synchronized void onSamples(long nowMillis, long[] timestamps, float[] xs, float[] ys, float[] zs,
+                                       int count) {
+        for (int i = 0; i < count; i++) {
+            long millis = nowMillis - (timestamps[count - 1] - timestamps[i]) / NANOS_PER_MILLI;
+
+            if (!hasReference) {
+                setReference(xs[i], ys[i], zs[i], millis);
+                continue;
+            }
+
+            float difference = Math.abs(xs[i] - referenceX) + Math.abs(ys[i] - referenceY)
+                    + Math.abs(zs[i] - referenceZ);
+            if (difference > MOTION_THRESHOLD) {
+                setReference(xs[i], ys[i], zs[i], millis);
+                if (still) {
+                    changeState(millis, false, "motion in samples");
+                }
+            } else if (!still && millis - quietSinceMillis >= STILL_MILLIS) {
+                changeState(millis, true, null);
+            }
+        }
+    }
+
+    /**
+     * Called when the significant motion sensor triggers
+     */
+    public synchronized void onSignificantMotion(long nowMillis) {
+        // The next sample starts a new quiet stretch
+        hasReference = false;
+        if (still) {
+            changeState(nowMillis, false, "significant motion");
+        }
+    }
+
+    private void setReference(float x, float y, float z, long millis) {
+        hasReference = true;
+        referenceX = x;
+        referenceY = y;
+        referenceZ = z;
+        quietSinceMillis = millis;
+    }
+
+    private void changeState(long nowMillis, boolean nowStill, String reason) {
+        if (still) {
+            stillMillis += nowMillis - stateStartMillis;
+        }
+        still = nowStill;
+        stateStartMillis = nowMillis;
+
+        if (nowStill) {
+            suspensions++;
+            listener.onStill(nowMillis);
+        } else {
+            listener.onMoving(nowMillis, reason);
+        }
+    }
+
+    public synchronized boolean isStill() {
+        return still;
+    }
+
+    /**
+     * Returns the total time spent still, including the current stretch
+     */
+    public synchronized long getStillMillis(long nowMillis) {
+        return still ? stillMillis + nowMillis - stateStartMillis : stillMillis;
+    }
+
+    /**
+     * Returns the fraction of the time since the detector was created that the phone wasn't
+     * still, which is how long the location providers were on
+     */
+    public synchronized double getLocationOnFraction(long nowMillis) {
+        long total = nowMillis - startMillis;
+        if (total <= 0) {
+            return 1;
+        }
+        return 1 - (double) getStillMillis(nowMillis) / total;
+    }
+
+    /**
+     * Returns how many times the phone became still
+     */
+    public synchronized int getSuspensions() {
+        return suspensions;
+    }
+}
@@ -0,0 +1,206 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Counts steps in the accelerometer stream as it arrives, so walking is seen within a few
+ * seconds and without any location fixes, e.g. indoors.
+ *
+ * The magnitude of each sample has gravity taken out with a slow moving average and is
+ * smoothed with a fast one. Every local maximum of what's left is a candidate step. It's a
+ * step if it's above the adaptive threshold, a fraction of the recent peak heights, and at
+ * least REFRACTORY_NANOS after the last step, so the bounce after a heel strike isn't
+ * counted again. Steps whose periods stay within 50% of each other make up a bout, and after
+ * MIN_BOUT_STEPS of them the user is walking until no step comes for MAX_STEP_NANOS.
+ * Only the steps of bouts are counted, so fidgeting and single bumps don't add up.
+ *
+ * Needs about 20 Hz or more to see the steps. Longer gaps between samples start it over, so
+ * it sees nothing at the SensingScheduler's IDLE and DEEP_IDLE rates. Walking is only seen
+ * once the scheduler is back at ACTIVE, woken by a moving batch or significant motion.
+ * Allocates nothing.
+ * Not thread safe, samples should come from one thread.
+ */
+public class StepDetector implements SampleSink {
+
+    /**
+     * Told when the user starts and stops walking, on the thread of the samples.
+     * cadence is in steps per minute, 0 when they stopped.
+     */
+    public interface Listener {
+        void onWalkingChanged(boolean walking, long timestampNanos, int cadence);
+    }
+
+    // The time constants of the gravity and smoothing averages
+    public static final long GRAVITY_NANOS = 1000000000L;
+    public static final long SMOOTHING_NANOS = 40000000L;
+
+    // No two steps closer than this, 240 steps per minute
+    public static final long REFRACTORY_NANOS = 250000000L;
+
+    // A bout ends when there's no step for this long, 40 steps per minute
+    public static final long MAX_STEP_NANOS = 1500000000L;
+
+    // Longer gaps between samples than this can't show steps
+    public static final long MAX_SAMPLE_GAP_NANOS = 100000000L;
+
+    // Peaks need to be at least this high (m/s^2) and this fraction of the recent peaks
+    public static final float MIN_PEAK = 0.6f;
+    public static final float PEAK_FRACTION = 0.5f;
+
+    // How quickly the recent peak height follows new peaks
+    private static final float PEAK_WEIGHT = 0.2f;
+
+    // The regular steps in a row before the user counts as walking, about 3 seconds
+    public static final int MIN_BOUT_STEPS = 6;
+
+    // The steps in a 20 second interval that make it a walking interval
+    public static final int MIN_INTERVAL_STEPS = 10;
+
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    private final Listener listener;
+
+    // The filters, NaN until the first sample
+    private long lastSampleNanos;
+    private float gravity = Float.NaN;
+    private float smoothed;
+    private float previous;
+    private boolean rising = false;
+
+    // The height of the recent peaks
+    private float peakAverage = 2 * MIN_PEAK;
+
+    // The current bout of regular steps
+    private long lastStepNanos;
+    private long boutStartNanos;
+    private long lastPeriodNanos = 0;
+    private int boutSteps = 0;
+    private boolean walking = false;
+
+    private long steps = 0;
+    private int intervalSteps = 0;
+
+    /**
+     * listener may be null if only the step counts are needed
+     */
+    public StepDetector(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+        for (int i = 0; i < count; i++) {
+            onSample(timestamps[i], xs[i], ys[i], zs[i]);
+        }
+    }
+
+    public void onSample(long timestampNanos, float x, float y, float z) {
+        float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+        long dt = timestampNanos - lastSampleNanos;
+
+        if (gravity != gravity || dt <= 0 || dt > MAX_SAMPLE_GAP_NANOS) {
+            // The first sample, or too long since the last one to carry on
+            lastSampleNanos = timestampNanos;
+            gravity = magnitude;
+            smoothed = 0;
+            previous = 0;
+            rising = false;
+            endBout(timestampNanos);
+            return;
+        }
+        lastSampleNanos = timestampNanos;
+
+        gravity += (magnitude - gravity) * dt / (GRAVITY_NANOS + dt);
+        smoothed += (magnitude - gravity - smoothed) * dt / (SMOOTHING_NANOS + dt);
+
+        // The previous value was a local maximum
+        if (rising && smoothed < previous) {
+            onPeak(previous, timestampNanos - dt);
+        }
+        rising = smoothed > previous;
+        previous = smoothed;
+
+        if (boutSteps > 0 && timestampNanos - lastStepNanos > MAX_STEP_NANOS) {
+            endBout(timestampNanos);
+        }
+    }
+
+    private void onPeak(float height, long peakNanos) {
+        if (height < MIN_PEAK) {
+            return;
+        }
+        if (boutSteps > 0 && peakNanos - lastStepNanos < REFRACTORY_NANOS) {
+            return;
+        }
+        peakAverage += (height - peakAverage) * PEAK_WEIGHT;
+        if (height < peakAverage * PEAK_FRACTION) {
+            return;
+        }
+
+        long period = peakNanos - lastStepNanos;
+        if (boutSteps == 0 || (lastPeriodNanos > 0
+                && (period < lastPeriodNanos / 2 || period > lastPeriodNanos * 3 / 2))) {
+            // Not in step with the bout, this one may start the next
+            endBout(peakNanos);
+            boutStartNanos = peakNanos;
+            lastPeriodNanos = 0;
+            boutSteps = 1;
+        } else {
+            lastPeriodNanos = period;
+            boutSteps++;
+        }
+        lastStepNanos = peakNanos;
+
+        if (boutSteps == MIN_BOUT_STEPS) {
+            // The bout's steps are counted once it's long enough
+            steps += boutSteps;
+            intervalSteps += boutSteps;
+            walking = true;
+            if (listener != null) {
+                listener.onWalkingChanged(true, peakNanos, getCadence());
+            }
+        } else if (boutSteps > MIN_BOUT_STEPS) {
+            steps++;
+            intervalSteps++;
+        }
+    }
+
+    private void endBout(long timestampNanos) {
+        boutSteps = 0;
+        lastPeriodNanos = 0;
+        if (walking) {
+            walking = false;
+            if (listener != null) {
+                listener.onWalkingChanged(false, timestampNanos, 0);
+            }
+        }
+    }
+
+    public boolean isWalking() {
+        return walking;
+    }
+
+    /**
+     * Returns the steps per minute of the current bout, 0 while not walking
+     */
+    public int getCadence() {
+        if (!walking || lastStepNanos <= boutStartNanos) {
+            return 0;
+        }
+        return (int) Math.round((boutSteps - 1) * NANOS_PER_MINUTE / (lastStepNanos - boutStartNanos));
+    }
+
+    /**
+     * Returns the steps counted since the last call, for the interval that just closed
+     */
+    public int takeSteps() {
+        int taken = intervalSteps;
+        intervalSteps = 0;
+        return taken;
+    }
+
+    /**
+     * Returns all the steps counted so far
+     */
+    public long getStepCount() {
+        return steps;
+    }
+}
@@ -0,0 +1,195 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Replays sensor traces through the same logic as ActivityMonitorService, as fast as the
+ * CPU allows. The 20 second location intervals and the 2 minute windows are closed by an
+ * ActivityPipeline, driven by the timestamps in the trace instead of the clock, so a day
+ * of data is classified in seconds.
+ */
+public class TraceReplayer {
+
+    // The file extension of the traces written by the service
+    public static final String TRACE_EXTENSION = ".amt";
+
+    // The length of a classification window
+    public static final long WINDOW_MILLIS = WalkingIntervals.WINDOW_MILLIS;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /**
+     * The activities classified from one trace
+     */
+    public static class Result {
+        public final File trace;
+
+        // The activity of each complete 2 minute window, in order
+        public final ActivityType[] windows;
+
+        // The accelerometer features of each window, see FeatureExtractor
+        public final float[][] features;
+
+        // The number of records that were replayed
+        public final long samples;
+        public final long fixes;
+
+        // Set instead of the windows when the trace couldn't be read
+        public final IOException error;
+
+        Result(File trace, ActivityType[] windows, float[][] features, long samples, long fixes,
+               IOException error) {
+            this.trace = trace;
+            this.windows = windows;
+            this.features = features;
+            this.samples = samples;
+            this.fixes = fixes;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Collects the windows of one trace
+     */
+    private static class Replay implements ActivityPipeline.Listener {
+        ActivityType[] windows = new ActivityType[64];
+        float[][] features = new float[64][];
+        int windowCount = 0;
+
+        @Override
+        public void onActivityWindow(ActivityWindow window) {
+            if (windowCount == windows.length) {
+                windows = Arrays.copyOf(windows, windowCount * 2);
+                features = Arrays.copyOf(features, windowCount * 2);
+            }
+            features[windowCount] = window.features;
+            windows[windowCount++] = window.activity;
+        }
+    }
+
+    /**
+     * Replays one trace and returns the activity of every complete 2 minute window
+     */
+    public Result replay(File trace) throws IOException {
+        Replay replay = new Replay();
+        ActivityPipeline pipeline = new ActivityPipeline(replay);
+
+        SensorTraceReader reader = new SensorTraceReader(trace);
+        try {
+            int type;
+            while ((type = reader.next()) >= 0) {
+                if (type == SensorTraceWriter.ACCELEROMETER) {
+                    pipeline.onSample(reader.elapsedNanos, reader.x, reader.y, reader.z);
+                } else {
+                    pipeline.onFix(reader.elapsedNanos, reader.fix);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new Result(trace, Arrays.copyOf(replay.windows, replay.windowCount),
+                Arrays.copyOf(replay.features, replay.windowCount), pipeline.getSampleCount(),
+                pipeline.getFixCount(), null);
+    }
+
+    /**
+     * Replays all the traces in the directory in parallel, one trace per task,
+     * and returns their results in order of the file names
+     */
+    public Result[] replayDirectory(File directory, ForkJoinPool pool) {
+        File[] traces = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(TRACE_EXTENSION);
+            }
+        });
+        if (traces == null) {
+            return new Result[0];
+        }
+        Arrays.sort(traces);
+
+        Result[] results = new Result[traces.length];
+        pool.invoke(new ReplayTask(traces, results, 0, traces.length));
+        return results;
+    }
+
+    /**
+     * Splits the traces in half until each task replays a single trace
+     */
+    private class ReplayTask extends RecursiveAction {
+        // Tasks are never serialized, RecursiveAction is just Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final File[] traces;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        ReplayTask(File[] traces, Result[] results, int from, int to) {
+            this.traces = traces;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    results[from] = replay(traces[from]);
+                } catch (IOException e) {
+                    results[from] = new Result(traces[from], new ActivityType[0], new float[0][], 0, 0, e);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new ReplayTask(traces, results, from, middle),
+                    new ReplayTask(traces, results, middle, to));
+        }
+    }
+
+    /**
+     * Replays a directory of traces and prints the minutes of each activity per trace.
+     * Usage: TraceReplayer <trace directory>
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceReplayer <trace directory>");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        Result[] results = new TraceReplayer().replayDirectory(new File(args[0]), new ForkJoinPool());
+        long elapsedMillis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+
+        int windows = 0;
+        for (Result result : results) {
+            if (result.error != null) {
+                System.out.println(result.trace.getName() + ": " + result.error.getMessage());
+                continue;
+            }
+
+            int[] counts = new int[ActivityType.values().length];
+            for (ActivityType activity : result.windows) {
+                counts[activity.getCode()]++;
+            }
+
+            StringBuilder line = new StringBuilder(result.trace.getName()).append(':');
+            for (ActivityType activity : ActivityType.values()) {
+                line.append(' ').append(activity.getLabel()).append('=')
+                        .append(counts[activity.getCode()] * WINDOW_MILLIS / 60000).append("min");
+            }
+            System.out.println(line);
+            windows += result.windows.length;
+        }
+
+        System.out.println("Replayed " + results.length + " traces, " + windows + " windows in " + elapsedMillis + " ms");
+    }
+}
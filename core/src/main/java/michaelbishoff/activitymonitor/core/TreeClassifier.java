@@ -0,0 +1,227 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * A decision tree over the Classifier inputs, loaded from a small binary model so it can be
+ * tuned without a new release of the app.
+ *
+ * The nodes are kept in flat arrays in preorder. An inner node goes to the next node when
+ * its input is at most its threshold, and to its right child otherwise. NaN inputs go right.
+ * A leaf has LEAF as its input and the activity code in place of the right child.
+ * Walking the tree is a few array reads per level and allocates nothing.
+ *
+ * The model file is: magic, version, node count, then for each node the byte input index
+ * followed by either the byte activity code of a leaf or the float threshold and short right
+ * child of an inner node, and a CRC32 of everything before it. A tree of 100 nodes is
+ * well under 1 KB.
+ *
+ * The app bundles fromRules() as its model, written by main(), until a trained tree replaces it.
+ */
+public class TreeClassifier implements Classifier {
+
+    // "AMTC", the first 4 bytes of every model
+    public static final int MAGIC = 0x414d5443;
+    public static final int VERSION = 1;
+
+    // The name of the model in the app's files or assets
+    public static final String FILENAME = "classifier.model";
+
+    // The input of a leaf
+    public static final byte LEAF = -1;
+
+    // The right children are shorts
+    public static final int MAX_NODES = Short.MAX_VALUE;
+
+    private static final ActivityType[] ACTIVITIES = ActivityType.values();
+
+    private final byte[] inputIndexes;
+    private final float[] thresholds;
+    private final short[] rightChildren;
+
+    /**
+     * Creates a tree from its nodes in preorder. Throws IllegalArgumentException
+     * unless every path ends in a leaf.
+     */
+    public TreeClassifier(byte[] inputIndexes, float[] thresholds, short[] rightChildren) {
+        int count = inputIndexes.length;
+        if (count == 0 || count > MAX_NODES || thresholds.length != count || rightChildren.length != count) {
+            throw new IllegalArgumentException("Need 1 to " + MAX_NODES + " nodes of each: "
+                    + count + ", " + thresholds.length + ", " + rightChildren.length);
+        }
+
+        // The children come after their parent, so there can't be a loop
+        for (int node = 0; node < count; node++) {
+            int right = rightChildren[node];
+            if (inputIndexes[node] == LEAF) {
+                if (right < 0 || right >= ACTIVITIES.length) {
+                    throw new IllegalArgumentException("Leaf " + node + " has no activity: " + right);
+                }
+            } else if (inputIndexes[node] < 0 || inputIndexes[node] >= NUM_INPUTS) {
+                throw new IllegalArgumentException("Node " + node + " has no input: " + inputIndexes[node]);
+            } else if (right <= node + 1 || right >= count) {
+                throw new IllegalArgumentException("Node " + node + " has a bad right child: " + right);
+            }
+        }
+
+        this.inputIndexes = inputIndexes;
+        this.thresholds = thresholds;
+        this.rightChildren = rightChildren;
+    }
+
+    @Override
+    public ActivityType classify(float[] inputs) {
+        int node = 0;
+        while (inputIndexes[node] != LEAF) {
+            node = inputs[inputIndexes[node]] <= thresholds[node] ? node + 1 : rightChildren[node];
+        }
+        return ACTIVITIES[rightChildren[node]];
+    }
+
+    /**
+     * Returns the ActivityRules as a tree, it classifies every input like the RuleClassifier
+     */
+    public static TreeClassifier fromRules() {
+        byte sitting = (byte) ActivityType.SITTING.getCode();
+        byte sleeping = (byte) ActivityType.SLEEPING.getCode();
+        byte walking = (byte) ActivityType.WALKING.getCode();
+
+        byte[] inputs = {
+                INTERVALS_WALKING, AVERAGE_ANGLE, LEAF, AVERAGE_ANGLE, LEAF, LEAF, LEAF
+        };
+        float[] thresholds = {
+                ActivityRules.MIN_INTERVALS_WALKING, (float) ActivityRules.MIN_SLEEPING_ANGLE, 0,
+                // At most the float below the maximum is less than the maximum
+                Math.nextAfter((float) ActivityRules.MAX_SLEEPING_ANGLE, 0), 0, 0, 0
+        };
+        short[] rightChildren = { 6, 3, sitting, 5, sleeping, sitting, walking };
+        return new TreeClassifier(inputs, thresholds, rightChildren);
+    }
+
+    public int getNodeCount() {
+        return inputIndexes.length;
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(inputIndexes.length);
+        for (int node = 0; node < inputIndexes.length; node++) {
+            out.writeByte(inputIndexes[node]);
+            if (inputIndexes[node] == LEAF) {
+                out.writeByte(rightChildren[node]);
+            } else {
+                out.writeFloat(thresholds[node]);
+                out.writeShort(rightChildren[node]);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        bytes.writeTo(stream);
+    }
+
+    public static TreeClassifier read(File file) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        try {
+            return read(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads a model to the end of the stream. Throws IOException if it's damaged or isn't a tree.
+     */
+    public static TreeClassifier read(InputStream stream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        byte[] bytes = buffer.toByteArray();
+
+        if (bytes.length < 16) {
+            throw new IOException("Model too short: " + bytes.length + " bytes");
+        }
+        int length = bytes.length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        int checksum = ((bytes[length] & 0xFF) << 24) | ((bytes[length + 1] & 0xFF) << 16)
+                | ((bytes[length + 2] & 0xFF) << 8) | (bytes[length + 3] & 0xFF);
+        if (checksum != (int) crc.getValue()) {
+            throw new IOException("Corrupt model, the checksum doesn't match");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a tree classifier model");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported model version " + version);
+        }
+
+        int count = in.readInt();
+        // Every node is at least 2 bytes
+        if (count <= 0 || count > MAX_NODES || count * 2 > length - 12) {
+            throw new IOException("Bad node count " + count);
+        }
+        byte[] inputIndexes = new byte[count];
+        float[] thresholds = new float[count];
+        short[] rightChildren = new short[count];
+        for (int node = 0; node < count; node++) {
+            inputIndexes[node] = in.readByte();
+            if (inputIndexes[node] == LEAF) {
+                rightChildren[node] = in.readByte();
+            } else {
+                thresholds[node] = in.readFloat();
+                rightChildren[node] = in.readShort();
+            }
+        }
+        if (in.available() > 0) {
+            throw new IOException(in.available() + " bytes after the last node");
+        }
+
+        try {
+            return new TreeClassifier(inputIndexes, thresholds, rightChildren);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad model: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the rules as a model file, e.g. the app's assets/classifier.model.
+     * Usage: TreeClassifier <model file>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TreeClassifier <model file>");
+            System.exit(1);
+        }
+
+        TreeClassifier tree = fromRules();
+        OutputStream stream = new FileOutputStream(args[0]);
+        try {
+            tree.write(stream);
+        } finally {
+            stream.close();
+        }
+        System.out.println("Wrote a tree of " + tree.getNodeCount() + " nodes to " + args[0]);
+    }
+}
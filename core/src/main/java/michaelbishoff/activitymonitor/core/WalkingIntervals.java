@@ -0,0 +1,102 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * The 6, 20 second intervals of a 2 minute window used for determining if the user
+ * is walking. Each interval is walking if the user moved far enough during it.
+ */
+public class WalkingIntervals {
+
+    // The length of an interval and the number of intervals in the window
+    public static final long INTERVAL_MILLIS = 20000;
+    public static final int NUM_INTERVALS = 6;
+
+    // The length of the window that the intervals make up
+    public static final long WINDOW_MILLIS = INTERVAL_MILLIS * NUM_INTERVALS;
+
+    // The minimum distance the user needs to walk to be registered as "walking"
+    public static final double MIN_WALK_DISTANCE = 0.5;
+
+    private final boolean[] isWalkingInterval = new boolean[NUM_INTERVALS];
+    private int isWalkingIntervalIndex = 0;
+
+    // The number of intervals that the user is walking, out of 6 total
+    private int numIntervalsWalking = 0;
+
+    /**
+     * Records the distance the user moved in the interval that just ended, and moves on to the next one
+     */
+    public void record(double distance) {
+        record(distance > MIN_WALK_DISTANCE);
+    }
+
+    /**
+     * Records the distance the user moved and the steps they took in the interval that just ended.
+     * The distance is NaN without fixes, the steps alone make it a walking interval indoors.
+     */
+    public void record(double distance, int steps) {
+        record(distance > MIN_WALK_DISTANCE || steps >= StepDetector.MIN_INTERVAL_STEPS);
+    }
+
+    /**
+     * Records whether the user was walking in the interval that just ended, and moves on to the next one
+     */
+    public void record(boolean walking) {
+        if (walking) {
+            // They weren't walking (at this interval), and are currently walking.
+            // Increase the number of walking indicies in the 2 minute interval
+            if (!isWalkingInterval[isWalkingIntervalIndex]) {
+                isWalkingInterval[isWalkingIntervalIndex] = true;
+                numIntervalsWalking++;
+            }
+
+        } else {
+            // They were walking (at this index), and are currently NOT walking
+            // Decrease the number of walking indicies in the 2 minute interval
+            if (isWalkingInterval[isWalkingIntervalIndex]) {
+                isWalkingInterval[isWalkingIntervalIndex] = false;
+                numIntervalsWalking--;
+            }
+        }
+
+        // Increments to the next interval and loops around the array
+        isWalkingIntervalIndex = (isWalkingIntervalIndex + 1) % NUM_INTERVALS;
+    }
+
+    /**
+     * Returns the number of intervals that the user is walking, out of 6 total
+     */
+    public int getNumIntervalsWalking() {
+        return numIntervalsWalking;
+    }
+
+    /**
+     * Returns the intervals as bits, bit i set if interval i was walking, for a checkpoint
+     */
+    int getWalkingBits() {
+        int bits = 0;
+        for (int i = 0; i < NUM_INTERVALS; i++) {
+            if (isWalkingInterval[i]) {
+                bits |= 1 << i;
+            }
+        }
+        return bits;
+    }
+
+    int getIndex() {
+        return isWalkingIntervalIndex;
+    }
+
+    /**
+     * Puts back the intervals from getWalkingBits() and getIndex()
+     */
+    void restore(int walkingBits, int index) {
+        numIntervalsWalking = 0;
+        for (int i = 0; i < NUM_INTERVALS; i++) {
+            isWalkingInterval[i] = (walkingBits & (1 << i)) != 0;
+            if (isWalkingInterval[i]) {
+                numIntervalsWalking++;
+            }
+        }
+        isWalkingIntervalIndex = index % NUM_INTERVALS;
+    }
+}
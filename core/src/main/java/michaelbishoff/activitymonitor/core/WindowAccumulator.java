@@ -0,0 +1,149 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The count, mean and variance of a stream of values, e.g. the Y angles of a window, that the
+ * sensor thread writes and any thread can take and reset in one step without locks.
+ *
+ * The running totals are an immutable Snapshot. A writer replaces it with the totals plus its
+ * values by compare-and-set, retrying if another writer got there first, and snapshotAndReset()
+ * swaps in an empty one and returns the old one as is. Neither ever waits for the other, and
+ * every value ends up in exactly one snapshot, however many readers there are. A batch costs
+ * the writer one small allocation.
+ *
+ * The sums are kept in fixed point (1/SCALE of a unit) relative to a pivot, so they are exact
+ * integers that add up in any order, and snapshots can be merged with plus(). A snapshot holds
+ * up to about 10 million values that are within 90 units of the pivot.
+ */
+public class WindowAccumulator {
+
+    // The fixed point resolution, 1/10000 of a unit
+    public static final double SCALE = 10000;
+
+    /**
+     * What was added between two resets. Immutable, so it can be handed to any thread.
+     */
+    public static class Snapshot {
+        public final double pivot;
+        public final long count;
+
+        // The sums of (value - pivot) and its square, in fixed point
+        final long sum;
+        final long sumOfSquares;
+
+        /**
+         * An empty snapshot
+         */
+        public Snapshot(double pivot) {
+            this(pivot, 0, 0, 0);
+        }
+
+        Snapshot(double pivot, long count, long sum, long sumOfSquares) {
+            this.pivot = pivot;
+            this.count = count;
+            this.sum = sum;
+            this.sumOfSquares = sumOfSquares;
+        }
+
+        /**
+         * Returns the mean of the values, 0 if there were none
+         */
+        public double getMean() {
+            return count == 0 ? 0 : pivot + sum / SCALE / count;
+        }
+
+        /**
+         * Returns the sample variance of the values, 0 with fewer than 2
+         */
+        public double getVariance() {
+            if (count < 2) {
+                return 0;
+            }
+            double m2 = sumOfSquares - (double) sum * sum / count;
+            return Math.max(m2, 0) / (count - 1) / (SCALE * SCALE);
+        }
+
+        /**
+         * Returns a snapshot of the values of both snapshots
+         */
+        public Snapshot plus(Snapshot other) {
+            if (other.pivot != pivot) {
+                throw new IllegalArgumentException("pivots differ: " + pivot + ", " + other.pivot);
+            }
+            return new Snapshot(pivot, count + other.count, sum + other.sum, sumOfSquares + other.sumOfSquares);
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + getMean() + " variance=" + getVariance();
+        }
+    }
+
+    private final double pivot;
+    private final Snapshot empty;
+    private final AtomicReference<Snapshot> current;
+
+    public WindowAccumulator(double pivot) {
+        this.pivot = pivot;
+        empty = new Snapshot(pivot);
+        current = new AtomicReference<>(empty);
+    }
+
+    /**
+     * Adds a value. NaN is ignored.
+     */
+    public void add(double value) {
+        if (value != value) {
+            return;
+        }
+        long fixed = Math.round((value - pivot) * SCALE);
+        add(1, fixed, fixed * fixed);
+    }
+
+    /**
+     * Adds the values of an array in one step, so a whole batch costs the same as one value.
+     * NaNs are ignored.
+     */
+    public void add(float[] values, int offset, int length) {
+        long count = 0;
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int i = offset; i < offset + length; i++) {
+            float value = values[i];
+            if (value == value) {
+                long fixed = Math.round((value - pivot) * SCALE);
+                count++;
+                sum += fixed;
+                sumOfSquares += fixed * fixed;
+            }
+        }
+        if (count > 0) {
+            add(count, sum, sumOfSquares);
+        }
+    }
+
+    private void add(long count, long sum, long sumOfSquares) {
+        // Another writer or a reset may swap the totals in between, then add to the new ones
+        while (true) {
+            Snapshot totals = current.get();
+            Snapshot added = new Snapshot(pivot, totals.count + count, totals.sum + sum,
+                    totals.sumOfSquares + sumOfSquares);
+            if (current.compareAndSet(totals, added)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns everything added since the last reset, and starts again from empty. Never waits
+     * for writers, a value being added either makes it into this snapshot or the next one.
+     */
+    public Snapshot snapshotAndReset() {
+        return current.getAndSet(empty);
+    }
+
+    public double getPivot() {
+        return pivot;
+    }
+}
@@ -0,0 +1,239 @@
+package michaelbishoff.activitymonitor.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The state of the window in progress, saved after every interval so a restarted process can
+ * carry on with it instead of starting an empty window. Holds the walking intervals, the angle
+ * statistics, the last location the distance is measured from, and the last classified window.
+ *
+ * The file is about 150 bytes: magic, version, the fields, and a CRC32 of everything before it.
+ * It's written to a temporary file and renamed over the old one, so a kill during the write
+ * leaves the previous checkpoint. Times are saved on the wall clock, because elapsedRealtime
+ * starts again from 0 after a reboot.
+ */
+public class WindowCheckpoint {
+
+    // "AMCP", the first 4 bytes of every checkpoint
+    public static final int MAGIC = 0x414d4350;
+    // 2 added the features of the last window, 3 the anchor's accuracy
+    public static final int VERSION = 3;
+
+    public static final String FILENAME = "window.checkpoint";
+
+    // Older checkpoints are from another stretch of the day and not worth continuing
+    public static final long MAX_AGE_MILLIS = WalkingIntervals.WINDOW_MILLIS;
+
+    // When it was taken, on the wall clock
+    public long savedMillis;
+
+    // The intervals of the window in progress that had closed
+    public int intervalsDone;
+
+    int walkingBits;
+    int walkingIndex;
+    WindowAccumulator.Snapshot angles = new WindowAccumulator.Snapshot(ActivityRules.ANGLE_PIVOT);
+
+    boolean hasAnchor;
+    int anchorProvider;
+    double anchorLatitude;
+    double anchorLongitude;
+    long anchorMillis;
+    float anchorAccuracy;
+
+    // The last classified window, or null. Its features are null if it was published early.
+    public ActivityWindow lastWindow;
+
+    /**
+     * Copies the state of the window in progress. The elapsed time is only used to convert the
+     * anchor's time to the wall clock.
+     */
+    public void capture(long nowMillis, long nowElapsed, int intervalsDone, WalkingIntervals walkingIntervals,
+                        WindowAccumulator.Snapshot angles, DistanceAccumulator distanceAccumulator,
+                        ActivityWindow lastWindow) {
+        savedMillis = nowMillis;
+        this.intervalsDone = intervalsDone;
+        walkingBits = walkingIntervals.getWalkingBits();
+        walkingIndex = walkingIntervals.getIndex();
+        this.angles = angles;
+
+        hasAnchor = distanceAccumulator.hasAnchor;
+        anchorProvider = distanceAccumulator.anchorProvider;
+        anchorLatitude = distanceAccumulator.anchorLatitude;
+        anchorLongitude = distanceAccumulator.anchorLongitude;
+        anchorMillis = nowMillis - (nowElapsed - distanceAccumulator.anchorElapsedMillis);
+        anchorAccuracy = distanceAccumulator.anchorAccuracy;
+
+        this.lastWindow = lastWindow;
+    }
+
+    /**
+     * Returns true if the checkpoint is recent enough to carry on from
+     */
+    public boolean isFresh(long nowMillis) {
+        long age = nowMillis - savedMillis;
+        return age >= 0 && age < MAX_AGE_MILLIS;
+    }
+
+    /**
+     * Puts the walking intervals and the anchor back, and returns the angle statistics
+     * of the window in progress
+     */
+    public WindowAccumulator.Snapshot restore(long nowMillis, long nowElapsed, WalkingIntervals walkingIntervals,
+                                              DistanceAccumulator distanceAccumulator) {
+        walkingIntervals.restore(walkingBits, walkingIndex);
+        if (hasAnchor) {
+            distanceAccumulator.restoreAnchor(anchorProvider, anchorLatitude, anchorLongitude,
+                    nowElapsed - (nowMillis - anchorMillis), anchorAccuracy);
+        }
+        return angles;
+    }
+
+    /**
+     * Replaces the checkpoint file
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(savedMillis);
+        out.writeByte(intervalsDone);
+        out.writeByte(walkingBits);
+        out.writeByte(walkingIndex);
+
+        out.writeDouble(angles.pivot);
+        out.writeLong(angles.count);
+        out.writeLong(angles.sum);
+        out.writeLong(angles.sumOfSquares);
+
+        out.writeBoolean(hasAnchor);
+        out.writeByte(anchorProvider);
+        out.writeDouble(anchorLatitude);
+        out.writeDouble(anchorLongitude);
+        out.writeLong(anchorMillis);
+        out.writeFloat(anchorAccuracy);
+
+        out.writeBoolean(lastWindow != null);
+        if (lastWindow != null) {
+            out.writeLong(lastWindow.startMillis);
+            out.writeLong(lastWindow.endMillis);
+            out.writeByte(lastWindow.activity.getCode());
+            out.writeFloat(lastWindow.confidence);
+            out.writeDouble(lastWindow.averageAngle);
+            out.writeByte(lastWindow.numIntervalsWalking);
+
+            float[] features = lastWindow.features;
+            out.writeByte(features == null ? 0 : features.length);
+            if (features != null) {
+                for (float feature : features) {
+                    out.writeFloat(feature);
+                }
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        // The process being killed doesn't lose the page cache, so there's no need to sync
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            bytes.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Couldn't rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Reads a checkpoint file. Returns null if there isn't one, and throws if it's damaged
+     * or its last window has an activity this version doesn't know.
+     */
+    public static WindowCheckpoint read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+
+        if (bytes.length < 4) {
+            throw new IOException("Checkpoint too short: " + bytes.length + " bytes");
+        }
+        int length = bytes.length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        int checksum = ((bytes[length] & 0xFF) << 24) | ((bytes[length + 1] & 0xFF) << 16)
+                | ((bytes[length + 2] & 0xFF) << 8) | (bytes[length + 3] & 0xFF);
+        if (checksum != (int) crc.getValue()) {
+            throw new IOException("Corrupt checkpoint, the checksum doesn't match");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a window checkpoint: " + file);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+        }
+
+        WindowCheckpoint checkpoint = new WindowCheckpoint();
+        checkpoint.savedMillis = in.readLong();
+        checkpoint.intervalsDone = in.readByte();
+        checkpoint.walkingBits = in.readByte();
+        checkpoint.walkingIndex = in.readByte();
+
+        double pivot = in.readDouble();
+        checkpoint.angles = new WindowAccumulator.Snapshot(pivot, in.readLong(), in.readLong(), in.readLong());
+
+        checkpoint.hasAnchor = in.readBoolean();
+        checkpoint.anchorProvider = in.readByte();
+        checkpoint.anchorLatitude = in.readDouble();
+        checkpoint.anchorLongitude = in.readDouble();
+        checkpoint.anchorMillis = in.readLong();
+        checkpoint.anchorAccuracy = in.readFloat();
+
+        if (in.readBoolean()) {
+            long startMillis = in.readLong();
+            long endMillis = in.readLong();
+            int code = in.readByte();
+            ActivityType activity = ActivityType.fromCode(code);
+            if (activity == null) {
+                throw new IOException("Unknown activity code " + code + ": " + file);
+            }
+            float confidence = in.readFloat();
+            double averageAngle = in.readDouble();
+            int numIntervalsWalking = in.readByte();
+
+            int numFeatures = in.readUnsignedByte();
+            float[] features = null;
+            if (numFeatures > 0) {
+                features = new float[numFeatures];
+                for (int i = 0; i < numFeatures; i++) {
+                    features[i] = in.readFloat();
+                }
+            }
+            checkpoint.lastWindow = new ActivityWindow(startMillis, endMillis, activity, confidence,
+                    averageAngle, numIntervalsWalking, features);
+        }
+        return checkpoint;
+    }
+}
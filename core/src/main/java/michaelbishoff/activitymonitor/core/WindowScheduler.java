@@ -0,0 +1,130 @@
+package michaelbishoff.activitymonitor.core;
+
+/**
+ * Closes tumbling and sliding windows at exact boundaries of a monotonic clock, without any
+ * timer threads. The owner calls advanceTo() with the current time whenever it wakes up, and
+ * schedules its next wakeup at nextDeadline(), so one wakeup serves every window.
+ *
+ * All windows are measured from the same origin, so a 20 second window lines up exactly with
+ * the boundaries of a 2 minute window. When windows close at the same time, the one with the
+ * shorter slide closes first, so a sub-window is always finished before the window around it.
+ * Boundaries that were missed while the owner was asleep are all closed, in order.
+ * Not thread safe, it should be driven from one thread.
+ */
+public class WindowScheduler {
+
+    /**
+     * Told when a window closes, with the start and end of the window on the scheduler's clock
+     */
+    public interface WindowListener {
+        void onWindowClosed(long startMillis, long endMillis);
+    }
+
+    private final long originMillis;
+
+    // The registered windows, in order of registration
+    private long[] lengths = new long[4];
+    private long[] slides = new long[4];
+    private long[] nextEnds = new long[4];
+    private WindowListener[] listeners = new WindowListener[4];
+    private int count = 0;
+
+    public WindowScheduler(long originMillis) {
+        this.originMillis = originMillis;
+    }
+
+    /**
+     * Adds a window that closes every lengthMillis and doesn't overlap the previous one
+     */
+    public void addTumblingWindow(long lengthMillis, WindowListener listener) {
+        addSlidingWindow(lengthMillis, lengthMillis, listener);
+    }
+
+    /**
+     * Adds a window of lengthMillis that closes every slideMillis, the first time
+     * lengthMillis after the origin
+     */
+    public void addSlidingWindow(long lengthMillis, long slideMillis, WindowListener listener) {
+        if (lengthMillis <= 0 || slideMillis <= 0) {
+            throw new IllegalArgumentException("Window length and slide must be positive");
+        }
+
+        if (count == lengths.length) {
+            lengths = grow(lengths);
+            slides = grow(slides);
+            nextEnds = grow(nextEnds);
+            WindowListener[] grown = new WindowListener[count * 2];
+            System.arraycopy(listeners, 0, grown, 0, count);
+            listeners = grown;
+        }
+
+        lengths[count] = lengthMillis;
+        slides[count] = slideMillis;
+        nextEnds[count] = originMillis + lengthMillis;
+        listeners[count] = listener;
+        count++;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Returns the time the next window closes, or Long.MAX_VALUE if there are no windows
+     */
+    public long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            deadline = Math.min(deadline, nextEnds[i]);
+        }
+        return deadline;
+    }
+
+    /**
+     * Closes every window that ended at or before the time, and returns how many closed
+     */
+    public int advanceTo(long nowMillis) {
+        int closed = 0;
+
+        while (true) {
+            // Finds the earliest window to close, the shorter slide first when they tie
+            int next = -1;
+            for (int i = 0; i < count; i++) {
+                if (nextEnds[i] <= nowMillis && (next < 0 || nextEnds[i] < nextEnds[next]
+                        || (nextEnds[i] == nextEnds[next] && slides[i] < slides[next]))) {
+                    next = i;
+                }
+            }
+
+            if (next < 0) {
+                return closed;
+            }
+
+            long end = nextEnds[next];
+            nextEnds[next] = end + slides[next];
+            listeners[next].onWindowClosed(end - lengths[next], end);
+            closed++;
+        }
+    }
+
+    /**
+     * Moves every window past the time without closing any, e.g. when the origin was put in
+     * the past to continue a window from a checkpoint
+     */
+    public void skipTo(long nowMillis) {
+        for (int i = 0; i < count; i++) {
+            if (nextEnds[i] <= nowMillis) {
+                nextEnds[i] += ((nowMillis - nextEnds[i]) / slides[i] + 1) * slides[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the time the windows are measured from
+     */
+    public long getOriginMillis() {
+        return originMillis;
+    }
+}
@@ -0,0 +1,63 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AccelerometerEngineTest {
+
+    @Test
+    public void yAngle_matchesOriginalFormula() throws Exception {
+        float[][] samples = {
+                {0f, 9.81f, 0f}, {0f, 0f, 9.81f}, {0.3f, -9.7f, 1.2f}, {4.2f, 3.1f, -7.9f}
+        };
+
+        for (float[] s : samples) {
+            double expected = Math.acos(s[1] / Math.sqrt(Math.pow(s[0], 2)
+                    + Math.pow(s[1], 2)
+                    + Math.pow(s[2], 2))) * 180 / Math.PI;
+            assertEquals(expected, AccelerometerEngine.yAngle(s[0], s[1], s[2]), 1e-9);
+        }
+    }
+
+    @Test
+    public void averageAngle_isRunningMeanAndResets() throws Exception {
+        AccelerometerEngine engine = new AccelerometerEngine(4);
+
+        // Upright (0 degrees) and flat (90 degrees)
+        engine.onSample(0f, 9.81f, 0f);
+        engine.onSample(0f, 0f, 9.81f);
+        assertEquals(45.0, engine.getAverageAngle(), 1e-9);
+        assertEquals(2, engine.getAverageAngleCount());
+        assertEquals(4050.0, engine.getAngleVariance(), 1e-6);
+
+        // A zero vector has no angle and is left out of the average
+        engine.onSample(0f, 0f, 0f);
+        assertEquals(45.0, engine.getAverageAngle(), 1e-9);
+        assertEquals(2, engine.getAverageAngleCount());
+
+        engine.resetWindow();
+        assertEquals(0.0, engine.getAverageAngle(), 0);
+        assertEquals(0, engine.getAverageAngleCount());
+        assertEquals(0.0, engine.getAngleVariance(), 0);
+    }
+
+    @Test
+    public void ringBuffer_keepsNewestSamples() throws Exception {
+        AccelerometerEngine engine = new AccelerometerEngine(4);
+
+        for (int i = 0; i < 6; i++) {
+            engine.onSample(i, 1f, 0f);
+        }
+
+        assertEquals(6, engine.getSampleCount());
+        assertEquals(4, engine.size());
+        assertEquals(5f, engine.getX(0), 0f);
+        assertEquals(2f, engine.getX(3), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_mustBePowerOfTwo() throws Exception {
+        new AccelerometerEngine(100);
+    }
+}
@@ -0,0 +1,101 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ActivityExporterTest {
+
+    private static final long WINDOW = 120000;
+
+    // 2015-11-01 05:58 UTC, two minutes before New York falls back to standard time
+    private static final long BEFORE_DST_END = 1446357480000L;
+
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    private File file;
+    private ActivityLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("activities", ".bin");
+        file.delete();
+        log = new ActivityLog(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+        file.delete();
+    }
+
+    private String export(ActivityExporter.Format format) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count = new ActivityExporter(NEW_YORK).export(log, format, Channels.newChannel(bytes));
+        assertEquals(log.size(), count);
+        return bytes.toString("US-ASCII");
+    }
+
+    @Test
+    public void csv_usesLocalTimesAcrossDstChange() throws Exception {
+        log.append(BEFORE_DST_END, BEFORE_DST_END + WINDOW, ActivityType.WALKING, 1f);
+        log.append(BEFORE_DST_END + WINDOW, BEFORE_DST_END + 2 * WINDOW, ActivityType.SLEEPING, 0.847f);
+
+        assertEquals("start,end,activity,confidence\n"
+                + "2015-11-01T01:58:00.000-04:00,2015-11-01T01:00:00.000-05:00,Walking,1.00\n"
+                + "2015-11-01T01:00:00.000-05:00,2015-11-01T01:02:00.000-05:00,Sleeping,0.85\n",
+                export(ActivityExporter.Format.CSV));
+    }
+
+    @Test
+    public void jsonLines_hasOneObjectPerRecord() throws Exception {
+        log.append(BEFORE_DST_END, BEFORE_DST_END + WINDOW, ActivityType.SITTING, 0.5f);
+
+        assertEquals("{\"start\":\"2015-11-01T01:58:00.000-04:00\",\"end\":\"2015-11-01T01:00:00.000-05:00\","
+                + "\"activity\":\"Sitting\",\"confidence\":0.50}\n",
+                export(ActivityExporter.Format.JSON_LINES));
+    }
+
+    @Test
+    public void largeLog_exportsEveryRecord() throws Exception {
+        // More than one read and many output buffers
+        for (int i = 0; i < 10000; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.fromCode(i % 3), 1f);
+        }
+
+        String[] lines = export(ActivityExporter.Format.CSV).split("\n");
+        assertEquals(10001, lines.length);
+        assertTrue(lines[10000].endsWith(",1.00"));
+    }
+
+    @Test
+    public void timestamps_matchSimpleDateFormat() throws Exception {
+        TimeZone[] zones = {
+                NEW_YORK, TimeZone.getTimeZone("UTC"), TimeZone.getTimeZone("Asia/Kolkata"),
+                TimeZone.getTimeZone("Australia/Lord_Howe")
+        };
+        Random random = new Random(7);
+
+        for (TimeZone zone : zones) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+            format.setTimeZone(zone);
+            ActivityExporter exporter = new ActivityExporter(zone);
+
+            for (int i = 0; i < 2000; i++) {
+                // Between 1970 and 2100
+                long millis = (long) (random.nextDouble() * 4102444800000L);
+                assertEquals(format.format(new Date(millis)), exporter.formatTimestamp(millis));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ActivityHistoryTest {
+
+    private static final long WINDOW = 120000;
+
+    private File file;
+    private ActivityLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("activities", ".bin");
+        file.delete();
+        log = new ActivityLog(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+        file.delete();
+    }
+
+    @Test
+    public void positions_areNewestFirstAcrossRingAndLog() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.SITTING, 1f);
+        }
+
+        ActivityHistory history = new ActivityHistory(log, 4, 16, 2);
+        ActivityLog.Record record = new ActivityLog.Record();
+
+        // Reads a page that is only partly older than the ring
+        history.get(0, record);
+        assertEquals(99 * WINDOW, record.startMillis);
+
+        for (int i = 100; i < 110; i++) {
+            history.add(i * WINDOW, (i + 1) * WINDOW, ActivityType.WALKING, 0.5f);
+        }
+
+        assertEquals(110, history.size());
+        assertEquals(110, log.size());
+        for (int position = 0; position < history.size(); position++) {
+            history.get(position, record);
+            assertEquals(109 - position, record.startMillis / WINDOW);
+        }
+
+        history.get(0, record);
+        assertEquals(ActivityType.WALKING, record.getActivity());
+        assertEquals(0.5f, record.confidence, 0f);
+    }
+
+    @Test
+    public void olderPages_areReadLazilyAndCached() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.SLEEPING, 1f);
+        }
+
+        ActivityHistory history = new ActivityHistory(log, 4, 16, 2);
+        assertEquals(0, history.getPageLoads());
+
+        // Scrolling down one screen only reads the pages on it
+        ActivityLog.Record record = new ActivityLog.Record();
+        for (int position = 0; position < 20; position++) {
+            history.get(position, record);
+        }
+        assertEquals(2, history.getPageLoads());
+
+        // Scrolling back up is served from the cache
+        for (int position = 19; position >= 0; position--) {
+            history.get(position, record);
+        }
+        assertEquals(2, history.getPageLoads());
+    }
+
+    @Test
+    public void withoutLog_keepsOnlyTheRecentActivities() throws Exception {
+        ActivityHistory history = new ActivityHistory(null, 4, 16, 2);
+
+        // Past the capacity the oldest drops off, so the list doesn't grow
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i < 4, history.add(i * WINDOW, (i + 1) * WINDOW, ActivityType.SITTING, 1f));
+            assertEquals(Math.min(i + 1, 4), history.size());
+        }
+
+        assertEquals(4, history.size());
+        ActivityLog.Record record = new ActivityLog.Record();
+        history.get(3, record);
+        assertEquals(6 * WINDOW, record.startMillis);
+    }
+}
@@ -0,0 +1,158 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+
+import static org.junit.Assert.*;
+
+public class ActivityLogTest {
+
+    private static final long WINDOW = 120000;
+
+    private File file;
+    private File textFile;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("activities", ".bin");
+        file.delete();
+        textFile = File.createTempFile("activities", ".txt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+        textFile.delete();
+    }
+
+    @Test
+    public void appendedRecords_surviveReopening() throws Exception {
+        ActivityLog log = new ActivityLog(file);
+        // More than one mapped chunk
+        for (int i = 0; i < 5000; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.fromCode(i % 3), 0.5f);
+        }
+        log.close();
+
+        log = new ActivityLog(file);
+        assertEquals(5000, log.size());
+
+        ActivityLog.Record record = new ActivityLog.Record();
+        log.read(4321, record);
+        assertEquals(4321 * WINDOW, record.startMillis);
+        assertEquals(4322 * WINDOW, record.endMillis);
+        assertEquals(ActivityType.fromCode(4321 % 3), record.getActivity());
+        assertEquals(0.5f, record.confidence, 0f);
+        log.close();
+    }
+
+    @Test
+    public void bulkRead_leavesRecordsAfterThePosition() throws Exception {
+        ActivityLog log = new ActivityLog(file);
+        for (int i = 0; i < 10; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.WALKING, 1f);
+        }
+
+        // Something is already in the buffer, and only 3 records and a bit fit after it
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 3 * ActivityLog.RECORD_SIZE + 5);
+        buffer.putLong(-1);
+        assertEquals(3, log.read(6, buffer));
+
+        assertEquals(8, buffer.position());
+        assertEquals(8 + 3 * ActivityLog.RECORD_SIZE, buffer.limit());
+        assertEquals(-1, buffer.getLong(0));
+        assertEquals(6 * WINDOW, buffer.getLong());
+        assertEquals(7 * WINDOW, buffer.getLong());
+        log.close();
+    }
+
+    @Test
+    public void indexOf_findsFirstRecordAtOrAfterTime() throws Exception {
+        ActivityLog log = new ActivityLog(file);
+        for (int i = 0; i < 1000; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.SITTING, 1f);
+        }
+
+        assertEquals(0, log.indexOf(-5));
+        assertEquals(0, log.indexOf(0));
+        assertEquals(1, log.indexOf(1));
+        assertEquals(64, log.indexOf(64 * WINDOW));
+        assertEquals(65, log.indexOf(64 * WINDOW + 1));
+        assertEquals(999, log.indexOf(999 * WINDOW));
+        assertEquals(1000, log.indexOf(999 * WINDOW + 1));
+        log.close();
+    }
+
+    @Test
+    public void query_visitsRecordsInRange() throws Exception {
+        ActivityLog log = new ActivityLog(file);
+        for (int i = 0; i < 300; i++) {
+            log.append(i * WINDOW, (i + 1) * WINDOW, ActivityType.WALKING, 1f);
+        }
+
+        final long[] first = {-1};
+        int visited = log.query(100 * WINDOW, 150 * WINDOW, new ActivityLog.RecordVisitor() {
+            @Override
+            public void onRecord(int index, long startMillis, long endMillis, int activityCode, float confidence) {
+                if (first[0] < 0) {
+                    first[0] = startMillis;
+                }
+            }
+        });
+
+        assertEquals(50, visited);
+        assertEquals(100 * WINDOW, first[0]);
+        log.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void append_rejectsOutOfOrderRecords() throws Exception {
+        ActivityLog log = new ActivityLog(file);
+        try {
+            log.append(10 * WINDOW, 11 * WINDOW, ActivityType.SITTING, 1f);
+            log.append(9 * WINDOW, 10 * WINDOW, ActivityType.SITTING, 1f);
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void importer_recoversDatesAcrossMidnight() throws Exception {
+        FileOutputStream fos = new FileOutputStream(textFile);
+        fos.write(("11:56 PM - 11:58 PM  Sitting\n"
+                + "11:58 PM - 0:00 AM  Walking\n"
+                + "0:00 AM - 0:02 AM  Sleeping\n"
+                + "garbage\n").getBytes("UTF-8"));
+        fos.close();
+
+        // Last written at 12:03 AM on March 2nd
+        Calendar modified = Calendar.getInstance();
+        modified.clear();
+        modified.set(2016, Calendar.MARCH, 2, 0, 3);
+        textFile.setLastModified(modified.getTimeInMillis());
+
+        ActivityLog log = new ActivityLog(file);
+        assertEquals(3, ActivityLogImporter.importText(textFile, log));
+
+        Calendar expected = Calendar.getInstance();
+        expected.clear();
+        expected.set(2016, Calendar.MARCH, 1, 23, 56);
+
+        ActivityLog.Record record = new ActivityLog.Record();
+        log.read(0, record);
+        assertEquals(expected.getTimeInMillis(), record.startMillis);
+        assertEquals(ActivityType.SITTING, record.getActivity());
+
+        log.read(2, record);
+        assertEquals(expected.getTimeInMillis() + 4 * 60000, record.startMillis);
+        assertEquals(expected.getTimeInMillis() + 6 * 60000, record.endMillis);
+        assertEquals(ActivityType.SLEEPING, record.getActivity());
+        log.close();
+    }
+}
@@ -0,0 +1,122 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ActivityRollupsTest {
+
+    private static final long WINDOW = 120000;
+    private static final long HOUR = ActivityRollups.MILLIS_PER_HOUR;
+
+    // 1 hour ahead of UTC, so the local days don't line up with the epoch days
+    private static final TimeZone ZONE = TimeZone.getTimeZone("GMT+01:00");
+
+    private File logFile;
+    private File rollupFile;
+
+    @Before
+    public void setUp() throws Exception {
+        logFile = File.createTempFile("activities", ".bin");
+        logFile.delete();
+        rollupFile = File.createTempFile("activities", ".rollup");
+        rollupFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logFile.delete();
+        rollupFile.delete();
+    }
+
+    @Test
+    public void rangeQueries_matchTheLog() throws Exception {
+        ActivityLog log = new ActivityLog(logFile);
+        ActivityRollups rollups = new ActivityRollups(rollupFile, ZONE);
+
+        // Three days of windows, starting 1 minute before a local hour so windows straddle it
+        long start = 1000 * 24 * HOUR - 60000;
+        int windows = 3 * 24 * 30;
+        for (int i = 0; i < windows; i++) {
+            log.append(start + i * WINDOW, start + (i + 1) * WINDOW, ActivityType.fromCode(i % 3), 1f);
+        }
+        assertEquals(windows, rollups.update(log));
+        assertEquals(0, rollups.update(log));
+
+        long day = rollups.dayOf(start + 24 * HOUR);
+        long expected = countSeconds(log, ActivityType.WALKING, day);
+        assertTrue(expected > 0);
+        assertEquals(expected, rollups.getSecondsInDays(ActivityType.WALKING, day, day + 1));
+
+        // Everything adds up to the total length of the windows
+        long total = 0;
+        for (ActivityType activity : ActivityType.values()) {
+            total += rollups.getSecondsInDays(activity, 0, Long.MAX_VALUE / 48);
+        }
+        assertEquals(windows * WINDOW / 1000, total);
+
+        // The window that straddles the first hour is split between both hours
+        long firstHour = rollups.hourOf(start);
+        assertEquals(60, rollups.getHourSeconds(ActivityType.SITTING, firstHour));
+        // The rest of that window, 9 whole ones and the start of the one straddling the next hour
+        assertEquals(60 + 9 * 120 + 60, rollups.getHourSeconds(ActivityType.SITTING, firstHour + 1));
+
+        rollups.close();
+        log.close();
+    }
+
+    @Test
+    public void reopening_keepsTheCountsAndCatchesUp() throws Exception {
+        ActivityLog log = new ActivityLog(logFile);
+        ActivityRollups rollups = new ActivityRollups(rollupFile, ZONE);
+
+        long start = 2000 * 24 * HOUR;
+        for (int i = 0; i < 100; i++) {
+            log.append(start + i * WINDOW, start + (i + 1) * WINDOW, ActivityType.SLEEPING, 1f);
+        }
+        rollups.update(log);
+        rollups.close();
+
+        // More windows are logged while the rollups are closed
+        for (int i = 100; i < 150; i++) {
+            log.append(start + i * WINDOW, start + (i + 1) * WINDOW, ActivityType.SLEEPING, 1f);
+        }
+
+        rollups = new ActivityRollups(rollupFile, ZONE);
+        assertEquals(100, rollups.getLogCount());
+        assertEquals(50, rollups.update(log));
+
+        long day = rollups.dayOf(start);
+        assertEquals(150 * WINDOW / 1000, rollups.getSecondsInDays(ActivityType.SLEEPING, day, day + 1));
+
+        rollups.close();
+        log.close();
+    }
+
+    /**
+     * Adds up the seconds of the activity in the local day the slow way
+     */
+    private static long countSeconds(ActivityLog log, ActivityType activity, long day) throws Exception {
+        long dayStart = day * 24 * HOUR - ZONE.getRawOffset();
+        long dayEnd = dayStart + 24 * HOUR;
+
+        long seconds = 0;
+        ActivityLog.Record record = new ActivityLog.Record();
+        for (int i = 0; i < log.size(); i++) {
+            log.read(i, record);
+            if (record.getActivity() == activity) {
+                long from = Math.max(record.startMillis, dayStart);
+                long to = Math.min(record.endMillis, dayEnd);
+                if (to > from) {
+                    seconds += (to - from) / 1000;
+                }
+            }
+        }
+        return seconds;
+    }
+}
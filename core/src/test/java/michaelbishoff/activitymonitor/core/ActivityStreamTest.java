@@ -0,0 +1,171 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ActivityStreamTest {
+
+    private static final long WINDOW = 120000;
+
+    /**
+     * Remembers what it was given, and can be held up inside its first delivery
+     */
+    private static class RecordingSubscriber implements ActivityStream.Subscriber {
+        final List<ActivityWindow> windows = new ArrayList<>();
+        final List<String> transitions = new ArrayList<>();
+        int dropped = 0;
+        int deliveries = 0;
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        RecordingSubscriber(boolean slow) {
+            release = new CountDownLatch(slow ? 1 : 0);
+        }
+
+        @Override
+        public synchronized void onActivityWindows(ActivityWindow[] batch, int count, int droppedWindows) {
+            deliveries++;
+            for (int i = 0; i < count; i++) {
+                windows.add(batch[i]);
+            }
+            dropped += droppedWindows;
+
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void onActivityTransition(ActivityType from, ActivityType to, ActivityWindow window) {
+            transitions.add(from + "->" + to);
+        }
+
+        synchronized int received() {
+            return windows.size() + dropped;
+        }
+
+        synchronized int transitions() {
+            return transitions.size();
+        }
+    }
+
+    private static ActivityWindow window(int i, ActivityType activity) {
+        return new ActivityWindow(i * WINDOW, (i + 1) * WINDOW, activity, 1f, 0, 0, null);
+    }
+
+    private static void awaitReceived(RecordingSubscriber subscriber, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (subscriber.received() < count) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void windowsAndTransitions_reachEverySubscriber() throws Exception {
+        ActivityStream stream = new ActivityStream(8);
+        RecordingSubscriber first = new RecordingSubscriber(false);
+        RecordingSubscriber second = new RecordingSubscriber(false);
+        stream.subscribe(first);
+        stream.subscribe(second);
+
+        ActivityType[] activities = {ActivityType.SITTING, ActivityType.SITTING, ActivityType.WALKING,
+                ActivityType.WALKING, ActivityType.SITTING};
+        for (int i = 0; i < activities.length; i++) {
+            stream.publish(window(i, activities[i]));
+        }
+
+        // The transitions are delivered right after the windows
+        awaitReceived(first, 5);
+        awaitReceived(second, 5);
+        while (first.transitions() < 3 || second.transitions() < 3) {
+            Thread.sleep(5);
+        }
+        for (RecordingSubscriber subscriber : new RecordingSubscriber[]{first, second}) {
+            synchronized (subscriber) {
+                assertEquals(0, subscriber.dropped);
+                assertEquals(0, subscriber.windows.get(0).startMillis);
+                assertEquals(4 * WINDOW, subscriber.windows.get(4).startMillis);
+                assertEquals("[null->SITTING, SITTING->WALKING, WALKING->SITTING]", subscriber.transitions.toString());
+            }
+        }
+
+        stream.unsubscribe(second);
+        stream.publish(window(5, ActivityType.SITTING));
+        awaitReceived(first, 6);
+        Thread.sleep(50);
+        assertEquals(5, second.received());
+
+        stream.close();
+    }
+
+    @Test
+    public void earlyWindow_onlyDeliversTransition() throws Exception {
+        ActivityStream stream = new ActivityStream(8);
+        RecordingSubscriber subscriber = new RecordingSubscriber(false);
+        stream.subscribe(subscriber);
+
+        stream.publish(window(0, ActivityType.SITTING));
+        awaitReceived(subscriber, 1);
+        stream.publishEarly(window(1, ActivityType.WALKING));
+        while (subscriber.transitions() < 2) {
+            Thread.sleep(5);
+        }
+
+        // The closed window agrees with the early one, so there's nothing new to announce
+        stream.publish(window(1, ActivityType.WALKING));
+        awaitReceived(subscriber, 2);
+        Thread.sleep(50);
+        synchronized (subscriber) {
+            assertEquals("[null->SITTING, SITTING->WALKING]", subscriber.transitions.toString());
+            assertEquals(2, subscriber.windows.size());
+        }
+        assertEquals(ActivityType.WALKING, stream.getLastWindow().activity);
+
+        stream.close();
+    }
+
+    @Test
+    public void slowSubscriber_dropsOldestWithoutHoldingUpPublish() throws Exception {
+        ActivityStream stream = new ActivityStream(4);
+        RecordingSubscriber slow = new RecordingSubscriber(true);
+        ActivityStream.Subscription subscription = stream.subscribe(slow);
+
+        // The first delivery blocks inside the subscriber
+        stream.publish(window(0, ActivityType.SITTING));
+        assertTrue(slow.blocked.await(5, TimeUnit.SECONDS));
+
+        // Publishing carries on while it's stuck, the queue keeps only the newest 4
+        for (int i = 1; i <= 10; i++) {
+            stream.publish(window(i, ActivityType.SITTING));
+        }
+        assertEquals(6, subscription.getDropped());
+
+        slow.release.countDown();
+        awaitReceived(slow, 11);
+
+        synchronized (slow) {
+            assertEquals(6, slow.dropped);
+            assertEquals(5, slow.windows.size());
+            assertEquals(7 * WINDOW, slow.windows.get(1).startMillis);
+            // Everything that piled up came in one call
+            assertEquals(2, slow.deliveries);
+        }
+        while (subscription.getDelivered() < 5) {
+            Thread.sleep(5);
+        }
+        assertEquals(5, subscription.getDelivered());
+
+        stream.close();
+    }
+}
@@ -0,0 +1,68 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AngleKernelTest {
+
+    private static final int COUNT = 100000;
+
+    /**
+     * The angle from onSensorChanged before the engine, in double precision
+     */
+    private static double originalYAngle(float x, float y, float z) {
+        return Math.acos(y / Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2) + Math.pow(z, 2))) * 180 / Math.PI;
+    }
+
+    @Test
+    public void angles_withinTheErrorBoundOfTheOriginalFormula() throws Exception {
+        float[] xs = new float[COUNT];
+        float[] ys = new float[COUNT];
+        float[] zs = new float[COUNT];
+        Random random = new Random(7);
+        for (int i = 0; i < COUNT; i++) {
+            // Every direction, at magnitudes from free fall to a hard shake
+            double magnitude = 0.01 + random.nextDouble() * 40;
+            double a = random.nextGaussian();
+            double b = random.nextGaussian();
+            double c = random.nextGaussian();
+            double norm = Math.sqrt(a * a + b * b + c * c);
+            xs[i] = (float) (a / norm * magnitude);
+            ys[i] = (float) (b / norm * magnitude);
+            zs[i] = (float) (c / norm * magnitude);
+        }
+        // Nearly upright and upside down, where acos is steepest
+        for (int i = 0; i < 1000; i++) {
+            xs[i] = i * 1e-5f;
+            ys[i] = (i & 1) == 0 ? 9.81f : -9.81f;
+            zs[i] = 0.001f;
+        }
+
+        float[] angles = new float[COUNT + 1];
+        new AngleKernel(256).angles(xs, ys, zs, 0, angles, 1, COUNT);
+
+        double maxError = 0;
+        for (int i = 0; i < COUNT; i++) {
+            maxError = Math.max(maxError, Math.abs(angles[i + 1] - originalYAngle(xs[i], ys[i], zs[i])));
+        }
+        assertTrue(maxError + " degrees", maxError <= AngleKernel.MAX_ERROR_DEGREES);
+    }
+
+    @Test
+    public void angles_ofTheAxesAndZeroVector() throws Exception {
+        float[] xs = {0f, 0f, 9.81f, 0f, 0f};
+        float[] ys = {9.81f, -9.81f, 0f, 0f, 0f};
+        float[] zs = {0f, 0f, 0f, 9.81f, 0f};
+        float[] angles = new float[5];
+        new AngleKernel(2).angles(xs, ys, zs, 0, angles, 0, 5);
+
+        assertEquals(0f, angles[0], AngleKernel.MAX_ERROR_DEGREES);
+        assertEquals(180f, angles[1], AngleKernel.MAX_ERROR_DEGREES);
+        assertEquals(90f, angles[2], AngleKernel.MAX_ERROR_DEGREES);
+        assertEquals(90f, angles[3], AngleKernel.MAX_ERROR_DEGREES);
+        assertTrue(Float.isNaN(angles[4]));
+    }
+}
@@ -0,0 +1,125 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DistanceAccumulatorTest {
+
+    private static final double LAT = 39.2555;
+    private static final double LNG = -76.7113;
+
+    @Test
+    public void shortHops_matchHaversine() throws Exception {
+        DistanceAccumulator accumulator = new DistanceAccumulator();
+
+        double[][] hops = {{1e-6, 0}, {0, 1e-5}, {3e-4, -2e-4}, {0.009, 0.009}};
+        for (double[] hop : hops) {
+            double expected = Geo.haversine(LAT, LNG, LAT + hop[0], LNG + hop[1]);
+            double actual = accumulator.distance(LAT, LNG, LAT + hop[0], LNG + hop[1]);
+            assertEquals(expected, actual, expected * 1e-4);
+        }
+    }
+
+    @Test
+    public void takeDistance_addsUpFixesAndResets() throws Exception {
+        DistanceAccumulator accumulator = new DistanceAccumulator();
+        assertTrue(Double.isNaN(accumulator.takeDistance()));
+
+        LocationFix fix = new LocationFix();
+        // 11 m hops, more than the 10 m the two fixes' accuracies allow for
+        for (int i = 0; i <= 10; i++) {
+            fix.set(LocationFix.PROVIDER_GPS, LAT + i * 1e-4, LNG, i * 1000L, 5f);
+            assertTrue(accumulator.onFix(fix, i * 1000L));
+        }
+
+        assertEquals(11, accumulator.getFixesSinceTake());
+        assertEquals(Geo.haversine(LAT, LNG, LAT + 1e-3, LNG), accumulator.takeDistance(), 1e-2);
+        // No fixes since, which the distance alone doesn't show
+        assertEquals(0, accumulator.getFixesSinceTake());
+        assertEquals(0.0, accumulator.takeDistance(), 0);
+    }
+
+    @Test
+    public void jitterAroundOnePoint_addsNoDistance() throws Exception {
+        DistanceAccumulator accumulator = new DistanceAccumulator();
+        LocationFix fix = new LocationFix();
+        Random random = new Random(9);
+
+        // A phone on a desk for 10 minutes, 1 Hz fixes wandering about 3 m with 8 m accuracy
+        double metersPerDegree = Geo.EARTH_RADIUS * Math.PI / 180;
+        for (int i = 0; i < 600; i++) {
+            double north = random.nextGaussian() * 3 / metersPerDegree;
+            double east = random.nextGaussian() * 3 / (metersPerDegree * Math.cos(Math.toRadians(LAT)));
+            fix.set(LocationFix.PROVIDER_GPS, LAT + north, LNG + east, i * 1000L, 8f);
+            assertTrue(accumulator.onFix(fix, i * 1000L));
+        }
+
+        assertEquals(0.0, accumulator.takeDistance(), 1.0);
+    }
+
+    @Test
+    public void slowWalk_isAddedInLargerHops() throws Exception {
+        DistanceAccumulator accumulator = new DistanceAccumulator();
+        LocationFix fix = new LocationFix();
+
+        // 1 m a second north for a minute, with 5 m accuracy
+        for (int i = 0; i <= 60; i++) {
+            fix.set(LocationFix.PROVIDER_GPS, LAT + i * 9e-6, LNG, i * 1000L, 5f);
+            accumulator.onFix(fix, i * 1000L);
+        }
+
+        double walked = Geo.haversine(LAT, LNG, LAT + 60 * 9e-6, LNG);
+        double distance = accumulator.takeDistance();
+        assertTrue(distance + " of " + walked, distance > walked - 11 && distance <= walked + 1e-6);
+    }
+
+    @Test
+    public void walkWithInaccurateFixes_showsInEveryInterval() throws Exception {
+        DistanceAccumulator accumulator = new DistanceAccumulator();
+        LocationFix fix = new LocationFix();
+        Random random = new Random(4);
+
+        // 1.4 m a second north for 2 minutes, 1 Hz fixes with 20 m accuracy wandering about 2 m
+        double metersPerDegree = Geo.EARTH_RADIUS * Math.PI / 180;
+        for (int i = 0; i < 120; i++) {
+            double north = (i * 1.4 + random.nextGaussian() * 2) / metersPerDegree;
+            fix.set(LocationFix.PROVIDER_GPS, LAT + north, LNG, i * 1000L, 20f);
+            accumulator.onFix(fix, i * 1000L);
+
+            if (i % 20 == 19) {
+                double distance = accumulator.takeDistance();
+                assertTrue("interval " + i / 20 + ": " + distance, distance > WalkingIntervals.MIN_WALK_DISTANCE);
+            }
+        }
+    }
+
+    @Test
+    public void inaccurateAndStaleFixes_areDropped() throws Exception {
+        DistanceAccumulator accumulator = new DistanceAccumulator();
+        LocationFix fix = new LocationFix();
+
+        fix.set(LocationFix.PROVIDER_GPS, LAT, LNG, 0, 5f);
+        assertTrue(accumulator.onFix(fix, 0));
+
+        // Too inaccurate
+        fix.set(LocationFix.PROVIDER_GPS, LAT + 1e-3, LNG, 1000, 500f);
+        assertFalse(accumulator.onFix(fix, 1000));
+
+        // GPS is still fresh, so the network fix is ignored
+        fix.set(LocationFix.PROVIDER_NETWORK, LAT + 1e-3, LNG, 2000, 20f);
+        assertFalse(accumulator.onFix(fix, 2000));
+        assertEquals(0.0, accumulator.takeDistance(), 0);
+
+        // Inside, GPS has gone quiet. Switching providers doesn't count the jump.
+        fix.set(LocationFix.PROVIDER_NETWORK, LAT + 1e-3, LNG, 60000, 20f);
+        assertTrue(accumulator.onFix(fix, 60000));
+        assertEquals(0.0, accumulator.takeDistance(), 0);
+
+        assertEquals(2, accumulator.getAcceptedFixes());
+        assertEquals(1, accumulator.getInaccurateFixes());
+        assertEquals(1, accumulator.getStaleFixes());
+    }
+}
@@ -0,0 +1,98 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FeatureExtractorTest {
+
+    private static final long SAMPLE_NANOS = 20000000L; // 50 Hz
+
+    @Test
+    public void meansAndVariances_matchTwoPassValues() throws Exception {
+        FeatureExtractor extractor = new FeatureExtractor();
+        Random random = new Random(7);
+
+        int n = 1000;
+        float[] xs = new float[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = (float) (2 + random.nextGaussian());
+            extractor.onSample(i * SAMPLE_NANOS, xs[i], 9.81f, 0f);
+        }
+
+        double mean = 0;
+        for (float x : xs) {
+            mean += x;
+        }
+        mean /= n;
+        double m2 = 0;
+        for (float x : xs) {
+            m2 += (x - mean) * (x - mean);
+        }
+
+        float[] features = extractor.getFeatures();
+        assertEquals(mean, features[FeatureExtractor.MEAN_X], 1e-5);
+        assertEquals(m2 / (n - 1), features[FeatureExtractor.VARIANCE_X], 1e-4);
+        assertEquals(9.81f, features[FeatureExtractor.MEAN_Y], 1e-5);
+        assertEquals(0f, features[FeatureExtractor.VARIANCE_Y], 1e-9);
+        assertEquals(50f, features[FeatureExtractor.SAMPLE_RATE], 1e-3);
+    }
+
+    @Test
+    public void walking_findsTheStepCadence() throws Exception {
+        FeatureExtractor extractor = new FeatureExtractor();
+        Random random = new Random(11);
+
+        // 2 steps a second for a minute, a bounce on top of gravity plus some noise
+        for (int i = 0; i < 3000; i++) {
+            double t = i * SAMPLE_NANOS / 1e9;
+            float bounce = (float) (3 * Math.sin(2 * Math.PI * 2 * t) + random.nextGaussian() * 0.5);
+            extractor.onSample(i * SAMPLE_NANOS, 0.5f, 9.81f + bounce, 1f);
+        }
+
+        float[] features = extractor.getFeatures();
+        assertEquals(120f, features[FeatureExtractor.CADENCE], 5f);
+        assertTrue(features[FeatureExtractor.PERIODIC_FRACTION] > 0.9f);
+    }
+
+    @Test
+    public void fastRates_fillWholeBlocks() throws Exception {
+        // From 86 Hz up a full block reaches the largest lag, SENSOR_DELAY_FASTEST is about 200 Hz
+        for (int hz : new int[] { 100, 200 }) {
+            FeatureExtractor extractor = new FeatureExtractor();
+            Random random = new Random(hz);
+            long sampleNanos = 1000000000L / hz;
+
+            for (int i = 0; i < 60 * hz; i++) {
+                double t = i * sampleNanos / 1e9;
+                float bounce = (float) (3 * Math.sin(2 * Math.PI * 2 * t) + random.nextGaussian() * 0.5);
+                extractor.onSample(i * sampleNanos, 0.5f, 9.81f + bounce, 1f);
+            }
+
+            float[] features = extractor.getFeatures();
+            assertEquals(120f, features[FeatureExtractor.CADENCE], 5f);
+            assertEquals(hz, features[FeatureExtractor.SAMPLE_RATE], 1f);
+        }
+    }
+
+    @Test
+    public void stillness_hasNoCadence() throws Exception {
+        FeatureExtractor extractor = new FeatureExtractor();
+        Random random = new Random(3);
+
+        for (int i = 0; i < 3000; i++) {
+            extractor.onSample(i * SAMPLE_NANOS, (float) (random.nextGaussian() * 0.02),
+                    9.81f, (float) (random.nextGaussian() * 0.02));
+        }
+
+        float[] features = extractor.getFeatures();
+        assertEquals(0f, features[FeatureExtractor.CADENCE], 0f);
+        assertEquals(0f, features[FeatureExtractor.PERIODIC_FRACTION], 0f);
+
+        extractor.resetWindow();
+        assertEquals(0, extractor.getSampleCount());
+        assertEquals(0f, extractor.getFeatures()[FeatureExtractor.MEAN_Y], 0f);
+    }
+}
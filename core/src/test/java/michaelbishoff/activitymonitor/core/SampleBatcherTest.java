@@ -0,0 +1,114 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleBatcherTest {
+
+    /**
+     * Replays bursts of samples the way the sensor FIFO delivers them: every event of
+     * a burst is added, then the flush the first event scheduled runs.
+     */
+    private static class FakeSampleSource implements SampleSource {
+
+        private final float[][][] bursts;
+        private final int batchSize;
+        private SampleBatcher batcher;
+
+        FakeSampleSource(float[][][] bursts, int batchSize) {
+            this.bursts = bursts;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void start(SampleSink sink) {
+            batcher = new SampleBatcher(batchSize, sink);
+
+            long timestamp = 0;
+            for (float[][] burst : bursts) {
+                boolean flushScheduled = false;
+                for (float[] s : burst) {
+                    flushScheduled |= batcher.add(timestamp += 20000000L, s[0], s[1], s[2]);
+                }
+                if (flushScheduled) {
+                    batcher.flush();
+                }
+            }
+        }
+
+        @Override
+        public void stop() {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Records the size of every batch it receives
+     */
+    private static class RecordingSink implements SampleSink {
+
+        final List<Integer> batchSizes = new ArrayList<>();
+        final AccelerometerEngine engine = new AccelerometerEngine();
+
+        @Override
+        public void onSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+            batchSizes.add(count);
+            engine.onSamples(timestamps, xs, ys, zs, count);
+        }
+    }
+
+    private static float[][] burst(int n, float x, float y, float z) {
+        float[][] burst = new float[n][];
+        for (int i = 0; i < n; i++) {
+            burst[i] = new float[]{x, y, z};
+        }
+        return burst;
+    }
+
+    @Test
+    public void eachBurst_isDeliveredAsOneBatch() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        FakeSampleSource source = new FakeSampleSource(new float[][][]{
+                burst(50, 0f, 9.81f, 0f), burst(50, 0f, 0f, 9.81f)
+        }, 64);
+
+        source.start(sink);
+        source.stop();
+
+        assertEquals(2, sink.batchSizes.size());
+        assertEquals(50, (int) sink.batchSizes.get(0));
+        assertEquals(50, (int) sink.batchSizes.get(1));
+        assertEquals(100, sink.engine.getAverageAngleCount());
+        assertEquals(45.0, sink.engine.getAverageAngle(), AngleKernel.MAX_ERROR_DEGREES);
+    }
+
+    @Test
+    public void fullBatch_isDeliveredBeforeTheFlush() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        FakeSampleSource source = new FakeSampleSource(new float[][][]{
+                burst(100, 0f, 9.81f, 0f)
+        }, 64);
+
+        source.start(sink);
+        source.stop();
+
+        assertEquals(2, sink.batchSizes.size());
+        assertEquals(64, (int) sink.batchSizes.get(0));
+        assertEquals(36, (int) sink.batchSizes.get(1));
+    }
+
+    @Test
+    public void add_reportsTheStartOfABatch() throws Exception {
+        SampleBatcher batcher = new SampleBatcher(4, new RecordingSink());
+
+        assertTrue(batcher.add(1, 0f, 1f, 0f));
+        assertFalse(batcher.add(2, 0f, 1f, 0f));
+        batcher.flush();
+        assertEquals(0, batcher.size());
+        assertTrue(batcher.add(3, 0f, 1f, 0f));
+    }
+}
@@ -0,0 +1,126 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static michaelbishoff.activitymonitor.core.SensingScheduler.Level.*;
+import static org.junit.Assert.*;
+
+public class SensingSchedulerTest {
+
+    private static final long INTERVAL_MILLIS = 20000;
+
+    private final List<String> changes = new ArrayList<>();
+
+    private final SensingScheduler scheduler = new SensingScheduler(0, new SensingScheduler.Listener() {
+        @Override
+        public void onLevelChanged(SensingScheduler.Level from, SensingScheduler.Level to, String reason,
+                                   double wakeupsPerHour, double fixesPerHour) {
+            changes.add(from + "->" + to);
+        }
+    });
+
+    /**
+     * Runs quiet intervals from the start to the end, with a sensor batch every second
+     */
+    private void quiet(long fromMillis, long toMillis) {
+        for (long millis = fromMillis + 1000; millis <= toMillis; millis += 1000) {
+            scheduler.onBatch(millis, 0.5);
+            if (millis % INTERVAL_MILLIS == 0) {
+                scheduler.onInterval(millis, 0, 1.0);
+            }
+        }
+    }
+
+    @Test
+    public void quietIntervals_stepDownALevelAtATime() throws Exception {
+        quiet(0, 100000);
+        assertEquals(ACTIVE, scheduler.getLevel());
+
+        quiet(100000, 120000);
+        assertEquals(IDLE, scheduler.getLevel());
+
+        quiet(120000, 240000);
+        assertEquals(DEEP_IDLE, scheduler.getLevel());
+
+        // Stays at the lowest level
+        quiet(240000, 600000);
+        assertEquals(DEEP_IDLE, scheduler.getLevel());
+        assertEquals(2, changes.size());
+        assertEquals("ACTIVE->IDLE", changes.get(0));
+        assertEquals("IDLE->DEEP_IDLE", changes.get(1));
+    }
+
+    @Test
+    public void walkingInterval_returnsToActive() throws Exception {
+        quiet(0, 240000);
+        assertEquals(DEEP_IDLE, scheduler.getLevel());
+
+        scheduler.onInterval(260000, 1, 1.0);
+        assertEquals(ACTIVE, scheduler.getLevel());
+        assertEquals("DEEP_IDLE->ACTIVE", changes.get(2));
+
+        // The quiet count starts over
+        quiet(260000, 360000);
+        assertEquals(ACTIVE, scheduler.getLevel());
+    }
+
+    @Test
+    public void movingBatch_returnsToActiveRightAway() throws Exception {
+        quiet(0, 120000);
+        assertEquals(IDLE, scheduler.getLevel());
+
+        // Below the motion variance nothing changes
+        scheduler.onBatch(121000, SensingScheduler.MOTION_ANGLE_VARIANCE - 1);
+        assertEquals(IDLE, scheduler.getLevel());
+
+        scheduler.onBatch(122000, SensingScheduler.MOTION_ANGLE_VARIANCE);
+        assertEquals(ACTIVE, scheduler.getLevel());
+    }
+
+    @Test
+    public void significantMotion_returnsToActive() throws Exception {
+        quiet(0, 240000);
+        scheduler.onSignificantMotion(250000);
+
+        assertEquals(ACTIVE, scheduler.getLevel());
+        assertEquals("DEEP_IDLE->ACTIVE", changes.get(2));
+    }
+
+    @Test
+    public void listener_isToldOncePerChange() throws Exception {
+        quiet(0, 120000);
+        // More motion while already active changes nothing
+        scheduler.onBatch(121000, 100);
+        scheduler.onBatch(122000, 100);
+        scheduler.onInterval(140000, 3, 50);
+
+        assertEquals(2, changes.size());
+        assertEquals(2, scheduler.getLevelChanges());
+        assertEquals("IDLE->ACTIVE", changes.get(1));
+    }
+
+    @Test
+    public void countsAndTime_areKeptPerLevel() throws Exception {
+        quiet(0, 120000);
+        scheduler.onFix();
+        scheduler.onFix();
+        quiet(120000, 240000);
+        scheduler.onFix();
+        quiet(240000, 300000);
+
+        assertEquals(120000, scheduler.getMillisAtLevel(ACTIVE, 300000));
+        assertEquals(120000, scheduler.getMillisAtLevel(IDLE, 300000));
+        assertEquals(60000, scheduler.getMillisAtLevel(DEEP_IDLE, 300000));
+
+        assertEquals(120, scheduler.getWakeupsAtLevel(ACTIVE));
+        assertEquals(120, scheduler.getWakeupsAtLevel(IDLE));
+        assertEquals(60, scheduler.getWakeupsAtLevel(DEEP_IDLE));
+
+        assertEquals(0, scheduler.getFixesAtLevel(ACTIVE));
+        assertEquals(2, scheduler.getFixesAtLevel(IDLE));
+        assertEquals(1, scheduler.getFixesAtLevel(DEEP_IDLE));
+    }
+}
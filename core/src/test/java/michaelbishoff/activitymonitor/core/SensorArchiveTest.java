@@ -0,0 +1,175 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SensorArchiveTest {
+
+    private static final long SAMPLE_NANOS = 20000000L; // 50 Hz
+    private static final int SAMPLES = 3000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("archive", ".ama");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    /**
+     * Writes a minute of walking-like samples with some jitter, and a fix every 50 samples.
+     * Returns the writer, closed.
+     */
+    private SensorArchiveWriter writeArchive(long[] timestamps, float[] xs, float[] ys, float[] zs,
+                                             LocationFix[] fixes) throws Exception {
+        Random random = new Random(42);
+        long t = 123456789000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            t += SAMPLE_NANOS + random.nextInt(200000) - 100000;
+            timestamps[i] = t;
+            double phase = i * 2 * Math.PI / 50;
+            xs[i] = (float) (0.5 * Math.sin(phase) + random.nextGaussian() * 0.05);
+            ys[i] = (float) (9.81 + 2 * Math.sin(2 * phase) + random.nextGaussian() * 0.05);
+            zs[i] = (float) (1.0 * Math.cos(phase) + random.nextGaussian() * 0.05);
+        }
+        for (int i = 0; i < fixes.length; i++) {
+            fixes[i] = new LocationFix(i % 2, 39.2555 + i * 0.00005, -76.7113 - i * 0.00003,
+                    1445000000000L + i * 1000, 4.5f + i);
+        }
+
+        SensorArchiveWriter writer = new SensorArchiveWriter(file);
+        // Written in batches like the sensor thread does
+        for (int i = 0; i < SAMPLES; i += 100) {
+            writer.writeSamples(subarray(timestamps, i), subarray(xs, i), subarray(ys, i), subarray(zs, i), 100);
+            writer.writeLocation(timestamps[i], fixes[i / 50]);
+            writer.writeLocation(timestamps[i + 50], fixes[i / 50 + 1]);
+        }
+        writer.close();
+        return writer;
+    }
+
+    private static long[] subarray(long[] values, int from) {
+        long[] result = new long[100];
+        System.arraycopy(values, from, result, 0, 100);
+        return result;
+    }
+
+    private static float[] subarray(float[] values, int from) {
+        float[] result = new float[100];
+        System.arraycopy(values, from, result, 0, 100);
+        return result;
+    }
+
+    @Test
+    public void roundTrip_withinTheQuantizationSteps() throws Exception {
+        long[] timestamps = new long[SAMPLES];
+        float[] xs = new float[SAMPLES];
+        float[] ys = new float[SAMPLES];
+        float[] zs = new float[SAMPLES];
+        LocationFix[] fixes = new LocationFix[SAMPLES / 50];
+        SensorArchiveWriter writer = writeArchive(timestamps, xs, ys, zs, fixes);
+
+        int samples = 0;
+        int fixCount = 0;
+        SensorArchiveReader reader = new SensorArchiveReader(file);
+        int type;
+        while ((type = reader.next()) != -1) {
+            if (type == SensorArchiveWriter.ACCELEROMETER) {
+                assertTrue(Math.abs(timestamps[samples] - reader.elapsedNanos) < SensorArchiveWriter.TIME_STEP_NANOS);
+                assertEquals(xs[samples], reader.x, SensorArchiveWriter.ACCELERATION_STEP);
+                assertEquals(ys[samples], reader.y, SensorArchiveWriter.ACCELERATION_STEP);
+                assertEquals(zs[samples], reader.z, SensorArchiveWriter.ACCELERATION_STEP);
+                samples++;
+            } else {
+                LocationFix expected = fixes[fixCount];
+                assertTrue(Math.abs(timestamps[fixCount * 50] - reader.elapsedNanos) < SensorArchiveWriter.TIME_STEP_NANOS);
+                assertEquals(expected.provider, reader.fix.provider);
+                assertEquals(expected.time, reader.fix.time);
+                assertEquals(expected.latitude, reader.fix.latitude, SensorArchiveWriter.DEGREE_STEP);
+                assertEquals(expected.longitude, reader.fix.longitude, SensorArchiveWriter.DEGREE_STEP);
+                assertEquals(expected.accuracy, reader.fix.accuracy, SensorArchiveWriter.ACCURACY_STEP);
+                fixCount++;
+            }
+        }
+        reader.close();
+
+        assertEquals(SAMPLES, samples);
+        assertEquals(fixes.length, fixCount);
+
+        // The whole point, at least 4x smaller than a trace
+        assertEquals(file.length(), writer.getArchivedBytes());
+        assertEquals(SAMPLES * 21 + fixes.length * 38, writer.getTraceBytes());
+        assertTrue(writer.getArchivedBytes() + " bytes", writer.getArchivedBytes() * 4 < writer.getTraceBytes());
+    }
+
+    @Test
+    public void truncatedArchive_endsAtTheLastWholeBlock() throws Exception {
+        long[] timestamps = new long[SAMPLES];
+        float[] xs = new float[SAMPLES];
+        float[] ys = new float[SAMPLES];
+        float[] zs = new float[SAMPLES];
+        LocationFix[] fixes = new LocationFix[SAMPLES / 50];
+        writeArchive(timestamps, xs, ys, zs, fixes);
+
+        // Cut off the middle of the last block, the fixes, like a crash during a write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        int samples = 0;
+        int fixCount = 0;
+        SensorArchiveReader reader = new SensorArchiveReader(file);
+        int type;
+        while ((type = reader.next()) != -1) {
+            if (type == SensorArchiveWriter.ACCELEROMETER) {
+                assertEquals(xs[samples], reader.x, SensorArchiveWriter.ACCELERATION_STEP);
+                samples++;
+            } else {
+                fixCount++;
+            }
+        }
+        reader.close();
+
+        // The blocks before it are all still readable
+        assertEquals(SAMPLES, samples);
+        assertEquals(0, fixCount);
+    }
+
+    @Test
+    public void corruptedBlockCount_isRejected() throws Exception {
+        writeArchive(new long[SAMPLES], new float[SAMPLES], new float[SAMPLES], new float[SAMPLES],
+                new LocationFix[SAMPLES / 50]);
+
+        // The count of the first block, after the file header and the block type
+        long countOffset = 4 + 4 + 8 + 4 + 8 + 4 + 1;
+        int[] counts = { -1, 0, SensorArchiveWriter.BLOCK_SAMPLES + 1, Integer.MAX_VALUE };
+        for (int count : counts) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(countOffset);
+            raf.writeInt(count);
+            raf.close();
+
+            SensorArchiveReader reader = new SensorArchiveReader(file);
+            try {
+                reader.next();
+                fail("read a block of " + count + " records");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().startsWith("Corrupt block header"));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
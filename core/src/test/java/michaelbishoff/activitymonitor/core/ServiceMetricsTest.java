@@ -0,0 +1,57 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class ServiceMetricsTest {
+
+    @Test
+    public void histogram_quantilesAreBucketBounds() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1000000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals((99 * 1000 + 1000000) / 100.0, histogram.getMeanNanos(), 1e-9);
+
+        // 1000 is in [512, 1024), 1000000 is in [524288, 1048576)
+        assertEquals(1023, histogram.getQuantileNanos(0.5));
+        assertEquals(1023, histogram.getQuantileNanos(0.99));
+        assertEquals(1000000, histogram.getQuantileNanos(1.0));
+    }
+
+    @Test
+    public void dump_reportsTheCounters() throws Exception {
+        ServiceMetrics metrics = new ServiceMetrics(0);
+        metrics.onBatch(100, 200000);
+        metrics.onBatch(50, 100000);
+        metrics.onFix(LocationFix.PROVIDER_GPS);
+        metrics.onFix(LocationFix.PROVIDER_NETWORK);
+        metrics.onFix(LocationFix.PROVIDER_NETWORK);
+        metrics.onInterval(true);
+        metrics.onInterval(false);
+        metrics.onWindow(5000);
+
+        assertEquals(150, metrics.sampleNanos.getCount());
+        assertEquals(2000, metrics.sampleNanos.getMaxNanos());
+        assertEquals(15.0, metrics.getSampleRate(10000), 1e-9);
+
+        StringWriter text = new StringWriter();
+        metrics.dump(new PrintWriter(text), 10000);
+        String dump = text.toString();
+        assertTrue(dump, dump.contains("150 samples in 2 batches, 15.0 samples/s"));
+        assertTrue(dump, dump.contains("fixes: gps=1 network=2"));
+        assertTrue(dump, dump.contains("intervals: 2, without a fix 1"));
+
+        metrics.reset(10000);
+        assertEquals(0, metrics.getSamples());
+        assertEquals(0, metrics.sampleNanos.getCount());
+    }
+}
@@ -0,0 +1,123 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StationarityDetectorTest {
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final List<String> changes = new ArrayList<>();
+
+    private final StationarityDetector detector = new StationarityDetector(0, new StationarityDetector.Listener() {
+        @Override
+        public void onStill(long nowMillis) {
+            changes.add("still@" + nowMillis);
+        }
+
+        @Override
+        public void onMoving(long nowMillis, String reason) {
+            changes.add("moving@" + nowMillis);
+        }
+    });
+
+    private final Random random = new Random(3);
+
+    /**
+     * Feeds 1 second batches of 50 Hz samples from the start to the end, flat on a table
+     * or swinging in a hand
+     */
+    private void feed(long fromMillis, long toMillis, boolean moving) {
+        long[] timestamps = new long[50];
+        float[] xs = new float[50];
+        float[] ys = new float[50];
+        float[] zs = new float[50];
+
+        for (long second = fromMillis; second < toMillis; second += 1000) {
+            for (int i = 0; i < 50; i++) {
+                long millis = second + i * 20;
+                timestamps[i] = millis * NANOS_PER_MILLI;
+                float noise = (float) random.nextGaussian() * 0.03f;
+                xs[i] = noise + (moving ? 3f * (float) Math.sin(millis / 200.0) : 0f);
+                ys[i] = noise;
+                zs[i] = 9.81f + noise;
+            }
+            detector.onSamples(timestamps, xs, ys, zs, 50);
+        }
+    }
+
+    @Test
+    public void flatPhone_becomesStillAfterQuietStretch() throws Exception {
+        feed(0, 59000, false);
+        assertFalse(detector.isStill());
+
+        feed(59000, 61000, false);
+        assertTrue(detector.isStill());
+        assertEquals(1, changes.size());
+        assertEquals("still@" + StationarityDetector.STILL_MILLIS, changes.get(0));
+    }
+
+    @Test
+    public void motion_resumesWithinOneBatch() throws Exception {
+        feed(0, 120000, false);
+        assertTrue(detector.isStill());
+
+        feed(120000, 121000, true);
+        assertFalse(detector.isStill());
+        assertTrue(changes.get(1).startsWith("moving@120"));
+
+        // Has to be quiet for the whole stretch again
+        feed(121000, 150000, false);
+        assertFalse(detector.isStill());
+    }
+
+    @Test
+    public void significantMotion_resumesWithoutSamples() throws Exception {
+        feed(0, 70000, false);
+        assertTrue(detector.isStill());
+
+        detector.onSignificantMotion(90000);
+        assertFalse(detector.isStill());
+        assertEquals("moving@90000", changes.get(1));
+    }
+
+    @Test
+    public void sampleClock_mayDifferFromElapsedRealtime() throws Exception {
+        // The sensor counts uptime, which is far behind elapsedRealtime after the phone slept
+        long offsetNanos = -5000000000000L;
+        long[] timestamps = new long[50];
+        float[] xs = new float[50];
+        float[] ys = new float[50];
+        float[] zs = new float[50];
+        for (long second = 0; second < 70000; second += 1000) {
+            for (int i = 0; i < 50; i++) {
+                timestamps[i] = (second + i * 20) * NANOS_PER_MILLI + offsetNanos;
+                zs[i] = 9.81f;
+            }
+            detector.onSamples(second + 980, timestamps, xs, ys, zs, 50);
+        }
+
+        assertTrue(detector.isStill());
+        assertEquals("still@" + StationarityDetector.STILL_MILLIS, changes.get(0));
+
+        detector.onSignificantMotion(100000);
+        assertEquals(40000, detector.getStillMillis(200000));
+    }
+
+    @Test
+    public void locationOnFraction_countsStillTime() throws Exception {
+        feed(0, 100000, false);
+        detector.onSignificantMotion(160000);
+        feed(160000, 200000, true);
+
+        // Still from 60 to 160 s out of 200
+        assertEquals(100000, detector.getStillMillis(200000));
+        assertEquals(0.5, detector.getLocationOnFraction(200000), 1e-9);
+        assertEquals(1, detector.getSuspensions());
+    }
+}
@@ -0,0 +1,133 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StepDetectorTest {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int HZ = 50;
+
+    private final List<String> changes = new ArrayList<>();
+
+    private final StepDetector detector = new StepDetector(new StepDetector.Listener() {
+        @Override
+        public void onWalkingChanged(boolean walking, long timestampNanos, int cadence) {
+            changes.add((walking ? "walking@" : "stopped@") + timestampNanos / 100000000 / 10.0);
+        }
+    });
+
+    private final Random random = new Random(11);
+
+    /**
+     * Feeds 50 Hz samples from the start to the end second of a phone in a pocket bouncing
+     * with each step at the step rate, or still when it's 0
+     */
+    private void feed(double fromSecond, double toSecond, double stepsPerSecond, float bounce) {
+        feed(fromSecond, toSecond, stepsPerSecond, bounce, NANOS_PER_SECOND / HZ);
+    }
+
+    private void feed(double fromSecond, double toSecond, double stepsPerSecond, float bounce, long periodNanos) {
+        long end = Math.round(toSecond * NANOS_PER_SECOND);
+        for (long t = Math.round(fromSecond * NANOS_PER_SECOND); t < end; t += periodNanos) {
+            double phase = 2 * Math.PI * stepsPerSecond * t / NANOS_PER_SECOND;
+            float noise = (float) random.nextGaussian() * 0.05f;
+            detector.onSample(t, 0.3f * (float) Math.sin(phase / 2) + noise,
+                    9.81f + bounce * (float) Math.sin(phase) + noise, 1f + noise);
+        }
+    }
+
+    @Test
+    public void walking_isRecognizedWithinSeconds() throws Exception {
+        feed(0, 5, 0, 0);
+        feed(5, 25, 1.8, 2f);
+
+        assertTrue(detector.isWalking());
+        // Six steps at 1.8 a second, after the gravity estimate settles
+        String started = changes.get(0);
+        assertTrue(started, started.startsWith("walking@"));
+        assertTrue(started, Double.parseDouble(started.substring(8)) < 10);
+
+        assertEquals(108, detector.getCadence(), 3);
+        // About 36 steps in 20 seconds, the first few before the bout was long enough
+        int steps = detector.takeSteps();
+        assertTrue("steps " + steps, steps >= 28 && steps <= 36);
+        assertEquals(0, detector.takeSteps());
+    }
+
+    @Test
+    public void gentleSteps_followAdaptiveThreshold() throws Exception {
+        // Strong steps raise the threshold, lighter ones are still counted once it follows them down
+        feed(0, 20, 2, 4f);
+        detector.takeSteps();
+        feed(20, 40, 2, 1.2f);
+
+        assertTrue(detector.isWalking());
+        assertTrue(detector.takeSteps() >= 35);
+    }
+
+    @Test
+    public void stopping_endsTheBout() throws Exception {
+        feed(0, 20, 1.8, 2f);
+        feed(20, 25, 0, 0);
+
+        assertFalse(detector.isWalking());
+        assertEquals(0, detector.getCadence());
+        assertEquals(2, changes.size());
+        assertTrue(changes.get(1).startsWith("stopped@21"));
+    }
+
+    @Test
+    public void walkingAtIdleRate_isSeenOnceSchedulerIsActive() throws Exception {
+        SensingScheduler scheduler = new SensingScheduler(0, new SensingScheduler.Listener() {
+            @Override
+            public void onLevelChanged(SensingScheduler.Level from, SensingScheduler.Level to, String reason,
+                                       double wakeupsPerHour, double fixesPerHour) {
+            }
+        });
+        for (int interval = 1; interval <= SensingScheduler.QUIET_INTERVALS_PER_STEP; interval++) {
+            scheduler.onInterval(interval * 20000, 0, 1.0);
+        }
+        assertEquals(SensingScheduler.Level.IDLE, scheduler.getLevel());
+
+        // 2 Hz is too slow to see any steps
+        feed(120, 150, 1.8, 2f, scheduler.getLevel().samplingPeriodUs * 1000L);
+        assertFalse(detector.isWalking());
+        assertEquals(0, detector.getStepCount());
+
+        // Woken by significant motion, the steps are seen within seconds
+        scheduler.onSignificantMotion(150000);
+        assertEquals(SensingScheduler.Level.ACTIVE, scheduler.getLevel());
+        feed(150, 170, 1.8, 2f, scheduler.getLevel().samplingPeriodUs * 1000L);
+
+        assertTrue(detector.isWalking());
+        String started = changes.get(0);
+        assertTrue(started, Double.parseDouble(started.substring(8)) < 156);
+    }
+
+    @Test
+    public void stillAndFidgeting_countNoSteps() throws Exception {
+        feed(0, 30, 0, 0);
+
+        // Single bumps at irregular times
+        long[] bumps = {31000, 31400, 33100, 33500, 36800, 37300, 38200};
+        for (long millis = 30000; millis < 40000; millis += 1000 / HZ) {
+            float bump = 0;
+            for (long at : bumps) {
+                if (millis >= at && millis < at + 60) {
+                    bump = 3f;
+                }
+            }
+            detector.onSample(millis * 1000000, 0, 9.81f + bump, 0);
+        }
+
+        assertFalse(detector.isWalking());
+        assertEquals(0, detector.getStepCount());
+        assertTrue(changes.isEmpty());
+    }
+}
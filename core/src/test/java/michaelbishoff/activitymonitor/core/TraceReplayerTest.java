@@ -0,0 +1,99 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class TraceReplayerTest {
+
+    private static final long SAMPLE_NANOS = 200000000L; // 5 Hz
+    private static final long FIX_NANOS = 5000000000L; // every 5 seconds
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("traces", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Writes a trace of the given length with the phone held at a fixed orientation
+     * and the GPS moving the given number of meters north every fix
+     */
+    private File writeTrace(String name, long minutes, float y, float z, double metersPerFix) throws Exception {
+        File file = new File(directory, name + TraceReplayer.TRACE_EXTENSION);
+        SensorTraceWriter writer = new SensorTraceWriter(file);
+
+        long[] timestamps = new long[1];
+        float[] xs = {0f};
+        float[] ys = {y};
+        float[] zs = {z};
+        LocationFix fix = new LocationFix();
+        double latitude = 39.2555;
+
+        long end = minutes * 60 * 1000000000L;
+        for (long t = 0; t < end; t += SAMPLE_NANOS) {
+            timestamps[0] = t;
+            writer.writeSamples(timestamps, xs, ys, zs, 1);
+
+            if (t % FIX_NANOS == 0) {
+                latitude += metersPerFix / 111320.0;
+                fix.set(LocationFix.PROVIDER_GPS, latitude, -76.7113, t / 1000000, 5f);
+                writer.writeLocation(t, fix);
+            }
+        }
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void replay_classifiesEachWindow() throws Exception {
+        // Flat on a table, not moving
+        File sleeping = writeTrace("sleeping", 6, 0f, 9.81f, 0);
+        // Upright in a pocket, moving 5 m every 5 seconds
+        File walking = writeTrace("walking", 6, 9.81f, 0f, 5);
+
+        TraceReplayer replayer = new TraceReplayer();
+
+        TraceReplayer.Result result = replayer.replay(sleeping);
+        assertEquals(2, result.windows.length);
+        assertEquals(ActivityType.SLEEPING, result.windows[0]);
+        assertEquals(ActivityType.SLEEPING, result.windows[1]);
+
+        result = replayer.replay(walking);
+        assertEquals(2, result.windows.length);
+        assertEquals(ActivityType.WALKING, result.windows[0]);
+        assertEquals(ActivityType.WALKING, result.windows[1]);
+    }
+
+    @Test
+    public void replayDirectory_replaysEveryTraceInOrder() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            writeTrace("trace" + i, 4, i % 2 == 0 ? 0f : 9.81f, i % 2 == 0 ? 9.81f : 0f, 0);
+        }
+
+        TraceReplayer.Result[] results = new TraceReplayer().replayDirectory(directory, new ForkJoinPool(2));
+
+        assertEquals(5, results.length);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("trace" + i + TraceReplayer.TRACE_EXTENSION, results[i].trace.getName());
+            assertNull(results[i].error);
+            assertEquals(i % 2 == 0 ? ActivityType.SLEEPING : ActivityType.SITTING, results[i].windows[0]);
+        }
+    }
+}
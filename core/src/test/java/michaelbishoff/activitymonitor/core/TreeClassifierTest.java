@@ -0,0 +1,68 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TreeClassifierTest {
+
+    private static final byte LEAF = TreeClassifier.LEAF;
+    private static final byte SITTING = (byte) ActivityType.SITTING.getCode();
+
+    private static TreeClassifier rulesTree() {
+        return TreeClassifier.fromRules();
+    }
+
+    @Test
+    public void rulesTree_agreesWithRules() throws Exception {
+        Classifier rules = new RuleClassifier();
+        Classifier tree = rulesTree();
+        float[] inputs = new float[Classifier.NUM_INPUTS];
+        float[] features = new float[FeatureExtractor.NUM_FEATURES];
+        Random random = new Random(5);
+
+        double[] edges = { 0, 65, 90, 115, 180 };
+        for (int i = 0; i < 10000; i++) {
+            double angle = i < 50 ? edges[i % edges.length] : random.nextDouble() * 180;
+            RuleClassifier.putInputs(inputs, features, random.nextInt(7), angle);
+            assertEquals(rules.classify(inputs), tree.classify(inputs));
+        }
+    }
+
+    @Test
+    public void writtenModel_readsBack() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        rulesTree().write(bytes);
+        // 3 inner nodes and 4 leaves, with the header and checksum
+        assertEquals(16 + 3 * 7 + 4 * 2, bytes.size());
+
+        TreeClassifier tree = TreeClassifier.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(7, tree.getNodeCount());
+
+        float[] inputs = new float[Classifier.NUM_INPUTS];
+        inputs[Classifier.AVERAGE_ANGLE] = 90;
+        assertEquals(ActivityType.SLEEPING, tree.classify(inputs));
+        inputs[Classifier.INTERVALS_WALKING] = 5;
+        assertEquals(ActivityType.WALKING, tree.classify(inputs));
+    }
+
+    @Test(expected = IOException.class)
+    public void damagedModel_isRejected() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        rulesTree().write(bytes);
+        byte[] model = bytes.toByteArray();
+        model[14] ^= 0x10;
+
+        TreeClassifier.read(new ByteArrayInputStream(model));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void loopingTree_isRejected() throws Exception {
+        new TreeClassifier(new byte[] { Classifier.AVERAGE_ANGLE, LEAF }, new float[2], new short[] { 0, SITTING });
+    }
+}
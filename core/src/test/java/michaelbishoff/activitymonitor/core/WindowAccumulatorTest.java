@@ -0,0 +1,154 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WindowAccumulatorTest {
+
+    @Test
+    public void snapshot_matchesTwoPassStatistics() throws Exception {
+        WindowAccumulator accumulator = new WindowAccumulator(90);
+        float[] angles = {10f, 45.5f, 90f, 120.25f, Float.NaN, 179.9f};
+        accumulator.add(angles, 0, angles.length);
+
+        WindowAccumulator.Snapshot snapshot = accumulator.snapshotAndReset();
+        assertEquals(5, snapshot.count);
+
+        double mean = (10 + 45.5 + 90 + 120.25 + 179.9) / 5;
+        double m2 = 0;
+        for (float angle : angles) {
+            if (angle == angle) {
+                m2 += (angle - mean) * (angle - mean);
+            }
+        }
+        assertEquals(mean, snapshot.getMean(), 1e-4);
+        assertEquals(m2 / 4, snapshot.getVariance(), 1e-3);
+
+        // The reset left nothing behind, and snapshots merge
+        assertEquals(0, accumulator.snapshotAndReset().count);
+        accumulator.add(90.0);
+        WindowAccumulator.Snapshot merged = snapshot.plus(accumulator.snapshotAndReset());
+        assertEquals(6, merged.count);
+        assertEquals((mean * 5 + 90) / 6, merged.getMean(), 1e-4);
+    }
+
+    @Test
+    public void engine_publishesEveryAngle() throws Exception {
+        WindowAccumulator accumulator = new WindowAccumulator(90);
+        AccelerometerEngine engine = new AccelerometerEngine(16, accumulator);
+
+        // Batches larger than the ring and not lined up with it
+        long[] timestamps = new long[40];
+        float[] xs = new float[40];
+        float[] ys = new float[40];
+        float[] zs = new float[40];
+        for (int i = 0; i < 40; i++) {
+            ys[i] = 9.81f;
+            zs[i] = i % 2 == 0 ? 0f : 9.81f;
+        }
+        engine.onSamples(timestamps, xs, ys, zs, 40);
+        engine.onSamples(timestamps, xs, ys, zs, 7);
+        engine.onSample(0f, 0f, 9.81f);
+
+        WindowAccumulator.Snapshot snapshot = accumulator.snapshotAndReset();
+        assertEquals(48, snapshot.count);
+        assertEquals(engine.getAverageAngle(), snapshot.getMean(), 1e-3);
+    }
+
+    /**
+     * Many writers add a constant while many readers take snapshots. Every snapshot has to be
+     * consistent (its sums agree with its count) and no value may be lost or counted twice.
+     */
+    @Test
+    public void stress_snapshotsAreConsistentAndComplete() throws Exception {
+        final int writers = 8;
+        final int readers = 4;
+        final int valuesPerWriter = 200000;
+        final float value = 100f;
+
+        final WindowAccumulator accumulator = new WindowAccumulator(90);
+        final long fixed = Math.round((value - 90) * WindowAccumulator.SCALE);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final long[] readerCounts = new long[readers];
+
+        Thread[] writerThreads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final boolean batches = w % 2 == 0;
+            writerThreads[w] = new Thread() {
+                @Override
+                public void run() {
+                    await(start);
+                    float[] batch = {value, value, value, value};
+                    for (int i = 0; i < valuesPerWriter; ) {
+                        if (batches) {
+                            accumulator.add(batch, 0, batch.length);
+                            i += batch.length;
+                        } else {
+                            accumulator.add(value);
+                            i++;
+                        }
+                    }
+                }
+            };
+        }
+
+        Thread[] readerThreads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            final int reader = r;
+            readerThreads[r] = new Thread() {
+                @Override
+                public void run() {
+                    await(start);
+                    while (writing.get()) {
+                        WindowAccumulator.Snapshot snapshot = accumulator.snapshotAndReset();
+                        if (snapshot.sum != snapshot.count * fixed
+                                || snapshot.sumOfSquares != snapshot.count * fixed * fixed) {
+                            failure.compareAndSet(null, "torn snapshot: " + snapshot);
+                        }
+                        readerCounts[reader] += snapshot.count;
+                    }
+                }
+            };
+        }
+
+        for (Thread thread : writerThreads) {
+            thread.start();
+        }
+        for (Thread thread : readerThreads) {
+            thread.start();
+        }
+        start.countDown();
+
+        for (Thread thread : writerThreads) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+
+        long total = accumulator.snapshotAndReset().count;
+        for (long count : readerCounts) {
+            total += count;
+        }
+        assertEquals((long) writers * valuesPerWriter, total);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class WindowCheckpointTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("window", ".checkpoint");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static WindowAccumulator.Snapshot angles(double... values) {
+        WindowAccumulator accumulator = new WindowAccumulator(ActivityRules.ANGLE_PIVOT);
+        for (double value : values) {
+            accumulator.add(value);
+        }
+        return accumulator.snapshotAndReset();
+    }
+
+    @Test
+    public void restore_carriesOnWithTheWindow() throws Exception {
+        assertNull(WindowCheckpoint.read(file));
+
+        WalkingIntervals walkingIntervals = new WalkingIntervals();
+        walkingIntervals.record(true);
+        walkingIntervals.record(false);
+        walkingIntervals.record(true);
+
+        // The anchor was 5 seconds before the checkpoint
+        DistanceAccumulator distance = new DistanceAccumulator();
+        distance.onFix(new LocationFix(LocationFix.PROVIDER_GPS, 39.2555, -76.7113, 0, 5f), 995000);
+
+        float[] features = new float[FeatureExtractor.NUM_FEATURES];
+        features[FeatureExtractor.CADENCE] = 112;
+        ActivityWindow last = new ActivityWindow(1000, 121000, ActivityType.WALKING, 1f, 80.5, 4, features);
+
+        WindowCheckpoint checkpoint = new WindowCheckpoint();
+        checkpoint.capture(1445000000000L, 1000000, 3, walkingIntervals, angles(80, 85, 90), distance, last);
+        checkpoint.write(file);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // The process restarts 30 seconds later, after a reboot
+        long nowMillis = 1445000030000L;
+        long nowElapsed = 50000;
+        WindowCheckpoint restored = WindowCheckpoint.read(file);
+        assertTrue(restored.isFresh(nowMillis));
+        assertEquals(3, restored.intervalsDone);
+        assertEquals(ActivityType.WALKING, restored.lastWindow.activity);
+        assertEquals(121000, restored.lastWindow.endMillis);
+        assertEquals(80.5, restored.lastWindow.averageAngle, 0);
+        assertArrayEquals(features, restored.lastWindow.features, 0);
+
+        WalkingIntervals restoredIntervals = new WalkingIntervals();
+        DistanceAccumulator restoredDistance = new DistanceAccumulator();
+        WindowAccumulator.Snapshot restoredAngles = restored.restore(nowMillis, nowElapsed,
+                restoredIntervals, restoredDistance);
+
+        assertEquals(2, restoredIntervals.getNumIntervalsWalking());
+        assertEquals(3, restoredAngles.count);
+        assertEquals(85, restoredAngles.getMean(), 1e-4);
+
+        // The next interval lands in the 4th slot, like it would have without the restart
+        restoredIntervals.record(true);
+        restoredIntervals.record(true);
+        restoredIntervals.record(true);
+        restoredIntervals.record(false);
+        assertEquals(4, restoredIntervals.getNumIntervalsWalking());
+        assertEquals(5f, restoredDistance.anchorAccuracy, 0);
+
+        // The first fix after the restart adds the distance from the saved anchor
+        assertTrue(restoredDistance.onFix(new LocationFix(LocationFix.PROVIDER_GPS, 39.2556, -76.7113, 0, 5f),
+                nowElapsed));
+        assertEquals(11.1, restoredDistance.takeDistance(), 0.1);
+    }
+
+    @Test
+    public void oldOrDamagedCheckpoints_areNotUsed() throws Exception {
+        WindowCheckpoint checkpoint = new WindowCheckpoint();
+        checkpoint.capture(1445000000000L, 1000000, 1, new WalkingIntervals(), angles(90),
+                new DistanceAccumulator(), null);
+        checkpoint.write(file);
+
+        WindowCheckpoint restored = WindowCheckpoint.read(file);
+        assertNull(restored.lastWindow);
+        assertFalse(restored.isFresh(1445000000000L + WindowCheckpoint.MAX_AGE_MILLIS));
+        assertFalse(restored.isFresh(1445000000000L - 1000));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(10);
+        raf.write(0x7f);
+        raf.close();
+        try {
+            WindowCheckpoint.read(file);
+            fail("read a damaged checkpoint");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownActivity_isNotRestored() throws Exception {
+        ActivityWindow last = new ActivityWindow(1000, 121000, ActivityType.SITTING, 1f, 20, 0, null);
+        WindowCheckpoint checkpoint = new WindowCheckpoint();
+        checkpoint.capture(1445000000000L, 1000000, 1, new WalkingIntervals(), angles(20),
+                new DistanceAccumulator(), last);
+        checkpoint.write(file);
+
+        // A code from a newer version, with a checksum that matches
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int code = 82 + 8 + 8;
+        assertEquals(ActivityType.SITTING.getCode(), bytes[code]);
+        bytes[code] = 100;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4, (int) crc.getValue());
+        Files.write(file.toPath(), bytes);
+
+        WindowCheckpoint.read(file);
+    }
+}
@@ -0,0 +1,94 @@
+package michaelbishoff.activitymonitor.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WindowSchedulerTest {
+
+    /**
+     * Records every window that closes as "name:start-end"
+     */
+    private static class Recorder implements WindowScheduler.WindowListener {
+        private final String name;
+        private final List<String> closed;
+
+        Recorder(String name, List<String> closed) {
+            this.name = name;
+            this.closed = closed;
+        }
+
+        @Override
+        public void onWindowClosed(long startMillis, long endMillis) {
+            closed.add(name + ":" + startMillis + "-" + endMillis);
+        }
+    }
+
+    @Test
+    public void subWindows_lineUpAndCloseFirst() throws Exception {
+        List<String> closed = new ArrayList<>();
+        WindowScheduler scheduler = new WindowScheduler(1000);
+        // Registered first, but the sub-window still closes before it
+        scheduler.addTumblingWindow(120000, new Recorder("window", closed));
+        scheduler.addTumblingWindow(20000, new Recorder("interval", closed));
+
+        assertEquals(21000, scheduler.nextDeadline());
+        assertEquals(0, scheduler.advanceTo(20999));
+        assertEquals(7, scheduler.advanceTo(121000));
+
+        assertEquals(7, closed.size());
+        assertEquals("interval:1000-21000", closed.get(0));
+        assertEquals("interval:101000-121000", closed.get(5));
+        assertEquals("window:1000-121000", closed.get(6));
+        assertEquals(141000, scheduler.nextDeadline());
+    }
+
+    @Test
+    public void missedBoundaries_areAllClosedInOrder() throws Exception {
+        List<String> closed = new ArrayList<>();
+        WindowScheduler scheduler = new WindowScheduler(0);
+        scheduler.addTumblingWindow(20000, new Recorder("interval", closed));
+
+        // Asleep for a minute
+        assertEquals(3, scheduler.advanceTo(65000));
+        assertEquals("interval:40000-60000", closed.get(2));
+        assertEquals(80000, scheduler.nextDeadline());
+    }
+
+    @Test
+    public void slidingWindows_overlap() throws Exception {
+        List<String> closed = new ArrayList<>();
+        WindowScheduler scheduler = new WindowScheduler(0);
+        scheduler.addSlidingWindow(60000, 20000, new Recorder("sliding", closed));
+
+        scheduler.advanceTo(100000);
+
+        assertEquals(3, closed.size());
+        assertEquals("sliding:0-60000", closed.get(0));
+        assertEquals("sliding:20000-80000", closed.get(1));
+        assertEquals("sliding:40000-100000", closed.get(2));
+    }
+
+    @Test
+    public void skipTo_continuesAPartlyDoneWindow() throws Exception {
+        List<String> closed = new ArrayList<>();
+        // 2 intervals of the window were done before a restart at 100000
+        WindowScheduler scheduler = new WindowScheduler(100000 - 2 * 20000);
+        scheduler.addTumblingWindow(20000, new Recorder("interval", closed));
+        scheduler.addTumblingWindow(120000, new Recorder("window", closed));
+        scheduler.skipTo(100000);
+
+        assertEquals(120000, scheduler.nextDeadline());
+        assertEquals(0, scheduler.advanceTo(100000));
+        assertEquals(5, scheduler.advanceTo(180000));
+        assertEquals("window:60000-180000", closed.get(4));
+    }
+
+    @Test
+    public void noWindows_neverDeadline() throws Exception {
+        assertEquals(Long.MAX_VALUE, new WindowScheduler(0).nextDeadline());
+    }
+}
@@ -0,0 +1,249 @@
+package michaelbishoff.activitymonitor.server;
+
+import michaelbishoff.activitymonitor.core.ActivityPipeline;
+import michaelbishoff.activitymonitor.core.ActivityWindow;
+import michaelbishoff.activitymonitor.core.LocationFix;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies the streams of the devices that hash to it. Every device belongs to one worker,
+ * so its pipeline is only touched by the worker's thread and needs no locking. The frames
+ * are handed over through a bounded queue, and the I/O thread never waits for it. When it's
+ * full, submit() says so and the I/O thread stops reading that connection, which slows that
+ * phone down instead of dropping its data. Once the worker has drained half the queue it
+ * calls onRoom, and the I/O thread submits the frame again and reads on. A stuck worker only
+ * holds up the connections with frames for it.
+ *
+ * A frame that throws while it's processed is counted as bad and its device's state is
+ * dropped, the device starts over with its next frame. One broken phone can't stop the worker.
+ */
+class DeviceWorker extends Thread {
+
+    // The frames waiting for the worker
+    static final int QUEUE_CAPACITY = 1024;
+
+    // Devices that haven't sent anything for this long are forgotten, with their window
+    static final long DEVICE_IDLE_MILLIS = 10 * 60 * 1000;
+
+    // How often the idle devices are looked for
+    private static final long SWEEP_MILLIS = 60 * 1000;
+
+    // Put in the queue to stop the worker
+    private static final byte[] STOP = new byte[0];
+
+    // Only needs a small ring, the engine is only used for its angle statistics
+    private static final int ENGINE_CAPACITY = 64;
+
+    /**
+     * The pipeline of one device
+     */
+    private class Device implements ActivityPipeline.Listener {
+        final long deviceId;
+        final ActivityPipeline pipeline;
+        long lastFrameMillis;
+
+        Device(long deviceId) {
+            this.deviceId = deviceId;
+            pipeline = new ActivityPipeline(ENGINE_CAPACITY, this);
+        }
+
+        @Override
+        public void onActivityWindow(ActivityWindow window) {
+            windows++;
+            listener.onActivityWindow(deviceId, window);
+        }
+    }
+
+    private final IngestionServer.Listener listener;
+    private final Runnable onRoom;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<Long, Device> devices = new HashMap<>();
+
+    // Reused to decode every frame
+    private final long[] timestamps = new long[IngestionProtocol.MAX_SAMPLES];
+    private final float[] xs = new float[IngestionProtocol.MAX_SAMPLES];
+    private final float[] ys = new float[IngestionProtocol.MAX_SAMPLES];
+    private final float[] zs = new float[IngestionProtocol.MAX_SAMPLES];
+    private final LocationFix fix = new LocationFix();
+
+    // Only written by the worker's thread, read by the stats
+    private volatile long frames = 0;
+    private volatile long samples = 0;
+    private volatile long fixes = 0;
+    private volatile long windows = 0;
+    private volatile long badFrames = 0;
+    private volatile int deviceCount = 0;
+
+    // Only written by the I/O thread
+    private volatile long droppedFrames = 0;
+
+    // Set by the I/O thread when a frame didn't fit, cleared by the worker when it calls onRoom
+    private volatile boolean waitingForRoom = false;
+
+    /**
+     * onRoom is called on the worker's thread when a full queue has drained to half
+     */
+    DeviceWorker(int index, IngestionServer.Listener listener, Runnable onRoom) {
+        super("DeviceWorker-" + index);
+        this.listener = listener;
+        this.onRoom = onRoom;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a frame, without its length. Never blocks. Returns false if the queue is full,
+     * the frame should be submitted again after onRoom. A frame for a worker that has
+     * stopped is dropped and counted.
+     */
+    boolean submit(byte[] frame) {
+        if (!isAlive()) {
+            droppedFrames++;
+            return true;
+        }
+        if (queue.offer(frame)) {
+            return true;
+        }
+        // Set before trying again, so the worker can't drain the queue without seeing it
+        waitingForRoom = true;
+        return queue.offer(frame);
+    }
+
+    void shutdown() {
+        queue.clear();
+        queue.offer(STOP);
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+
+        try {
+            while (true) {
+                byte[] frame = queue.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == STOP) {
+                    return;
+                }
+                if (waitingForRoom && queue.size() <= QUEUE_CAPACITY / 2) {
+                    waitingForRoom = false;
+                    onRoom.run();
+                }
+                if (frame != null) {
+                    try {
+                        process(frame);
+                    } catch (RuntimeException e) {
+                        onFailedFrame(frame, e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    forgetIdleDevices(now);
+                    nextSweep = now + SWEEP_MILLIS;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void process(byte[] frame) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        byte type = buffer.get();
+        long deviceId = buffer.getLong();
+
+        Device device = devices.get(deviceId);
+        if (device == null) {
+            device = new Device(deviceId);
+            devices.put(deviceId, device);
+            deviceCount = devices.size();
+        }
+        device.lastFrameMillis = System.currentTimeMillis();
+
+        if (type == IngestionProtocol.SAMPLES) {
+            int count = buffer.getInt();
+            if (count < 0 || count > IngestionProtocol.MAX_SAMPLES
+                    || buffer.remaining() != count * IngestionProtocol.SAMPLE_SIZE) {
+                badFrames++;
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = buffer.getLong();
+                xs[i] = buffer.getFloat();
+                ys[i] = buffer.getFloat();
+                zs[i] = buffer.getFloat();
+            }
+            device.pipeline.onSamples(timestamps, xs, ys, zs, 0, count);
+            samples += count;
+        } else if (type == IngestionProtocol.LOCATION && buffer.remaining() == IngestionProtocol.LOCATION_SIZE) {
+            long elapsedNanos = buffer.getLong();
+            int provider = buffer.get();
+            fix.set(provider, buffer.getDouble(), buffer.getDouble(), buffer.getLong(), buffer.getFloat());
+            device.pipeline.onFix(elapsedNanos, fix);
+            fixes++;
+        } else {
+            badFrames++;
+            return;
+        }
+        frames++;
+    }
+
+    /**
+     * Counts the frame as bad and forgets its device, whose state may be half updated
+     */
+    private void onFailedFrame(byte[] frame, RuntimeException e) {
+        badFrames++;
+        long deviceId = ByteBuffer.wrap(frame).getLong(1);
+        devices.remove(deviceId);
+        deviceCount = devices.size();
+        System.err.println(getName() + ": dropped device " + deviceId + " after a failed frame: " + e);
+    }
+
+    private void forgetIdleDevices(long now) {
+        Iterator<Device> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastFrameMillis > DEVICE_IDLE_MILLIS) {
+                iterator.remove();
+            }
+        }
+        deviceCount = devices.size();
+    }
+
+    long getFrames() {
+        return frames;
+    }
+
+    long getSamples() {
+        return samples;
+    }
+
+    long getFixes() {
+        return fixes;
+    }
+
+    long getWindows() {
+        return windows;
+    }
+
+    long getBadFrames() {
+        return badFrames;
+    }
+
+    int getDeviceCount() {
+        return deviceCount;
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,73 @@
+package michaelbishoff.activitymonitor.server;
+
+import michaelbishoff.activitymonitor.core.LocationFix;
+import michaelbishoff.activitymonitor.core.SensorTraceWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The frames the phones upload to the IngestionServer, big endian like the trace files.
+ * Every frame starts with:
+ *   int length of the rest of the frame, byte type, long device id
+ * followed by, for a batch of accelerometer samples:
+ *   int count, then for each sample: long timestamp (ns), float x, float y, float z
+ * or for a location fix:
+ *   long elapsed time (ns), byte provider, double latitude, double longitude, long time (ms),
+ *   float accuracy (m)
+ * The timestamps are on the phone's elapsedRealtime clock, in order within each device.
+ */
+public class IngestionProtocol {
+
+    public static final byte SAMPLES = SensorTraceWriter.ACCELEROMETER;
+    public static final byte LOCATION = SensorTraceWriter.LOCATION;
+
+    // The length, type and device id
+    public static final int HEADER_SIZE = 4 + 1 + 8;
+
+    public static final int SAMPLE_SIZE = 8 + 4 + 4 + 4;
+    public static final int LOCATION_SIZE = 8 + 1 + 8 + 8 + 8 + 4;
+
+    // The largest frame, including its length. Each connection has a buffer of this size.
+    public static final int MAX_FRAME_SIZE = 8192;
+
+    // The most samples in one frame
+    public static final int MAX_SAMPLES = (MAX_FRAME_SIZE - HEADER_SIZE - 4) / SAMPLE_SIZE;
+
+    private IngestionProtocol() { }
+
+    /**
+     * Puts a frame of the samples from offset to offset + count in the buffer
+     */
+    public static void putSamples(ByteBuffer buffer, long deviceId, long[] timestamps,
+                                  float[] xs, float[] ys, float[] zs, int offset, int count) {
+        if (count > MAX_SAMPLES) {
+            throw new IllegalArgumentException("At most " + MAX_SAMPLES + " samples per frame: " + count);
+        }
+
+        buffer.putInt(HEADER_SIZE - 4 + 4 + count * SAMPLE_SIZE);
+        buffer.put(SAMPLES);
+        buffer.putLong(deviceId);
+        buffer.putInt(count);
+        for (int i = offset; i < offset + count; i++) {
+            buffer.putLong(timestamps[i]);
+            buffer.putFloat(xs[i]);
+            buffer.putFloat(ys[i]);
+            buffer.putFloat(zs[i]);
+        }
+    }
+
+    /**
+     * Puts a frame of a location fix received at the elapsed time in the buffer
+     */
+    public static void putLocation(ByteBuffer buffer, long deviceId, long elapsedNanos, LocationFix fix) {
+        buffer.putInt(HEADER_SIZE - 4 + LOCATION_SIZE);
+        buffer.put(LOCATION);
+        buffer.putLong(deviceId);
+        buffer.putLong(elapsedNanos);
+        buffer.put((byte) fix.provider);
+        buffer.putDouble(fix.latitude);
+        buffer.putDouble(fix.longitude);
+        buffer.putLong(fix.time);
+        buffer.putFloat(fix.accuracy);
+    }
+}
@@ -0,0 +1,390 @@
+package michaelbishoff.activitymonitor.server;
+
+import michaelbishoff.activitymonitor.core.ActivityType;
+import michaelbishoff.activitymonitor.core.ActivityWindow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accepts the sensor uploads of many phones over TCP (see IngestionProtocol) and classifies
+ * each phone's stream with the same ActivityPipeline as the trace replayer.
+ *
+ * One I/O thread reads every connection with a selector, so thousands of phones don't need
+ * thousands of threads. It cuts the bytes into frames and hands each one to the worker its
+ * device hashes to. Each worker keeps the window state of its devices, so a device's frames
+ * are processed in order no matter which connection they came in on.
+ *
+ * When a worker's queue is full the connection is paused: it isn't read until the worker has
+ * room again, so TCP slows that phone down while every other connection carries on.
+ */
+public class IngestionServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 9400;
+
+    /**
+     * Told about every window of every device, on the thread of the device's worker
+     */
+    public interface Listener {
+        void onActivityWindow(long deviceId, ActivityWindow window);
+    }
+
+    /**
+     * A connection and the bytes of its partial frame
+     */
+    private static class Connection {
+        final ByteBuffer buffer = ByteBuffer.allocate(IngestionProtocol.MAX_FRAME_SIZE);
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final DeviceWorker[] workers;
+    private final Thread ioThread;
+
+    // The connections that aren't read because a worker's queue was full, only used on the I/O thread
+    private final List<SelectionKey> paused = new ArrayList<>();
+
+    // The windows of each activity, for the stats
+    private final AtomicLongArray activityWindows = new AtomicLongArray(ActivityType.values().length);
+
+    // Only written by the I/O thread
+    private volatile long connectionsAccepted = 0;
+    private volatile int connectionsOpen = 0;
+    private volatile long badConnections = 0;
+    private volatile int connectionsPaused = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Listens on the port, 0 for any free port. Nothing is read until start().
+     */
+    public IngestionServer(int port, int workerCount, final Listener listener) throws IOException {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("worker count must be positive: " + workerCount);
+        }
+
+        Listener counting = new Listener() {
+            @Override
+            public void onActivityWindow(long deviceId, ActivityWindow window) {
+                activityWindows.incrementAndGet(window.activity.getCode());
+                if (listener != null) {
+                    listener.onActivityWindow(deviceId, window);
+                }
+            }
+        };
+        // Wakes the I/O thread to resume the paused connections
+        Runnable onRoom = new Runnable() {
+            @Override
+            public void run() {
+                selector.wakeup();
+            }
+        };
+        workers = new DeviceWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new DeviceWorker(i, counting, onRoom);
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        ioThread = new Thread("IngestionServer") {
+            @Override
+            public void run() {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    if (!closed) {
+                        e.printStackTrace();
+                    }
+                } finally {
+                    closeConnections();
+                }
+            }
+        };
+    }
+
+    public void start() {
+        for (DeviceWorker worker : workers) {
+            worker.start();
+        }
+        ioThread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void serve() throws IOException {
+        while (!closed) {
+            selector.select();
+            resumePaused();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    read(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+            connectionsAccepted++;
+            connectionsOpen++;
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = ((Connection) key.attachment()).buffer;
+
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            disconnect(key);
+            return;
+        }
+
+        if (!submitFrames(key)) {
+            // Not read again until the worker has room
+            key.interestOps(0);
+            paused.add(key);
+            connectionsPaused = paused.size();
+        }
+    }
+
+    /**
+     * Submits the connections' waiting frames again, and reads on from the ones that got through
+     */
+    private void resumePaused() {
+        if (paused.isEmpty()) {
+            return;
+        }
+        Iterator<SelectionKey> keys = paused.iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            if (!key.isValid()) {
+                keys.remove();
+            } else if (submitFrames(key)) {
+                key.interestOps(SelectionKey.OP_READ);
+                keys.remove();
+            }
+        }
+        connectionsPaused = paused.size();
+    }
+
+    /**
+     * Hands every whole frame in the connection's buffer to its worker. Returns false if a
+     * worker's queue was full, the frame stays in the buffer then.
+     */
+    private boolean submitFrames(SelectionKey key) {
+        ByteBuffer buffer = ((Connection) key.attachment()).buffer;
+        boolean submitted = true;
+
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < IngestionProtocol.HEADER_SIZE - 4 || length > IngestionProtocol.MAX_FRAME_SIZE - 4) {
+                // Out of step with the frames, there's no way to find the next one
+                badConnections++;
+                disconnect(key);
+                return true;
+            }
+            if (buffer.remaining() < 4 + length) {
+                break;
+            }
+
+            buffer.position(buffer.position() + 4);
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            if (!workerOf(ByteBuffer.wrap(frame).getLong(1)).submit(frame)) {
+                buffer.position(buffer.position() - 4 - length);
+                submitted = false;
+                break;
+            }
+        }
+        buffer.compact();
+        return submitted;
+    }
+
+    private void closeConnections() {
+        if (!selector.isOpen()) {
+            return;
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+        connectionsOpen = 0;
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        connectionsOpen--;
+    }
+
+    /**
+     * Returns the worker that owns the device. The id is mixed first, so sequential ids spread out.
+     */
+    private DeviceWorker workerOf(long deviceId) {
+        long mixed = deviceId * 0x9E3779B97F4A7C15L;
+        return workers[(int) ((mixed >>> 32) % workers.length)];
+    }
+
+    public long getSamples() {
+        long total = 0;
+        for (DeviceWorker worker : workers) {
+            total += worker.getSamples();
+        }
+        return total;
+    }
+
+    public long getFixes() {
+        long total = 0;
+        for (DeviceWorker worker : workers) {
+            total += worker.getFixes();
+        }
+        return total;
+    }
+
+    public long getWindows() {
+        long total = 0;
+        for (DeviceWorker worker : workers) {
+            total += worker.getWindows();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of devices with window state
+     */
+    public int getDeviceCount() {
+        int total = 0;
+        for (DeviceWorker worker : workers) {
+            total += worker.getDeviceCount();
+        }
+        return total;
+    }
+
+    public int getConnectionsOpen() {
+        return connectionsOpen;
+    }
+
+    /**
+     * Returns a one line summary of the counters
+     */
+    public String getStats() {
+        long frames = 0;
+        long badFrames = 0;
+        long droppedFrames = 0;
+        int queued = 0;
+        for (DeviceWorker worker : workers) {
+            frames += worker.getFrames();
+            badFrames += worker.getBadFrames();
+            droppedFrames += worker.getDroppedFrames();
+            queued += worker.getQueueSize();
+        }
+
+        StringBuilder stats = new StringBuilder()
+                .append("connections=").append(connectionsOpen).append('/').append(connectionsAccepted)
+                .append(" devices=").append(getDeviceCount())
+                .append(" frames=").append(frames)
+                .append(" samples=").append(getSamples())
+                .append(" fixes=").append(getFixes())
+                .append(" queued=").append(queued)
+                .append(" paused=").append(connectionsPaused)
+                .append(" dropped=").append(droppedFrames)
+                .append(" bad=").append(badFrames).append('/').append(badConnections)
+                .append(" windows:");
+        for (ActivityType activity : ActivityType.values()) {
+            stats.append(' ').append(activity.getLabel()).append('=')
+                    .append(activityWindows.get(activity.getCode()));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Stops reading, closes every connection and stops the workers. Frames that weren't
+     * processed yet are discarded.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // In case it was never started
+        if (!ioThread.isAlive()) {
+            closeConnections();
+        }
+
+        for (DeviceWorker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * Runs the server and prints the counters every 10 seconds.
+     * Usage: IngestionServer [port] [workers]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workerCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        IngestionServer server = new IngestionServer(port, workerCount, null);
+        server.start();
+        System.out.println("Listening on port " + server.getPort() + " with " + workerCount + " workers");
+
+        while (true) {
+            Thread.sleep(10000);
+            System.out.println(server.getStats());
+        }
+    }
+}
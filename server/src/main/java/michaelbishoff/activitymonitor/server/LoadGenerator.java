@@ -0,0 +1,251 @@
+package michaelbishoff.activitymonitor.server;
+
+import michaelbishoff.activitymonitor.core.ActivityType;
+import michaelbishoff.activitymonitor.core.LocationFix;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates phones uploading to an IngestionServer. Every phone has its own connection and
+ * sends one frame of 50 Hz accelerometer samples per simulated second, and a GPS fix every
+ * 5 seconds. Each phone does one activity the whole time, by its id: walking with the phone
+ * upright in a pocket, sitting with it tilted, or sleeping with it flat on a table.
+ *
+ * The phones are split between a few threads that take turns writing to each phone's socket.
+ * The simulated time runs at the given speed, 1 is real time and 0 is as fast as possible.
+ */
+public class LoadGenerator {
+
+    public static final int SAMPLE_HZ = 50;
+    public static final int FIX_SECONDS = 5;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // 1.4 m/s north while walking, in degrees of latitude per second
+    private static final double WALKING_DEGREES_PER_SECOND = 1.4 / 111320.0;
+
+    /**
+     * What the phones sent
+     */
+    public static class Result {
+        public final int devices;
+        public final long samples;
+        public final long fixes;
+        public final long elapsedMillis;
+
+        Result(int devices, long samples, long fixes, long elapsedMillis) {
+            this.devices = devices;
+            this.samples = samples;
+            this.fixes = fixes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Sent " + samples + " samples and " + fixes + " fixes from " + devices + " devices in "
+                    + elapsedMillis + " ms, " + samples * 1000 / Math.max(elapsedMillis, 1) + " samples/s";
+        }
+    }
+
+    /**
+     * One simulated phone
+     */
+    private static class Phone {
+        final long deviceId;
+        final ActivityType activity;
+        final Random random;
+        final LocationFix fix = new LocationFix();
+        SocketChannel channel;
+        double latitude;
+
+        Phone(long deviceId) {
+            this.deviceId = deviceId;
+            activity = activityOf(deviceId);
+            random = new Random(deviceId);
+            latitude = 39.2555 + random.nextDouble() * 0.01;
+        }
+
+        /**
+         * Puts the frames of one simulated second in the buffer
+         */
+        void putSecond(ByteBuffer buffer, int second, long[] timestamps, float[] xs, float[] ys, float[] zs) {
+            long startNanos = second * NANOS_PER_SECOND;
+            for (int i = 0; i < SAMPLE_HZ; i++) {
+                long t = startNanos + i * NANOS_PER_SECOND / SAMPLE_HZ;
+                timestamps[i] = t;
+                float noise = (float) random.nextGaussian() * 0.05f;
+
+                if (activity == ActivityType.WALKING) {
+                    // Upright, bouncing with about 1.8 steps a second
+                    double phase = 2 * Math.PI * 1.8 * t / NANOS_PER_SECOND;
+                    xs[i] = 0.5f * (float) Math.sin(phase / 2) + noise;
+                    ys[i] = 9.81f + 2f * (float) Math.sin(phase) + noise;
+                    zs[i] = 1f + noise;
+                } else if (activity == ActivityType.SITTING) {
+                    // Tilted 30 degrees back
+                    xs[i] = noise;
+                    ys[i] = 8.5f + noise;
+                    zs[i] = 4.9f + noise;
+                } else {
+                    // Flat on its back
+                    xs[i] = noise;
+                    ys[i] = noise;
+                    zs[i] = 9.81f + noise;
+                }
+            }
+            IngestionProtocol.putSamples(buffer, deviceId, timestamps, xs, ys, zs, 0, SAMPLE_HZ);
+
+            if (activity == ActivityType.WALKING) {
+                latitude += WALKING_DEGREES_PER_SECOND;
+            }
+            if (second % FIX_SECONDS == 0) {
+                fix.set(LocationFix.PROVIDER_GPS, latitude, -76.7113, 1445000000000L + second * 1000L, 5f);
+                IngestionProtocol.putLocation(buffer, deviceId, startNanos, fix);
+            }
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final int deviceCount;
+    private final int threadCount;
+
+    public LoadGenerator(InetSocketAddress address, int deviceCount, int threadCount) {
+        this.address = address;
+        this.deviceCount = deviceCount;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the activity the phone with the id does
+     */
+    public static ActivityType activityOf(long deviceId) {
+        switch ((int) (deviceId % 3)) {
+            case 0:
+                return ActivityType.WALKING;
+            case 1:
+                return ActivityType.SITTING;
+            default:
+                return ActivityType.SLEEPING;
+        }
+    }
+
+    /**
+     * Connects every phone, sends the simulated seconds and disconnects. speed is simulated
+     * seconds per real second, 0 for as fast as possible.
+     */
+    public Result run(final int seconds, final double speed) throws IOException, InterruptedException {
+        final Phone[] phones = new Phone[deviceCount];
+        try {
+            for (int i = 0; i < deviceCount; i++) {
+                phones[i] = new Phone(i);
+                phones[i].channel = SocketChannel.open(address);
+                phones[i].channel.socket().setTcpNoDelay(true);
+            }
+        } catch (IOException e) {
+            disconnect(phones);
+            throw e;
+        }
+
+        final AtomicLong samples = new AtomicLong();
+        final AtomicLong fixes = new AtomicLong();
+        final IOException[] error = new IOException[1];
+        final long start = System.nanoTime();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int first = t;
+            threads[t] = new Thread("LoadGenerator-" + t) {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocate(IngestionProtocol.MAX_FRAME_SIZE);
+                    long[] timestamps = new long[SAMPLE_HZ];
+                    float[] xs = new float[SAMPLE_HZ];
+                    float[] ys = new float[SAMPLE_HZ];
+                    float[] zs = new float[SAMPLE_HZ];
+                    int phoneCount = (phones.length - first + threadCount - 1) / threadCount;
+
+                    try {
+                        for (int second = 0; second < seconds; second++) {
+                            if (speed > 0) {
+                                long due = start + (long) (second * NANOS_PER_SECOND / speed);
+                                long wait = (due - System.nanoTime()) / 1000000;
+                                if (wait > 0) {
+                                    Thread.sleep(wait);
+                                }
+                            }
+
+                            // This thread's phones are every threadCount'th one
+                            for (int i = first; i < phones.length; i += threadCount) {
+                                buffer.clear();
+                                phones[i].putSecond(buffer, second, timestamps, xs, ys, zs);
+                                buffer.flip();
+                                while (buffer.hasRemaining()) {
+                                    phones[i].channel.write(buffer);
+                                }
+                            }
+                            samples.addAndGet(phoneCount * SAMPLE_HZ);
+                            if (second % FIX_SECONDS == 0) {
+                                fixes.addAndGet(phoneCount);
+                            }
+                        }
+                    } catch (IOException e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        disconnect(phones);
+
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        return new Result(deviceCount, samples.get(), fixes.get(), elapsedMillis);
+    }
+
+    private static void disconnect(Phone[] phones) {
+        for (Phone phone : phones) {
+            if (phone != null && phone.channel != null) {
+                try {
+                    phone.channel.close();
+                } catch (IOException e) {
+                    // Nothing left to send
+                }
+            }
+        }
+    }
+
+    /**
+     * Usage: LoadGenerator <host> <port> <devices> <minutes> [threads] [speed]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: LoadGenerator <host> <port> <devices> <minutes> [threads] [speed]");
+            System.exit(1);
+        }
+
+        InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int devices = Integer.parseInt(args[2]);
+        int minutes = Integer.parseInt(args[3]);
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        double speed = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+
+        System.out.println(new LoadGenerator(address, devices, threads).run(minutes * 60, speed));
+    }
+}
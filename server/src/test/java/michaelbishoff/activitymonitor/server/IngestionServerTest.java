@@ -0,0 +1,178 @@
+package michaelbishoff.activitymonitor.server;
+
+import michaelbishoff.activitymonitor.core.ActivityType;
+import michaelbishoff.activitymonitor.core.ActivityWindow;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class IngestionServerTest {
+
+    private static void awaitSamples(IngestionServer server, long samples) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getSamples() < samples) {
+            assertTrue("timed out, " + server.getStats(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void manyPhones_areEachClassified() throws Exception {
+        final Map<Long, List<ActivityType>> windows = new ConcurrentHashMap<>();
+        IngestionServer server = new IngestionServer(0, 4, new IngestionServer.Listener() {
+            @Override
+            public void onActivityWindow(long deviceId, ActivityWindow window) {
+                // Each device only ever comes from its one worker
+                List<ActivityType> activities = windows.get(deviceId);
+                if (activities == null) {
+                    activities = new ArrayList<>();
+                    windows.put(deviceId, activities);
+                }
+                activities.add(window.activity);
+            }
+        });
+        server.start();
+
+        // 2 complete windows and a bit of a third
+        int devices = 60;
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress("localhost", server.getPort()), devices, 3);
+        LoadGenerator.Result result = generator.run(250, 0);
+        assertEquals(devices * 250 * LoadGenerator.SAMPLE_HZ, result.samples);
+
+        awaitSamples(server, result.samples);
+        assertEquals(result.fixes, server.getFixes());
+        assertEquals(devices, server.getDeviceCount());
+        assertEquals(devices * 2, server.getWindows());
+
+        for (long deviceId = 0; deviceId < devices; deviceId++) {
+            ActivityType expected = LoadGenerator.activityOf(deviceId);
+            List<ActivityType> activities = windows.get(deviceId);
+            assertEquals("device " + deviceId, 2, activities.size());
+            assertEquals("device " + deviceId, expected, activities.get(0));
+            assertEquals("device " + deviceId, expected, activities.get(1));
+        }
+
+        server.close();
+    }
+
+    @Test
+    public void failingFrame_dropsOnlyThatDevice() throws Exception {
+        final Map<Long, Integer> windows = new ConcurrentHashMap<>();
+        // One worker, so every device shares the thread the failure happens on
+        IngestionServer server = new IngestionServer(0, 1, new IngestionServer.Listener() {
+            @Override
+            public void onActivityWindow(long deviceId, ActivityWindow window) {
+                if (deviceId == 0) {
+                    throw new IllegalStateException("poisoned");
+                }
+                Integer count = windows.get(deviceId);
+                windows.put(deviceId, count == null ? 1 : count + 1);
+            }
+        });
+        server.start();
+
+        // A window and a half, device 0's frame that closes its window throws
+        LoadGenerator.Result result = new LoadGenerator(new InetSocketAddress("localhost", server.getPort()), 3, 1)
+                .run(180, 0);
+        // Everything but the failed frame, one second of samples
+        awaitSamples(server, result.samples - LoadGenerator.SAMPLE_HZ);
+        Thread.sleep(50);
+        assertEquals(result.samples - LoadGenerator.SAMPLE_HZ, server.getSamples());
+        assertTrue(server.getStats(), server.getStats().contains("bad=1/0"));
+        assertTrue(server.getStats(), server.getStats().contains("dropped=0"));
+
+        // The worker carried on with the other devices, and device 0 started over
+        assertEquals(Integer.valueOf(1), windows.get(1L));
+        assertEquals(Integer.valueOf(1), windows.get(2L));
+        assertEquals(3, server.getDeviceCount());
+
+        server.close();
+    }
+
+    @Test
+    public void stuckWorker_pausesOnlyItsConnection() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<Long, Integer> windows = new ConcurrentHashMap<>();
+        // Devices 0 and 1 hash to different workers, device 0's worker is stuck on its first window
+        final IngestionServer server = new IngestionServer(0, 2, new IngestionServer.Listener() {
+            @Override
+            public void onActivityWindow(long deviceId, ActivityWindow window) {
+                if (deviceId == 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                Integer count = windows.get(deviceId);
+                windows.put(deviceId, count == null ? 1 : count + 1);
+            }
+        });
+        server.start();
+
+        // More frames after the first window than the queue holds
+        final int seconds = 2000;
+        final LoadGenerator.Result[] result = new LoadGenerator.Result[1];
+        Thread generator = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = new LoadGenerator(new InetSocketAddress("localhost", server.getPort()), 2, 2)
+                            .run(seconds, 0);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        generator.start();
+
+        // Device 1 gets through while device 0 waits
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Integer.valueOf(seconds / 120).equals(windows.get(1L))) {
+            assertTrue("timed out, " + server.getStats(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertTrue(server.getStats(), server.getSamples() < 2 * seconds * LoadGenerator.SAMPLE_HZ);
+        assertTrue(server.getStats(), server.getStats().contains("paused=1"));
+
+        release.countDown();
+        generator.join(10000);
+        awaitSamples(server, result[0].samples);
+        assertTrue(server.getStats(), server.getStats().contains("paused=0"));
+        assertTrue(server.getStats(), server.getStats().contains("dropped=0"));
+        assertEquals(Integer.valueOf(seconds / 120), windows.get(0L));
+
+        server.close();
+    }
+
+    @Test
+    public void garbage_closesOnlyThatConnection() throws Exception {
+        IngestionServer server = new IngestionServer(0, 2, null);
+        server.start();
+
+        Socket socket = new Socket("localhost", server.getPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(-5);
+        out.flush();
+        // The server hangs up
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+
+        LoadGenerator.Result result = new LoadGenerator(new InetSocketAddress("localhost", server.getPort()), 3, 1)
+                .run(10, 0);
+        awaitSamples(server, result.samples);
+        assertTrue(server.getStats(), server.getStats().contains("bad=0/1"));
+
+        server.close();
+    }
+}